@@ -180,6 +180,22 @@ Insert into CONSUMER (NAME,PASSWORD,BIRTHYEAR,SEX,LFMACCOUNT,LIST,ROLE,EMAIL,REG
 	"EVAL_ID" NUMBER
    ) ;
 --------------------------------------------------------
+--  DDL for Table RECOMMENDER_AFFINITY
+--------------------------------------------------------
+
+  CREATE TABLE "MUSE"."RECOMMENDER_AFFINITY" 
+   (	"CONSUMER" VARCHAR2(200), 
+	"RECOMMENDER_ID" NUMBER, 
+	"RATING_SUM" NUMBER, 
+	"RATING_COUNT" NUMBER, 
+	"LIST_1" NUMBER, 
+	"SUM_1" NUMBER, 
+	"COUNT_1" NUMBER, 
+	"LIST_2" NUMBER, 
+	"SUM_2" NUMBER, 
+	"COUNT_2" NUMBER
+   ) ;
+--------------------------------------------------------
 --  DDL for Table RECOMMENDATION_LIST
 --------------------------------------------------------
 
@@ -247,6 +263,14 @@ Insert into CONSUMER (NAME,PASSWORD,BIRTHYEAR,SEX,LFMACCOUNT,LIST,ROLE,EMAIL,REG
 	"EXPLANATION" VARCHAR2(300)
    ) ;
 --------------------------------------------------------
+--  DDL for Table WATERMARKS
+--------------------------------------------------------
+
+  CREATE TABLE "MUSE"."WATERMARKS" 
+   (	"NAME" VARCHAR2(100), 
+	"VALUE" NUMBER
+   ) ;
+--------------------------------------------------------
 --  DDL for Index CONSUMER_PK
 --------------------------------------------------------
 
@@ -283,12 +307,30 @@ Insert into CONSUMER (NAME,PASSWORD,BIRTHYEAR,SEX,LFMACCOUNT,LIST,ROLE,EMAIL,REG
   CREATE UNIQUE INDEX "MUSE"."RECOMMENDATION_LIST_PK" ON "MUSE"."RECOMMENDATION_LIST" ("CONSUMER", "LIST_ID") 
   ;
 --------------------------------------------------------
+--  DDL for Index RECOMMENDER_AFFINITY_PK
+--------------------------------------------------------
+
+  CREATE UNIQUE INDEX "MUSE"."RECOMMENDER_AFFINITY_PK" ON "MUSE"."RECOMMENDER_AFFINITY" ("CONSUMER", "RECOMMENDER_ID") 
+  ;
+--------------------------------------------------------
 --  DDL for Index TRACKS_PK
 --------------------------------------------------------
 
   CREATE UNIQUE INDEX "MUSE"."TRACKS_PK" ON "MUSE"."TRACKS" ("ID") 
   ;
 --------------------------------------------------------
+--  DDL for Index TRACK_SIMILARITIES_IDX1
+--------------------------------------------------------
+
+  CREATE INDEX "MUSE"."TRACK_SIMILARITIES_IDX1" ON "MUSE"."TRACK_SIMILARITIES" ("TRACK_ID_1", "SIMILARITY") 
+  ;
+--------------------------------------------------------
+--  DDL for Index WATERMARKS_PK
+--------------------------------------------------------
+
+  CREATE UNIQUE INDEX "MUSE"."WATERMARKS_PK" ON "MUSE"."WATERMARKS" ("NAME") 
+  ;
+--------------------------------------------------------
 --  Constraints for Table CONSUMER
 --------------------------------------------------------
 
@@ -45,6 +45,10 @@ define([
         name: "list",
         value: $("#listRating").raty('score')
       });
+      data.push({
+        name: "user",
+        value: Session.user.name
+      });
 
       return $.ajax({
         url: Utils.serviceUrl + "putRatings",
@@ -15,9 +15,11 @@
  */
 package de.muse.api;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -150,6 +152,16 @@ public interface DataRepository {
 	 */
 	public Song getSongInfo(int songID);
 
+	/**
+	 * Get artist and name of many songs at once. Unlike
+	 * {@link #getSongInfo(int)} the tags of the songs are not populated.
+	 * 
+	 * @param songIDs
+	 *            The IDs of the songs
+	 * @return Mapping of ID -> {@link Song} for all existing songs
+	 */
+	public Map<Integer, Song> getSongInfo(Collection<Integer> songIDs);
+
 	/*
 	 * Specific user data
 	 */
@@ -17,10 +17,12 @@ package de.muse.api.impl;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import de.muse.api.DataRepository;
@@ -407,6 +409,15 @@ public class TestRepository implements DataRepository {
 		return new TestSong(songID, "Artist" + songID % 5, "Song" + songID);
 	}
 
+	@Override
+	public Map<Integer, Song> getSongInfo(Collection<Integer> songIDs) {
+		Map<Integer, Song> songs = new HashMap<Integer, Song>();
+		for (int songID : songIDs) {
+			songs.put(songID, getSongInfo(songID));
+		}
+		return songs;
+	}
+
 	@Override
 	public HashMap<String, List<Song>> getTagCharts(User user) {
 		List<String> tags = Arrays.asList("Rock", "Pop", "Rap", "Indie",
@@ -37,6 +37,22 @@ public class ApplicationConfig {
 	public static final String MAIL_HOST;
 	public static final String MAIL_SENDER;
 	public static final String PERM_DIR;
+	public static final int DB_POOL_MIN;
+	public static final int DB_POOL_MAX;
+	public static final long DB_POOL_TIMEOUT;
+	public static final int DB_STATEMENT_CACHE;
+	public static final int CHART_CACHE_SIZE;
+	public static final int PROFILE_CACHE_TTL;
+	public static final boolean CF_APPROXIMATE_NEIGHBORS;
+	public static final int CF_MINHASH_BANDS;
+	public static final int CF_MINHASH_ROWS;
+	public static final String HYBRID_SOURCES;
+	public static final int RECOMMENDER_THREADS;
+	public static final int RECOMMENDER_TIMEOUT;
+	public static final boolean LIST_PREFETCH;
+	public static final boolean LIST_SINGLE_ROUND_TRIP;
+	public static final int LIST_CACHE_SIZE;
+	public static final int LIST_CACHE_IDLE;
 
 	static {
 		// Read config file
@@ -63,5 +79,39 @@ public class ApplicationConfig {
 		MAIL_HOST = properties.getProperty("mail_host");
 		MAIL_SENDER = properties.getProperty("mail_sender");
 		PERM_DIR = properties.getProperty("perm_directory");
+		DB_POOL_MIN = getInt(properties, "db_pool_min", 2);
+		DB_POOL_MAX = getInt(properties, "db_pool_max", 20);
+		DB_POOL_TIMEOUT = getInt(properties, "db_pool_timeout", 10000);
+		DB_STATEMENT_CACHE = getInt(properties, "db_statement_cache", 50);
+		CHART_CACHE_SIZE = getInt(properties, "chart_cache_size", 2000);
+		PROFILE_CACHE_TTL = getInt(properties, "profile_cache_ttl", 5000);
+		CF_APPROXIMATE_NEIGHBORS = "minhash".equalsIgnoreCase(properties
+				.getProperty("cf_neighbor_search", "exact").trim());
+		CF_MINHASH_BANDS = getInt(properties, "cf_minhash_bands", 20);
+		CF_MINHASH_ROWS = getInt(properties, "cf_minhash_rows", 2);
+		HYBRID_SOURCES = properties.getProperty("hybrid_sources",
+				"6:0.7, 7:0.3");
+		RECOMMENDER_THREADS = getInt(properties, "recommender_threads", 16);
+		RECOMMENDER_TIMEOUT = getInt(properties, "recommender_timeout", 3000);
+		LIST_PREFETCH = "true".equalsIgnoreCase(properties.getProperty(
+				"list_prefetch", "true").trim());
+		LIST_SINGLE_ROUND_TRIP = "block".equalsIgnoreCase(properties
+				.getProperty("list_persistence", "batch").trim());
+		LIST_CACHE_SIZE = getInt(properties, "list_cache_size", 5000);
+		LIST_CACHE_IDLE = getInt(properties, "list_cache_idle", 1800000);
+	}
+
+	// Read an optional numeric setting
+	private static int getInt(Properties properties, String key,
+			int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty())
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOG.warn("Invalid value for " + key + ": " + value);
+			return defaultValue;
+		}
 	}
 }
@@ -33,8 +33,15 @@ import org.quartz.impl.StdSchedulerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.muse.data.charts.CityIndex;
 import de.muse.data.cronjob.DailyJob;
 import de.muse.data.cronjob.WeeklyJob;
+import de.muse.recommendation.RatingIngestion;
+import de.muse.recommendation.RatingMatrix;
+import de.muse.recommendation.ScoreTable;
+import de.muse.recommendation.TrackCatalog;
+import de.muse.recommendation.recommenders.collaborative.CollaborativeFilteringUpdater;
+import de.muse.utility.Database;
 
 public class Init implements ServletContextListener {
 	// Configured logger
@@ -60,6 +67,15 @@ public class Init implements ServletContextListener {
 		} catch (SchedulerException e) {
 			LOG.warn("Shutting down scheduler failed.", e);
 		}
+
+		LOG.info("Writing back pending ratings.");
+		RatingIngestion.shutdown();
+
+		LOG.info("Stopping background CF updates.");
+		CollaborativeFilteringUpdater.shutdown();
+
+		LOG.info("Closing database connections.");
+		Database.shutdown();
 	}
 
 	@Override
@@ -73,6 +89,35 @@ public class Init implements ServletContextListener {
 			LOG.warn("Couldn't initialize configuration.", e);
 		}
 
+		// Load in-memory track catalog
+		LOG.info("Loading track catalog.");
+		TrackCatalog.reload();
+
+		// Build language -> city index
+		LOG.info("Building city index.");
+		CityIndex.rebuild();
+
+		// Load in-memory rating matrix
+		LOG.info("Loading rating matrix.");
+		RatingMatrix.load();
+
+		// Load precomputed CF and CB scores
+		LOG.info("Loading precomputed scores.");
+		ScoreTable.CONTENT.load();
+		ScoreTable.COLLABORATIVE.load();
+
+		// Build the CF neighborhoods for incremental updates
+		LOG.info("Building CF engine in the background.");
+		CollaborativeFilteringUpdater.start();
+
+		// Apply journaled ratings and start writing new ones
+		LOG.info("Starting rating ingestion.");
+		try {
+			RatingIngestion.start();
+		} catch (IOException e) {
+			LOG.warn("Couldn't open the rating journal.", e);
+		}
+
 		// Schedule repetitive tasks
 		LOG.info("Scheduling tasks.");
 		try {
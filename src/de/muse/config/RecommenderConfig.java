@@ -48,7 +48,7 @@ import com.google.gson.reflect.TypeToken;
 
 import de.muse.api.DataRepository;
 import de.muse.api.Recommender;
-import de.muse.recommendation.MuseRepository;
+import de.muse.recommendation.CachingRepository;
 import de.muse.utility.Database;
 import de.muse.web.MuseWebException;
 
@@ -71,6 +71,9 @@ public class RecommenderConfig {
 	private static Map<Integer, Config> configuration = new ConcurrentHashMap<Integer, Config>();
 	private static Map<Integer, Recommender> recommenders = new ConcurrentHashMap<Integer, Recommender>();
 
+	// Data repository shared by all recommenders
+	private static final DataRepository repository = new CachingRepository();
+
 	// Easy deep clone by serialize and deserialize
 	public static String getConfigString() {
 		Gson gson = new Gson();
@@ -155,7 +158,7 @@ public class RecommenderConfig {
 
 		// Add to recommenders cache
 		Recommender rec = (Recommender) recommenderClass.newInstance(id,
-				new MuseRepository());
+				repository);
 		recommenders.put(id, rec);
 
 		// Add to configuration cache
@@ -276,7 +279,7 @@ public class RecommenderConfig {
 
 			// Cache recommenders
 			recommenders.put(conf.id, (Recommender) recommenderClass
-					.newInstance(conf.id, new MuseRepository()));
+					.newInstance(conf.id, repository));
 		}
 	}
 
@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import de.muse.data.social.lastfm.City;
 import de.muse.data.social.lastfm.LastFmConnector;
 import de.muse.recommendation.MuseSong;
+import de.muse.recommendation.TrackCatalog;
 import de.muse.utility.Database;
 
 /**
@@ -116,6 +117,8 @@ public class CityCharts extends Charts {
         keys = pstmt.getGeneratedKeys();
         if (keys.next()) {
           track.setID(keys.getInt(1));
+          TrackCatalog.register(track.getID(), track.getArtist(),
+              track.getName(), null);
         }
 
         pstmt2.setInt(1, tracks.indexOf(track) + 1);
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.data.charts;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+
+/**
+ * In-memory index language -> countries -> chart cities.
+ *
+ * The LANGUAGE_COUNTRY relation is static and CHARTS_CITY only changes when
+ * the weekly job fetches new city charts, so both are read once and resolved
+ * with map lookups afterwards. A rebuild swaps in a new immutable index;
+ * readers never see a partially built one.
+ */
+public final class CityIndex {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory.getLogger(CityIndex.class
+			.getName());
+
+	// Named queries
+	private static final Query LANGUAGE_COUNTRIES = new Query(
+			"indexLanguageCountries",
+			"SELECT DISTINCT language, country FROM language_country");
+	private static final Query COUNTRY_CITIES = new Query(
+			"indexCountryCities",
+			"SELECT DISTINCT chartscountry, chartscity FROM charts_city");
+
+	// Current index
+	private static volatile CityIndex index = null;
+
+	// Language -> countries, country -> cities
+	private final Map<String, List<String>> countries;
+	private final Map<String, List<String>> cities;
+
+	private CityIndex(Map<String, List<String>> countries,
+			Map<String, List<String>> cities) {
+		this.countries = countries;
+		this.cities = cities;
+	}
+
+	/**
+	 * Get the countries where the given languages are spoken.
+	 *
+	 * @return Distinct country names in the order of the languages
+	 */
+	public static List<String> getCountries(List<String> langs) {
+		CityIndex current = get();
+		Set<String> result = new LinkedHashSet<String>();
+		for (String lang : langs) {
+			addAll(result, current.countries.get(lang));
+		}
+		return new ArrayList<String>(result);
+	}
+
+	/**
+	 * Get the chart cities in the countries where the given languages are
+	 * spoken.
+	 *
+	 * @return Distinct city names in the order of the languages
+	 */
+	public static List<String> getCities(List<String> langs) {
+		CityIndex current = get();
+		Set<String> result = new LinkedHashSet<String>();
+		for (String lang : langs) {
+			List<String> langCountries = current.countries.get(lang);
+			if (langCountries == null)
+				continue;
+			for (String country : langCountries) {
+				addAll(result, current.cities.get(country));
+			}
+		}
+		return new ArrayList<String>(result);
+	}
+
+	/**
+	 * Read the relations from the database and replace the current index.
+	 * The current index is kept if reading fails.
+	 */
+	public static synchronized void rebuild() {
+		try {
+			Map<String, List<String>> countries = load(LANGUAGE_COUNTRIES,
+					"language", "country");
+			Map<String, List<String>> cities = load(COUNTRY_CITIES,
+					"chartscountry", "chartscity");
+			index = new CityIndex(countries, cities);
+			LOG.info("Built city index: " + countries.size() + " languages, "
+					+ cities.size() + " countries.");
+		} catch (SQLException e) {
+			LOG.warn("Couldn't build the city index.", e);
+		}
+	}
+
+	// Get the current index, building it on first use
+	private static CityIndex get() {
+		CityIndex current = index;
+		if (current == null) {
+			synchronized (CityIndex.class) {
+				if (index == null) {
+					rebuild();
+				}
+				// Don't retry on every lookup if the database is down
+				if (index == null) {
+					index = new CityIndex(
+							Collections.<String, List<String>> emptyMap(),
+							Collections.<String, List<String>> emptyMap());
+				}
+				current = index;
+			}
+		}
+		return current;
+	}
+
+	// Read a key -> values relation into an unmodifiable map
+	private static Map<String, List<String>> load(Query query,
+			final String keyColumn, final String valueColumn)
+			throws SQLException {
+		final Map<String, List<String>> map = new HashMap<String, List<String>>();
+		query.forEach(new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				String key = row.getString(keyColumn);
+				List<String> values = map.get(key);
+				if (values == null) {
+					values = new ArrayList<String>();
+					map.put(key, values);
+				}
+				values.add(row.getString(valueColumn));
+			}
+		});
+
+		for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+	private static void addAll(Set<String> result, List<String> values) {
+		if (values != null) {
+			result.addAll(values);
+		}
+	}
+}
@@ -26,7 +26,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.muse.data.social.lastfm.LastFmConnector;
+import de.muse.recommendation.CachingRepository;
 import de.muse.recommendation.MuseSong;
+import de.muse.recommendation.TrackCatalog;
 import de.muse.user.UserData;
 import de.muse.utility.Database;
 
@@ -114,6 +116,8 @@ public class NeighborCharts extends Charts implements Runnable {
         keys = pstmt.getGeneratedKeys();
         if (keys.next()) {
           track.setID(keys.getInt(1));
+          TrackCatalog.register(track.getID(), track.getArtist(),
+              track.getName(), null);
         }
 
         if (neighbor != track.getNeighbor()) {
@@ -146,6 +150,7 @@ public class NeighborCharts extends Charts implements Runnable {
   public void run() {
     getChartsFor(lfmUser);
     saveToDB();
+    CachingRepository.invalidate(lfmUser);
     LOG.info("Finished fetching neighbor Charts: " + lfmUser);
   }
 }
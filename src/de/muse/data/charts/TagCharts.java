@@ -31,7 +31,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.muse.data.social.lastfm.LastFmConnector;
+import de.muse.recommendation.CachingRepository;
 import de.muse.recommendation.MuseSong;
+import de.muse.recommendation.TrackCatalog;
 import de.muse.user.UserData;
 import de.muse.utility.Database;
 
@@ -180,6 +182,8 @@ public class TagCharts extends Charts implements Runnable {
         keys = pstmt.getGeneratedKeys();
         if (keys.next()) {
           track.setID(keys.getInt(1));
+          TrackCatalog.register(track.getID(), track.getArtist(),
+              track.getName(), null);
         }
 
         pstmt2.setInt(1, count + 1);
@@ -207,6 +211,7 @@ public class TagCharts extends Charts implements Runnable {
   public void run() {
     getChartsFor(lfmUser);
     saveToDB();
+    CachingRepository.invalidate(lfmUser);
     LOG.info("Finished fetching tag Charts: " + lfmUser);
   }
 }
@@ -30,10 +30,17 @@ import org.quartz.JobExecutionContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.muse.config.ApplicationConfig;
 import de.muse.evaluation.Evaluation;
 import de.muse.evaluation.EvaluationData;
 import de.muse.recommendation.MuseRepository;
+import de.muse.recommendation.RatingMatrix;
+import de.muse.recommendation.ListPrefetcher;
+import de.muse.recommendation.ScoreTable;
 import de.muse.recommendation.recommenders.collaborative.CollaborativeFilteringRecommender;
+import de.muse.recommendation.recommenders.collaborative.CollaborativeFilteringUpdater;
+import de.muse.recommendation.recommenders.collaborative.MatrixFactorizationRecommender;
+import de.muse.recommendation.recommenders.collaborative.UserSimilarityEngine;
 import de.muse.recommendation.recommenders.content.ContentBasedRecommender;
 import de.muse.user.Option;
 import de.muse.user.UserData;
@@ -47,6 +54,10 @@ public class DailyJob implements Job {
 	private static final Logger LOG = LoggerFactory.getLogger(DailyJob.class
 			.getName());
 
+	// Job data key choosing the CF neighbor search of a run ("exact" or
+	// "minhash"), e.g. when triggering the job by hand
+	public static final String NEIGHBOR_SEARCH = "neighborSearch";
+
 	@Override
 	public void execute(JobExecutionContext context) {
 
@@ -59,7 +70,10 @@ public class DailyJob implements Job {
 		refreshFlags();
 
 		LOG.info("Refresh recommendation data.");
-		refreshData();
+		String search = context.getMergedJobDataMap().getString(
+				NEIGHBOR_SEARCH);
+		refreshData(search != null ? search.equalsIgnoreCase("minhash")
+				: ApplicationConfig.CF_APPROXIMATE_NEIGHBORS);
 		LOG.warn("Daily Cronjob finished");
 	}
 
@@ -75,32 +89,60 @@ public class DailyJob implements Job {
 
 	// Refresh all data relations
 	public void refreshData() {
+		refreshData(ApplicationConfig.CF_APPROXIMATE_NEIGHBORS);
+	}
+
+	/**
+	 * Refresh all data relations.
+	 * 
+	 * @param approximateNeighbors
+	 *            Search the CF neighbors approximately with MinHash LSH
+	 *            instead of exactly
+	 */
+	public void refreshData(boolean approximateNeighbors) {
 		// Get all users
 		List<String> users = UserData.getAllActiveUsers();
 
+		// Merge rating changes of the day into the compressed matrix
+		RatingMatrix.compact();
+
 		// Refresh Content based user-item matrix
 		LOG.info("Refreshing content-based recommender data.");
-		Database.clearTable("user_track_score");
 		ContentBasedRecommender cb = new ContentBasedRecommender(0,
 				new MuseRepository());
-		for (String userName : users) {
-			cb.refreshUserItemMatrix(userName, 20);
-		}
+		cb.refreshUserItemMatrices(users, 20);
+		ScoreTable.CONTENT.load();
 
+		// Ratings update the CF data incrementally during the day. Recompute
+		// it completely as consistency sweep.
 		LOG.info("Refreshing collaborative-filtering recommender data.");
-		// Refresh collaborative based user-user data
-		Database.clearTable("user_similarities");
-		CollaborativeFilteringRecommender cf = new CollaborativeFilteringRecommender(
-				0, new MuseRepository());
-		for (String userName : users) {
-			cf.refreshUserSimilarities(userName);
-		}
+		CollaborativeFilteringUpdater.beginSweep();
+		UserSimilarityEngine engine = null;
+		try {
+			// Refresh collaborative based user-user data
+			CollaborativeFilteringRecommender cf = new CollaborativeFilteringRecommender(
+					0, new MuseRepository());
+			engine = cf.refreshUserSimilarities(users,
+					CollaborativeFilteringUpdater.NEIGHBORHOOD_SIZE,
+					approximateNeighbors);
 
-		// Precompute CF scores for all users
-		Database.clearTable("user_user_score");
-		for (String userName : users) {
-			cf.refreshUserItemMatrix(userName, 20);
+			// Precompute CF scores for all users
+			Database.clearTable("user_user_score");
+			for (String userName : users) {
+				cf.refreshUserItemMatrix(userName,
+						CollaborativeFilteringUpdater.NEIGHBORHOOD_SIZE);
+			}
+			ScoreTable.COLLABORATIVE.load();
+		} finally {
+			CollaborativeFilteringUpdater.endSweep(engine);
 		}
+
+		// Retrain the latent factor model on all ratings
+		LOG.info("Training matrix factorization model.");
+		MatrixFactorizationRecommender.refreshModel();
+
+		// Lists composed in advance used the old data
+		ListPrefetcher.invalidateAll();
 	}
 
 	/**
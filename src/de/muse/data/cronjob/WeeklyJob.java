@@ -31,10 +31,13 @@ import org.slf4j.LoggerFactory;
 
 import de.muse.data.charts.Charts;
 import de.muse.data.charts.CityCharts;
+import de.muse.data.charts.CityIndex;
 import de.muse.data.charts.NeighborCharts;
 import de.muse.data.charts.TagCharts;
 import de.muse.data.social.lastfm.LastFmConnector;
+import de.muse.recommendation.CachingRepository;
 import de.muse.recommendation.MuseSong;
+import de.muse.recommendation.TrackCatalog;
 import de.muse.recommendation.recommenders.content.ContentBasedRecommender;
 import de.muse.utility.Database;
 
@@ -137,6 +140,7 @@ public class WeeklyJob implements Job {
 				pstmt.setString(1, mbid);
 				pstmt.setInt(2, id);
 				pstmt.addBatch();
+				TrackCatalog.updateMbid(id, mbid);
 
 				// Only save stacks of 500 songs to the database
 				i++;
@@ -212,6 +216,7 @@ public class WeeklyJob implements Job {
 					// 2. Remove duplicate from the TRACKS table
 					pstmt.setInt(1, duplicateId);
 					pstmt.addBatch();
+					TrackCatalog.remove(duplicateId);
 					LOG.info("Deleted duplicate songs with id: " + duplicateId);
 				}
 				stmt.executeBatch();
@@ -232,6 +237,7 @@ public class WeeklyJob implements Job {
 		// Refresh music charts
 		CityCharts cCharts = new CityCharts();
 		cCharts.saveChartsForAllCities();
+		CityIndex.rebuild();
 		LOG.info("City charts refreshed");
 		NeighborCharts nCharts = new NeighborCharts();
 		nCharts.saveNeighborChartsForAllUsers();
@@ -243,6 +249,9 @@ public class WeeklyJob implements Job {
 		// Clean duplicate song data
 		cleanSongData();
 
+		// Serve the new charts
+		CachingRepository.invalidate();
+
 		// Fetch mbids
 		refreshMbids();
 
@@ -34,6 +34,10 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import de.muse.recommendation.CurrentListCache;
+import de.muse.recommendation.ListPrefetcher;
+import de.muse.recommendation.RatingMatrix;
+import de.muse.recommendation.RecommenderAffinity;
 import de.muse.user.MuseUser;
 import de.muse.user.Option;
 import de.muse.utility.Database;
@@ -178,6 +182,10 @@ public class EvaluationData {
 
 			// Commit transaction
 			conn.commit();
+			RatingMatrix.invalidate(name);
+			RecommenderAffinity.invalidate(name);
+			CurrentListCache.invalidate(name);
+			ListPrefetcher.invalidate(name);
 		} catch (SQLException e) {
 			LOG.warn("- Rollback - Removing participant " + name + " failed.",
 					e);
@@ -219,6 +227,7 @@ public class EvaluationData {
 
 			// Commit transaction
 			conn.commit();
+			ListPrefetcher.invalidate(name);
 		} catch (SQLException e) {
 			LOG.warn("- Rollback - Moving participant " + name + " failed.", e);
 			Database.quietRollback(conn);
@@ -26,6 +26,7 @@ import java.util.List;
 
 import de.muse.api.Recommendation;
 import de.muse.recommendation.MuseRecommendation;
+import de.muse.recommendation.RatingMatrix;
 import de.muse.user.MuseUser;
 import de.muse.utility.Database;
 
@@ -119,6 +120,7 @@ public class ExperimentData {
       pstmt.setInt(3, listRating);
       pstmt.setDate(4, listDate);
       pstmt.execute();
+      RatingMatrix.invalidate(name);
 
     } finally {
       Database.quietClose(conn, pstmt, result);
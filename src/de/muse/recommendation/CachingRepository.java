@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.api.Song;
+import de.muse.api.User;
+import de.muse.config.ApplicationConfig;
+
+/**
+ * Data repository caching the music charts read by the chart recommenders.
+ *
+ * Chart tables only change when the weekly job refreshes them (or when the
+ * charts of a newly registered Last.fm account are fetched), so lookups are
+ * served from a bounded LRU cache shared by all instances. The weekly job
+ * swaps in an empty cache once the new charts are written; loads that started
+ * before the swap end up in the discarded cache.
+ *
+ * Callers get their own copies of the cached lists and maps. Empty results
+ * are not cached.
+ */
+public class CachingRepository extends MuseRepository {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CachingRepository.class.getName());
+
+	// Current cache generation
+	private static volatile Generation cache = new Generation(
+			ApplicationConfig.CHART_CACHE_SIZE);
+
+	// Statistics
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Bounded LRU map of one cache generation.
+	 */
+	private static final class Generation {
+		private final LinkedHashMap<String, Object> entries;
+
+		Generation(final int maxSize) {
+			entries = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, Object> eldest) {
+					return size() > maxSize;
+				}
+			};
+		}
+
+		synchronized Object get(String key) {
+			return entries.get(key);
+		}
+
+		// Empty results are not cached: they may stem from a failed query or
+		// from charts that are still being fetched
+		synchronized void put(String key, Object value) {
+			if (value instanceof Collection && ((Collection<?>) value).isEmpty())
+				return;
+			if (value instanceof Map && ((Map<?, ?>) value).isEmpty())
+				return;
+			entries.put(key, value);
+		}
+
+		synchronized void remove(String key) {
+			entries.remove(key);
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Drop all cached charts. Called after the chart tables were refreshed.
+	 */
+	public static void invalidate() {
+		Generation old = cache;
+		cache = new Generation(ApplicationConfig.CHART_CACHE_SIZE);
+		LOG.info("Invalidated chart cache. Entries: " + old.size() + ", hits: "
+				+ hits.get() + ", misses: " + misses.get());
+	}
+
+	/**
+	 * Drop the cached tag and neighbor charts of a Last.fm account.
+	 */
+	public static void invalidate(String lfmAccount) {
+		Generation current = cache;
+		current.remove("tag:" + lfmAccount);
+		current.remove("neighbor:" + lfmAccount);
+	}
+
+	@Override
+	public List<Song> getAnnualCharts(int year) {
+		String key = "year:" + year;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		List<Song> charts = (List<Song>) lookup(current, key);
+		if (charts == null) {
+			charts = super.getAnnualCharts(year);
+			current.put(key, charts);
+		}
+		return new ArrayList<Song>(charts);
+	}
+
+	@Override
+	public HashMap<Integer, List<Song>> getAnnualCharts(int yearStart,
+			int yearEnd) {
+		String key = "years:" + yearStart + "-" + yearEnd;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		HashMap<Integer, List<Song>> charts = (HashMap<Integer, List<Song>>) lookup(
+				current, key);
+		if (charts == null) {
+			charts = super.getAnnualCharts(yearStart, yearEnd);
+			current.put(key, charts);
+		}
+		return copy(charts);
+	}
+
+	@Override
+	public List<Song> getRegionalCharts(String region) {
+		String key = "region:" + region;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		List<Song> charts = (List<Song>) lookup(current, key);
+		if (charts == null) {
+			charts = super.getRegionalCharts(region);
+			current.put(key, charts);
+		}
+		return new ArrayList<Song>(charts);
+	}
+
+	@Override
+	public HashMap<String, List<Song>> getRegionalCharts(List<String> regions) {
+		String key = "regions:" + regions;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		HashMap<String, List<Song>> charts = (HashMap<String, List<Song>>) lookup(
+				current, key);
+		if (charts == null) {
+			charts = super.getRegionalCharts(regions);
+			current.put(key, charts);
+		}
+		return copy(charts);
+	}
+
+	@Override
+	public List<Song> getCityCharts(String city) {
+		String key = "city:" + city;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		List<Song> charts = (List<Song>) lookup(current, key);
+		if (charts == null) {
+			charts = super.getCityCharts(city);
+			current.put(key, charts);
+		}
+		return new ArrayList<Song>(charts);
+	}
+
+	@Override
+	public HashMap<String, List<Song>> getCityCharts(List<String> cities) {
+		String key = "cities:" + cities;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		HashMap<String, List<Song>> charts = (HashMap<String, List<Song>>) lookup(
+				current, key);
+		if (charts == null) {
+			charts = super.getCityCharts(cities);
+			current.put(key, charts);
+		}
+		return copy(charts);
+	}
+
+	@Override
+	public HashMap<String, List<Song>> getTagCharts(User user) {
+		String lfmAccount = user.getLfmaccount();
+		if (lfmAccount == null || lfmAccount.isEmpty())
+			return new HashMap<String, List<Song>>();
+
+		String key = "tag:" + lfmAccount;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		HashMap<String, List<Song>> charts = (HashMap<String, List<Song>>) lookup(
+				current, key);
+		if (charts == null) {
+			charts = super.getTagCharts(user);
+			current.put(key, charts);
+		}
+		return copy(charts);
+	}
+
+	@Override
+	public HashMap<String, List<Song>> getNeighborCharts(User user) {
+		String lfmAccount = user.getLfmaccount();
+		if (lfmAccount == null || lfmAccount.isEmpty())
+			return new HashMap<String, List<Song>>();
+
+		String key = "neighbor:" + lfmAccount;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		HashMap<String, List<Song>> charts = (HashMap<String, List<Song>>) lookup(
+				current, key);
+		if (charts == null) {
+			charts = super.getNeighborCharts(user);
+			current.put(key, charts);
+		}
+		return copy(charts);
+	}
+
+	@Override
+	public List<SimpleEntry<Integer, Integer>> getSongCityCount(
+			List<String> cities) {
+		String key = "cityCount:" + cities;
+		Generation current = cache;
+		@SuppressWarnings("unchecked")
+		List<SimpleEntry<Integer, Integer>> counts = (List<SimpleEntry<Integer, Integer>>) lookup(
+				current, key);
+		if (counts == null) {
+			counts = super.getSongCityCount(cities);
+			current.put(key, counts);
+		}
+		return new ArrayList<SimpleEntry<Integer, Integer>>(counts);
+	}
+
+	// Look up a key and count hits and misses
+	private static Object lookup(Generation current, String key) {
+		Object value = current.get(key);
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	// Copy a chart map so callers can't modify the cached lists
+	private static <K> HashMap<K, List<Song>> copy(HashMap<K, List<Song>> charts) {
+		HashMap<K, List<Song>> copy = new HashMap<K, List<Song>>(
+				charts.size() * 2);
+		for (Map.Entry<K, List<Song>> entry : charts.entrySet()) {
+			copy.put(entry.getKey(), new ArrayList<Song>(entry.getValue()));
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.muse.config.ApplicationConfig;
+
+/**
+ * Bounded LRU cache of the current recommendation list of each user.
+ *
+ * Saving a new list writes it through to the cache. Lists loaded from the
+ * database are only cached if nothing changed for the user while loading,
+ * and a list never replaces a newer one, so concurrently created lists of a
+ * user end up as the one with the highest list id. Invalidated entries keep
+ * their list id for this purpose. Entries not read for the configured idle
+ * time are dropped on access. Recommendations are copied on the way in and
+ * out, so callers may change them.
+ */
+public final class CurrentListCache {
+	// Logical clock of the changes to the cache
+	private static long clock = 0;
+
+	// User name -> current list, guarded by the class
+	private static final LinkedHashMap<String, CachedList> entries = new LinkedHashMap<String, CachedList>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, CachedList> eldest) {
+			return size() > ApplicationConfig.LIST_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * The current list of a user. Recommendations are null once the entry
+	 * was invalidated.
+	 */
+	private static final class CachedList {
+		final int list;
+		final List<MuseRecommendation> recommendations;
+		final long changed;
+		long accessed;
+
+		CachedList(int list, List<MuseRecommendation> recommendations,
+				long changed) {
+			this.list = list;
+			this.recommendations = recommendations;
+			this.changed = changed;
+			this.accessed = System.currentTimeMillis();
+		}
+	}
+
+	private CurrentListCache() {
+	}
+
+	/**
+	 * Get the cached current list of a user.
+	 *
+	 * @return A copy of the list or null if it isn't cached
+	 */
+	public static synchronized List<MuseRecommendation> get(String user) {
+		String key = user.toLowerCase();
+		CachedList entry = entries.get(key);
+		if (entry == null || entry.recommendations == null)
+			return null;
+
+		long now = System.currentTimeMillis();
+		if (now - entry.accessed > ApplicationConfig.LIST_CACHE_IDLE) {
+			entries.remove(key);
+			return null;
+		}
+		entry.accessed = now;
+		return copy(entry.recommendations);
+	}
+
+	/**
+	 * Get the current time of the cache. Pass it to
+	 * {@link #putLoaded(String, int, List, long)} after loading a list.
+	 */
+	public static synchronized long stamp() {
+		return clock;
+	}
+
+	/**
+	 * Cache a newly saved list of a user unless a newer list is cached.
+	 */
+	public static synchronized void put(String user, int list,
+			List<MuseRecommendation> recommendations) {
+		String key = user.toLowerCase();
+		CachedList entry = entries.get(key);
+		if (entry != null && entry.list > list)
+			return;
+		entries.put(key, new CachedList(list, copy(recommendations), ++clock));
+	}
+
+	/**
+	 * Cache a list loaded from the database unless the user's entry changed
+	 * after the given stamp. Empty lists are not cached.
+	 *
+	 * @param since
+	 *            The {@link #stamp()} taken before loading
+	 */
+	public static synchronized void putLoaded(String user, int list,
+			List<MuseRecommendation> recommendations, long since) {
+		if (recommendations.isEmpty())
+			return;
+		String key = user.toLowerCase();
+		CachedList entry = entries.get(key);
+		if (entry != null && (entry.changed > since || entry.list > list))
+			return;
+		entries.put(key, new CachedList(list, copy(recommendations), ++clock));
+	}
+
+	/**
+	 * Drop the cached list of a user, e.g. after the list was rated or its
+	 * recommendations were deleted.
+	 */
+	public static synchronized void invalidate(String user) {
+		String key = user.toLowerCase();
+		CachedList entry = entries.get(key);
+		int list = entry != null ? entry.list : -1;
+		entries.put(key, new CachedList(list, null, ++clock));
+	}
+
+	private static List<MuseRecommendation> copy(
+			List<MuseRecommendation> recommendations) {
+		List<MuseRecommendation> copies = new ArrayList<MuseRecommendation>(
+				recommendations.size());
+		for (MuseRecommendation rec : recommendations) {
+			copies.add(new MuseRecommendation(rec));
+		}
+		return copies;
+	}
+}
@@ -15,30 +15,45 @@
  */
 package de.muse.recommendation;
 
-import java.sql.Connection;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.muse.api.Recommendation;
 import de.muse.api.Recommender;
+import de.muse.api.Song;
+import de.muse.config.ApplicationConfig;
 import de.muse.config.RecommenderConfig;
 import de.muse.user.MuseUser;
-import de.muse.utility.Database;
-import de.muse.utility.MathHelper;
+import de.muse.utility.TopK;
 
 /**
  * 
  * Takes care of composing recommendations of different recommendations to a
  * list of recommendations.
  * 
+ * The recommenders of a list are called concurrently on a bounded thread
+ * pool. The list is composed of the recommenders that answer within the
+ * deadline; the others are counted in {@link #getTimeouts()}.
+ * 
  */
 public class ListComposer {
 	// Configured logger
@@ -48,6 +63,33 @@ public class ListComposer {
 	// Fixed number of recommendations to make
 	private static final int n = 10;
 
+	// Threads calling the recommenders, requests beyond the queue are rejected
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			ApplicationConfig.RECOMMENDER_THREADS,
+			ApplicationConfig.RECOMMENDER_THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(
+					ApplicationConfig.RECOMMENDER_THREADS * 16),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "recommender-"
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	// Deadline of the recommender call running on the current thread
+	private static final ThreadLocal<Long> callDeadline = new ThreadLocal<Long>();
+
+	// Recommender id -> number of calls that missed the deadline
+	private static final ConcurrentHashMap<Integer, AtomicInteger> timeouts = new ConcurrentHashMap<Integer, AtomicInteger>();
+
 	/**
 	 * 
 	 * Creates a list of recommendations for a given user. Contains n
@@ -62,108 +104,213 @@ public class ListComposer {
 	 * @param ids
 	 *            An array that contains the ids of the recommenders that are to
 	 *            be used for the recommendations.
+	 * @return False if no recommender answered in time. No list is saved
+	 *         then.
+	 */
+	public static boolean createRecommendationList(MuseUser user,
+			String behavior, int evalId, ArrayList<Integer> ids)
+			throws SQLException {
+		List<Recommendation> recommendations = composeRecommendationList(
+				user, behavior, ids);
+		if (recommendations.isEmpty()) {
+			LOG.warn("Got no recommendations for user: " + user.getName());
+			return false;
+		}
+
+		// Save recommendations to database
+		RecommenderData.putRecommendations(user.getName(), recommendations,
+				evalId);
+		return true;
+	}
+
+	/**
+	 * Compose a list of n recommendations for a given user without saving
+	 * it.
+	 * 
+	 * @see #createRecommendationList(MuseUser, String, int, ArrayList)
 	 */
-	public static void createRecommendationList(MuseUser user, String behavior,
-			int evalId, ArrayList<Integer> ids) throws SQLException {
+	public static List<Recommendation> composeRecommendationList(
+			MuseUser user, String behavior, ArrayList<Integer> ids) {
 		List<Recommendation> recommendations = new ArrayList<Recommendation>();
 
-		// Get available recommenders
-		HashMap<Integer, Recommender> recommenders = RecommenderConfig
-				.getRecommenders();
+		// Get the recommendations of all recommenders answering in time
+		Map<Integer, List<Recommendation>> recMap = fetchRecommendations(user,
+				RecommenderConfig.getRecommenders(), ids);
 
 		// If only one recommender is to be used.
-		if (ids.size() == 1) {
+		if (recMap.size() == 1) {
 			// Create n recommendations and save them to the database.
-			Recommender recommender = recommenders.get(ids.get(0));
-			recommendations = recommender.getRecommendations(user, n);
+			recommendations = recMap.values().iterator().next();
+			if (recommendations.size() > n) {
+				recommendations = recommendations.subList(0, n);
+			}
 		}
 
 		// A: behavior set to "mixed"
 		else if (behavior.equals("mixed")) {
-			recommendations = createMixedList(user, behavior, recommenders, ids);
+			recommendations = createMixedList(recMap);
 		}
 
 		// B: behavior set to "dynamic"
 		else if (behavior.equals("dynamic")) {
-			recommendations = createDynamicList(user, behavior, recommenders,
-					ids);
+			recommendations = createDynamicList(user, recMap);
 		}
 
 		// C: behavior set to "weighted"
 		else if (behavior.equals("weighted")) {
-			recommendations = createWeightedList(user, behavior, recommenders,
-					ids);
+			recommendations = createWeightedList(recMap);
 		}
+		return recommendations;
+	}
 
-		// Save recommendations to database
-		RecommenderData.putRecommendations(user.getName(), recommendations,
-				evalId);
+	/**
+	 * Get the number of calls per recommender that missed the deadline since
+	 * the application started.
+	 * 
+	 * @return Map of Recommender ID -> number of timeouts
+	 */
+	public static Map<Integer, Integer> getTimeouts() {
+		Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+		for (Map.Entry<Integer, AtomicInteger> entry : timeouts.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
 	}
 
 	/**
-	 * Compose a list of recommendations for a given user such that each
-	 * recommender can provide euqally many recommendations to the list.
+	 * Get the deadline of the recommender call running on the current thread,
+	 * so recommenders waiting on others can stay within it. Outside of a
+	 * composed list this is a full recommender timeout from now.
+	 * 
+	 * @return The deadline in milliseconds since the epoch
 	 */
-	private static List<Recommendation> createMixedList(MuseUser user,
-			String behavior, HashMap<Integer, Recommender> recommenders,
-			ArrayList<Integer> ids) {
-		List<Recommendation> recommendations = new ArrayList<Recommendation>();
-		HashMap<Integer, List<Recommendation>> recMap = new HashMap<Integer, List<Recommendation>>();
+	public static long getDeadline() {
+		Long deadline = callDeadline.get();
+		return deadline != null ? deadline : System.currentTimeMillis()
+				+ ApplicationConfig.RECOMMENDER_TIMEOUT;
+	}
 
-		// Get n recommendations of each recommender
-		int count = (int) Math.floor(n / ids.size());
+	/**
+	 * Call the given recommenders concurrently for n recommendations each and
+	 * collect the lists of those answering within the deadline.
+	 * 
+	 * @return Map of Recommender ID -> recommendations in the order of the ids
+	 */
+	private static Map<Integer, List<Recommendation>> fetchRecommendations(
+			final MuseUser user, HashMap<Integer, Recommender> recommenders,
+			List<Integer> ids) {
+		final long deadline = System.currentTimeMillis()
+				+ ApplicationConfig.RECOMMENDER_TIMEOUT;
+		Map<Integer, Future<List<Recommendation>>> futures = new LinkedHashMap<Integer, Future<List<Recommendation>>>();
 		for (int id : ids) {
-			Recommender recommender = recommenders.get(id);
-			List<Recommendation> recs = recommender.getRecommendations(user, n);
-
-			// Check if the recommender created enough recommendations
-			if (recs.size() <= count) {
-				recommendations.addAll(recs);
-			} else {
-				recommendations.addAll(recs.subList(0, count));
-				recMap.put(id, recs.subList(count, recs.size()));
+			final Recommender recommender = recommenders.get(id);
+			if (recommender == null) {
+				LOG.warn("Recommender " + id + " is not available.");
+				continue;
+			}
+			try {
+				futures.put(id, executor
+						.submit(new Callable<List<Recommendation>>() {
+							@Override
+							public List<Recommendation> call() {
+								callDeadline.set(deadline);
+								try {
+									return recommender.getRecommendations(
+											user, n);
+								} finally {
+									callDeadline.remove();
+								}
+							}
+						}));
+			} catch (RejectedExecutionException e) {
+				LOG.warn("Recommender " + id + " skipped, all threads busy.");
+				recordTimeout(id);
 			}
 		}
 
-		// Make sure wanted number of recommendations are created
-		while (recommendations.size() < n && recMap.size() > 0) {
-			// Count open slots and evenly distribute to each recommender
-			int diff = n - recommendations.size();
-			count = (int) Math.floor(diff / recMap.size());
-			count = (count == 0) ? 1 : count;
-			Integer[] recMapKeys = recMap.keySet().toArray(
-					new Integer[recMap.size()]);
-
-			// Add recommendations
-			for (int i = 0; i < recMapKeys.length; i++) {
-				// Check if the list is full (corner case)
-				if (recommendations.size() == n) {
-					break;
-				}
-				int id = recMapKeys[i];
-
-				// Check if the recommender has enough recommendations
-				if (recMap.get(id).size() <= count) {
-					recommendations.addAll(recMap.get(id));
-				} else {
-					List<Recommendation> addRecs = new ArrayList<Recommendation>(
-							recMap.get(id).subList(0, count));
-					recommendations.addAll(addRecs);
-					recMap.get(id).removeAll(addRecs);
+		Map<Integer, List<Recommendation>> recMap = new LinkedHashMap<Integer, List<Recommendation>>();
+		for (Map.Entry<Integer, Future<List<Recommendation>>> entry : futures
+				.entrySet()) {
+			int id = entry.getKey();
+			Future<List<Recommendation>> future = entry.getValue();
+			try {
+				long remaining = Math.max(0,
+						deadline - System.currentTimeMillis());
+				List<Recommendation> recs = future.get(remaining,
+						TimeUnit.MILLISECONDS);
+				if (recs != null) {
+					recMap.put(id, recs);
 				}
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				recordTimeout(id);
+				LOG.warn("Recommender " + id + " missed the deadline of "
+						+ ApplicationConfig.RECOMMENDER_TIMEOUT + " ms.");
+			} catch (ExecutionException e) {
+				LOG.warn("Recommender " + id + " failed.", e.getCause());
+			} catch (InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+			}
+		}
+		return recMap;
+	}
+
+	private static void recordTimeout(int id) {
+		AtomicInteger count = timeouts.get(id);
+		if (count == null) {
+			AtomicInteger created = new AtomicInteger();
+			count = timeouts.putIfAbsent(id, created);
+			if (count == null) {
+				count = created;
 			}
+		}
+		count.incrementAndGet();
+	}
 
-			// Remove empty lists from the map
-			for (int id : recMapKeys) {
-				if (recMap.get(id).isEmpty()) {
-					recMap.remove(id);
+	/**
+	 * Compose a list of recommendations for a given user such that each
+	 * recommender can provide euqally many recommendations to the list.
+	 * Places of missing recommenders go to the others.
+	 */
+	static List<Recommendation> createMixedList(
+			Map<Integer, List<Recommendation>> recMap) {
+		if (recMap.isEmpty())
+			return new ArrayList<Recommendation>();
+
+		List<List<Recommendation>> lists = new ArrayList<List<Recommendation>>(
+				recMap.values());
+		// Position of the next candidate of each recommender
+		int[] next = new int[lists.size()];
+		Selection selection = new Selection(n, n);
+
+		// Each recommender gets an equal share, open places are then spread
+		// evenly over the recommenders with candidates left
+		int count = n / lists.size();
+		int open = lists.size();
+		while (selection.size() < n && open > 0) {
+			open = 0;
+			for (int i = 0; i < lists.size() && selection.size() < n; i++) {
+				List<Recommendation> recs = lists.get(i);
+				int added = 0;
+				while (added < count && next[i] < recs.size()
+						&& selection.size() < n) {
+					Recommendation rec = recs.get(next[i]++);
+					if (selection.add(rec, rec.getScore())) {
+						added++;
+					}
+				}
+				if (next[i] < recs.size()) {
+					open++;
 				}
 			}
+			if (open > 0) {
+				count = Math.max(1, (n - selection.size()) / open);
+			}
 		}
 
 		// Sort list according to recommendations score
-		Collections.sort(recommendations, Collections.reverseOrder());
-		return recommendations;
+		return selection.select();
 	}
 
 	/**
@@ -171,19 +318,15 @@ public class ListComposer {
 	 * with the highest predicted rating of all recommendations from the given
 	 * recommenders.
 	 */
-	private static List<Recommendation> createWeightedList(MuseUser user,
-			String behavior, HashMap<Integer, Recommender> recommenders,
-			ArrayList<Integer> ids) {
-		List<Recommendation> recommendations = new ArrayList<Recommendation>();
-
-		// Get n recommendations of each recommender
-		for (int id : ids) {
-			Recommender recommender = recommenders.get(id);
-			recommendations.addAll(recommender.getRecommendations(user, n));
+	static List<Recommendation> createWeightedList(
+			Map<Integer, List<Recommendation>> recMap) {
+		Selection selection = new Selection(n, n * recMap.size());
+		for (List<Recommendation> recs : recMap.values()) {
+			for (Recommendation rec : recs) {
+				selection.add(rec, rec.getScore());
+			}
 		}
-		Collections.sort(recommendations, Collections.reverseOrder());
-		recommendations = recommendations.subList(0, n);
-		return recommendations;
+		return selection.select();
 	}
 
 	/**
@@ -191,132 +334,109 @@ public class ListComposer {
 	 * list places to match the user preferences.
 	 */
 	private static List<Recommendation> createDynamicList(MuseUser user,
-			String behavior, HashMap<Integer, Recommender> recommenders,
-			ArrayList<Integer> ids) {
-		List<Recommendation> result = new ArrayList<Recommendation>();
-		List<Recommendation> recommendations = new ArrayList<Recommendation>();
-
-		// Get n recommendations of each recommender
-		for (int id : ids) {
-			Recommender recommender = recommenders.get(id);
-			recommendations.addAll(recommender.getRecommendations(user, n));
+			Map<Integer, List<Recommendation>> recMap) {
+		Map<Integer, Double> scores = new HashMap<Integer, Double>();
+		for (int id : recMap.keySet()) {
+			scores.put(id, RecommenderAffinity.getScore(user.getName(), id));
 		}
-		Collections.sort(recommendations, Collections.reverseOrder());
+		return createDynamicList(scores, recMap);
+	}
 
-		// Compute scores based on users rating for each recommender
-		HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
-		for (int id : ids) {
-			List<Integer> ratings = computeWeightedRatings(user.getName(), id);
-			// Check if there are any ratings
-			if (ratings.size() == 0)
-				scores.put(id, 0.0);
-
-			// If so compute the score for the current recommender
-			int sum = MathHelper.getSumOfInts(ratings);
-			double score = (double) sum / (2 * ratings.size());
-			scores.put(id, score);
+	/**
+	 * Compose a dynamic list with the given score of each recommender.
+	 * 
+	 * @see #createDynamicList(MuseUser, Map)
+	 */
+	static List<Recommendation> createDynamicList(
+			Map<Integer, Double> recommenderScores,
+			Map<Integer, List<Recommendation>> recMap) {
+		// Order recommendations by weighting their scores with the score of
+		// their recommender (Order by score = recommendationScore *
+		// recommenderScore). The recommendations keep their original score.
+		Selection selection = new Selection(n, n * recMap.size());
+		for (Map.Entry<Integer, List<Recommendation>> entry : recMap
+				.entrySet()) {
+			double recommenderScore = recommenderScores.get(entry.getKey());
+			for (Recommendation rec : entry.getValue()) {
+				selection.add(rec, recommenderScore * rec.getScore());
+			}
 		}
+		return selection.select();
+	}
 
-		// Order recommendation list by weighting recommendations scores
-		// with belonging recommender score (Order by score =
-		// recommendationScore * recommenderScore)
-		List<Recommendation> recOrder = new ArrayList<Recommendation>();
-		recOrder = duplicateList(recommendations);
-		for (Recommendation rec : recOrder) {
-			int recommenderID = rec.getRecommenderID();
-			double recommenderScore = scores.get(recommenderID);
-			double recommendationScore = rec.getScore();
-
-			// Compute new score for the recommendation
-			((MuseRecommendation) rec).setScore(recommenderScore
-					* recommendationScore);
+	/**
+	 * Candidates of a list, one per track, of which the best ones by a given
+	 * score are selected. A track offered several times keeps its best
+	 * recommendation. The recommendations themselves are not copied.
+	 */
+	private static final class Selection {
+		private final int places;
+		// Track -> position of its candidate
+		private final HashMap<Object, Integer> positions;
+		private Recommendation[] candidates;
+		private double[] scores;
+		private int size = 0;
+
+		Selection(int places, int expected) {
+			this.places = places;
+			int capacity = Math.max(expected, 1);
+			positions = new HashMap<Object, Integer>(capacity * 2);
+			candidates = new Recommendation[capacity];
+			scores = new double[capacity];
 		}
 
-		// Sort list according to recommendations score and take the top n
-		// recommendations
-		Collections.sort(recOrder, Collections.reverseOrder());
-		recOrder = recOrder.subList(0, n);
-
-		// Map recommendations to recommendations with original score
-		for (Recommendation rec : recOrder) {
-			for (Recommendation recAlt : recommendations) {
-				if (rec.equals(recAlt)) {
-					result.add(recAlt);
-					break;
+		/**
+		 * Offer a candidate.
+		 * 
+		 * @return True if the track wasn't offered before
+		 */
+		boolean add(Recommendation rec, double score) {
+			Object track = getTrack(rec);
+			Integer position = positions.get(track);
+			if (position != null) {
+				if (score > scores[position]) {
+					candidates[position] = rec;
+					scores[position] = score;
 				}
+				return false;
 			}
-		}
 
-		return result;
-	}
-
-	private static List<Recommendation> duplicateList(List<Recommendation> recs) {
-		List<Recommendation> recommendations = new ArrayList<Recommendation>();
-
-		// Create new object for each object in the list and add it to a new
-		// list
-		for (Recommendation rec : recs) {
-			MuseRecommendation recNew = new MuseRecommendation();
-			recNew.setSong(rec.getSong());
-			recNew.setRecommenderID(rec.getRecommenderID());
-			recNew.setScore(rec.getScore());
-			recommendations.add(recNew);
+			if (size == candidates.length) {
+				candidates = Arrays.copyOf(candidates, size * 2);
+				scores = Arrays.copyOf(scores, size * 2);
+			}
+			positions.put(track, size);
+			candidates[size] = rec;
+			scores[size++] = score;
+			return true;
 		}
-		return recommendations;
-	}
 
-	/**
-	 * Get the ratings of a certain user and a certain recommender. The ratings
-	 * will be weighted in the sense that the ratings of the last two lists are
-	 * included twice.
-	 * 
-	 * @param name
-	 *            Name of the user
-	 * @param recommenderID
-	 *            ID of the recommender
-	 * @return List of ratings as integers
-	 */
-	private static List<Integer> computeWeightedRatings(String name,
-			int recommenderID) {
-		List<Integer> ratings = new ArrayList<Integer>();
-
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
-		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String query = "SELECT rating, list FROM recommendation WHERE consumer='"
-					+ name
-					+ "' AND recommender_id= "
-					+ recommenderID
-					+ " ORDER BY list DESC";
-			result = stmt.executeQuery(query);
-			// Save ratings to the list of integers and include the last to
-			// lists two times to weight them in the score
-			int currentList = 0;
-			while (result.next()) {
-				int rating = result.getInt("rating");
-				int list = result.getInt("list");
-
-				// Include the last two list two times
-				if (currentList - list <= 2) {
-					ratings.add(rating);
-					ratings.add(rating);
-				}
-				// After the last two lists just add the single ratings
-				else {
-					ratings.add(rating);
-				}
+		int size() {
+			return size;
+		}
 
+		/**
+		 * Get the best candidates ordered by score DESC.
+		 */
+		List<Recommendation> select() {
+			TopK best = new TopK(Math.max(places, 1));
+			for (int i = 0; i < size; i++) {
+				best.offer(i, scores[i]);
+			}
+			best.sort();
+			List<Recommendation> recommendations = new ArrayList<Recommendation>(
+					best.size());
+			for (int i = 0; i < best.size(); i++) {
+				recommendations.add(candidates[best.getId(i)]);
 			}
-		} catch (SQLException e) {
-			LOG.warn("Couldn't get weighted ratings.", e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
+			return recommendations;
+		}
+
+		// Songs are equal if artist and name are. The id isn't used since
+		// MuseSong queries it lazily.
+		private static Object getTrack(Recommendation rec) {
+			Song song = rec.getSong();
+			return song != null ? song : rec;
 		}
-		return ratings;
 	}
 }
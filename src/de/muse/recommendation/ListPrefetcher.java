@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.api.Recommendation;
+import de.muse.config.ApplicationConfig;
+import de.muse.evaluation.EvaluationData;
+import de.muse.user.MuseUser;
+import de.muse.user.Option;
+import de.muse.user.UserData;
+
+/**
+ * Composes the next recommendation list of a user in the background after
+ * the current one was rated, so creating the next list only has to save it.
+ *
+ * A pending list is only handed out if it was composed with the options and
+ * the evaluation the user has when asking for it. Changing the options or
+ * the evaluation group of a user, new ratings, saving a list by other means
+ * and the daily refresh of the recommender data make pending lists stale.
+ *
+ * The next list is scheduled once the rating writer has applied the ratings
+ * of the current one, so it reflects them. Submitting the ratings registers
+ * the list as expected, and a list requested right after rating waits for it
+ * at most the recommender timeout before composing one directly.
+ */
+public final class ListPrefetcher {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ListPrefetcher.class.getName());
+
+	// Threads composing the lists, requests beyond the queue are dropped
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			2, 2, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(1000), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "list-prefetch-"
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	// User name -> pending list
+	private static final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+	// User name -> generation, increased whenever pending lists get stale
+	private static final ConcurrentHashMap<String, AtomicInteger> generations = new ConcurrentHashMap<String, AtomicInteger>();
+	// User name -> expected list, done once the next composition ended
+	private static final ConcurrentHashMap<String, FutureTask<Void>> expected = new ConcurrentHashMap<String, FutureTask<Void>>();
+
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	/**
+	 * A list composed in advance and the settings it was composed with.
+	 */
+	private static final class Pending {
+		final int generation;
+		final String behavior;
+		final List<Integer> ids;
+		final int evalId;
+		final List<Recommendation> recommendations;
+
+		Pending(int generation, String behavior, List<Integer> ids,
+				int evalId, List<Recommendation> recommendations) {
+			this.generation = generation;
+			this.behavior = behavior;
+			this.ids = ids;
+			this.evalId = evalId;
+			this.recommendations = recommendations;
+		}
+
+		boolean matches(String behavior, List<Integer> ids, int evalId) {
+			return this.behavior.equals(behavior) && this.ids.equals(ids)
+					&& this.evalId == evalId;
+		}
+	}
+
+	private ListPrefetcher() {
+	}
+
+	/**
+	 * Compose the next list of a user in the background, e.g. after the
+	 * current list was rated. Replaces a pending list of the user.
+	 */
+	public static void schedule(String name) {
+		if (!ApplicationConfig.LIST_PREFETCH)
+			return;
+
+		final String user = name.toLowerCase();
+		final int generation = invalidate(user);
+		final FutureTask<Void> flight = expected.get(user);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compose(user, generation);
+					} finally {
+						land(flight);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOG.warn("Prefetch queue full, skipped next list of user: " + user);
+			land(flight);
+		}
+	}
+
+	/**
+	 * Expect the next list of a user, e.g. when the ratings of the current
+	 * list are submitted. {@link #take(String, String, List, int)} waits for
+	 * the list scheduled next.
+	 */
+	public static void expect(String name) {
+		if (!ApplicationConfig.LIST_PREFETCH)
+			return;
+		String user = name.toLowerCase();
+		FutureTask<Void> flight = new FutureTask<Void>(NOTHING, null);
+		FutureTask<Void> current = expected.putIfAbsent(user, flight);
+		if (current != null && current.isDone()) {
+			expected.replace(user, current, flight);
+		}
+	}
+
+	/**
+	 * Stop expecting the next list of a user, e.g. when submitting the
+	 * ratings failed.
+	 */
+	public static void unexpect(String name) {
+		FutureTask<Void> flight = expected.remove(name.toLowerCase());
+		land(flight);
+	}
+
+	// Release the requests waiting for a list
+	private static void land(FutureTask<Void> flight) {
+		if (flight != null) {
+			flight.run();
+		}
+	}
+
+	// Wait until the expected list of a user is composed or the recommender
+	// timeout passed
+	private static void awaitExpected(String user) {
+		FutureTask<Void> flight = expected.get(user);
+		if (flight == null)
+			return;
+		try {
+			flight.get(ApplicationConfig.RECOMMENDER_TIMEOUT,
+					TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			LOG.info("Prefetched list of user not ready in time: " + user);
+		} catch (ExecutionException e) {
+			// The flight itself does nothing
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			expected.remove(user, flight);
+		}
+	}
+
+	/**
+	 * Take the pending list of a user if it was composed with the given
+	 * settings. Waits for an expected list first. The pending list is dropped
+	 * in any case.
+	 *
+	 * @return The recommendations or null if there is no matching list
+	 */
+	public static List<Recommendation> take(String name, String behavior,
+			List<Integer> ids, int evalId) {
+		String user = name.toLowerCase();
+		awaitExpected(user);
+		Pending list = pending.remove(user);
+		if (list == null)
+			return null;
+		if (list.generation != getGeneration(user)
+				|| !list.matches(behavior, ids, evalId)) {
+			LOG.info("Dropped stale prefetched list of user: " + user);
+			return null;
+		}
+		return list.recommendations;
+	}
+
+	/**
+	 * Drop the pending list of a user, e.g. after the options or the
+	 * evaluation group of the user changed. Lists being composed are
+	 * dropped when they are done.
+	 *
+	 * @return The new generation of the user
+	 */
+	public static int invalidate(String name) {
+		String user = name.toLowerCase();
+		AtomicInteger generation = generations.get(user);
+		if (generation == null) {
+			AtomicInteger created = new AtomicInteger();
+			generation = generations.putIfAbsent(user, created);
+			if (generation == null) {
+				generation = created;
+			}
+		}
+		int next = generation.incrementAndGet();
+		pending.remove(user);
+		return next;
+	}
+
+	/**
+	 * Drop the pending lists of all users, e.g. after the recommender data
+	 * was refreshed.
+	 */
+	public static void invalidateAll() {
+		for (AtomicInteger generation : generations.values()) {
+			generation.incrementAndGet();
+		}
+		pending.clear();
+	}
+
+	private static int getGeneration(String user) {
+		AtomicInteger generation = generations.get(user);
+		return generation != null ? generation.get() : 0;
+	}
+
+	// Compose the next list with the current settings of the user
+	private static void compose(String user, int generation) {
+		try {
+			Option opt = UserData.fetchOptions(user);
+			if (opt == null || opt.getRecommenders() == null
+					|| opt.getRecommenders().isEmpty())
+				return;
+			int evalId = EvaluationData.getIdForParticipant(user);
+			ArrayList<Integer> ids = new ArrayList<Integer>(
+					opt.getRecommenders());
+
+			List<Recommendation> recommendations = ListComposer
+					.composeRecommendationList(new MuseUser(user),
+							opt.getBehavior(), ids);
+			if (recommendations.isEmpty() || generation != getGeneration(user))
+				return;
+
+			pending.put(user, new Pending(generation, opt.getBehavior(), ids,
+					evalId, recommendations));
+		} catch (SQLException e) {
+			LOG.warn("Couldn't prefetch the next list of user: " + user, e);
+		} catch (RuntimeException e) {
+			LOG.warn("Couldn't prefetch the next list of user: " + user, e);
+		}
+	}
+}
@@ -76,6 +76,16 @@ public class MuseRecommendation implements Comparable<MuseRecommendation>,
 	public MuseRecommendation() {
 	}
 
+	/** Copy a recommendation object, including a MuSe song */
+	public MuseRecommendation(MuseRecommendation rec) {
+		this.id = rec.id;
+		this.song = rec.song instanceof MuseSong ? new MuseSong(
+				(MuseSong) rec.song) : rec.song;
+		this.recommenderID = rec.recommenderID;
+		this.explanation = rec.explanation;
+		this.score = rec.score;
+	}
+
 	@Override
 	public String toString() {
 		return "ID: " + id + " Song(" + song.toString() + ") Metric: "
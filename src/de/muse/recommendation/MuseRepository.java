@@ -15,16 +15,16 @@
  */
 package de.muse.recommendation;
 
-import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -37,13 +37,86 @@ import de.muse.api.Song;
 import de.muse.api.User;
 import de.muse.evaluation.EvaluationData;
 import de.muse.user.MuseUser;
-import de.muse.utility.Database;
+import de.muse.user.UserProfile;
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+import de.muse.utility.Query.RowMapper;
 
 public class MuseRepository implements DataRepository {
 	// Configured logger
 	private transient static final Logger LOG = LoggerFactory
 			.getLogger(MuseRepository.class.getName());
 
+	// Named queries
+	private static final Query ANNUAL_CHARTS = new Query("annualCharts",
+			"SELECT track_id, artist, name, chartsyear "
+					+ "FROM charts_year, tracks WHERE track_id = id "
+					+ "AND chartsyear = ? ORDER BY trackposition ASC");
+	private static final Query ANNUAL_CHARTS_PERIOD = new Query(
+			"annualChartsPeriod", "SELECT track_id, artist, name, chartsyear "
+					+ "FROM charts_year, tracks WHERE track_id = id "
+					+ "AND chartsyear BETWEEN ? AND ? "
+					+ "ORDER BY trackposition ASC");
+	private static final Query REGIONAL_CHARTS = new Query("regionalCharts",
+			"SELECT track_id, artist, name, chartsregion "
+					+ "FROM charts_region, tracks WHERE track_id = id "
+					+ "AND chartsregion = ? ORDER BY trackposition ASC");
+	private static final Query REGIONAL_CHARTS_LIST = new Query(
+			"regionalChartsList", "SELECT track_id, artist, name, chartsregion "
+					+ "FROM charts_region, tracks WHERE track_id = id "
+					+ "AND chartsregion IN ({list}) "
+					+ "ORDER BY trackposition ASC");
+	private static final Query CITY_CHARTS = new Query("cityCharts",
+			"SELECT track_id, artist, name, chartscity "
+					+ "FROM charts_city, tracks WHERE track_id = id "
+					+ "AND chartscity = ? ORDER BY trackposition ASC");
+	private static final Query CITY_CHARTS_LIST = new Query("cityChartsList",
+			"SELECT track_id, artist, name, chartscity "
+					+ "FROM charts_city, tracks WHERE track_id = id "
+					+ "AND chartscity IN ({list}) "
+					+ "ORDER BY trackposition ASC");
+	private static final Query TAG_CHARTS = new Query("tagCharts",
+			"SELECT track_id, artist, name, chartstag "
+					+ "FROM charts_tag, tracks WHERE track_id = id "
+					+ "AND chartsuser = ? ORDER BY trackposition ASC");
+	private static final Query NEIGHBOR_CHARTS = new Query("neighborCharts",
+			"SELECT track_id, artist, name, neighbor "
+					+ "FROM charts_neighbor, tracks WHERE track_id = id "
+					+ "AND chartsuser = ? ORDER BY trackplaycount ASC");
+	private static final Query RATED_SONGS = new Query("ratedSongs",
+			"SELECT track_id FROM recommendation WHERE consumer = ?");
+	private static final Query RATED_SONGS_EVAL = new Query("ratedSongsEval",
+			"SELECT track_id FROM recommendation "
+					+ "WHERE consumer = ? AND eval_id = ?");
+	private static final Query RATINGS = new Query("ratings",
+			"SELECT track_id, rating FROM recommendation "
+					+ "WHERE consumer = ? ORDER BY rating DESC");
+	private static final Query RATINGS_EVAL = new Query("ratingsEval",
+			"SELECT track_id, rating FROM recommendation "
+					+ "WHERE consumer = ? AND eval_id = ? "
+					+ "ORDER BY rating DESC");
+	private static final Query USERS = new Query("users",
+			"SELECT DISTINCT name FROM consumer WHERE role != 'test'");
+	private static final Query SONG_IDS = new Query("songIds",
+			"SELECT id FROM tracks");
+	private static final Query SONG_TAGS = new Query("songTags",
+			"SELECT tag, count FROM track_tags WHERE track_id = ?");
+	private static final Query SONG_CITY_COUNT = new Query("songCityCount",
+			"SELECT track_id, COUNT(chartscity) AS totalcount "
+					+ "FROM charts_city WHERE chartscity IN ({list}) "
+					+ "GROUP BY track_id ORDER BY totalcount ASC");
+
+	// Map a row of a charts query to a song
+	private static final RowMapper<Song> SONG = new RowMapper<Song>() {
+		@Override
+		public Song map(ResultSet row) throws SQLException {
+			MuseSong song = new MuseSong(row.getString("artist"),
+					row.getString("name"));
+			song.setID(row.getInt("track_id"));
+			return song;
+		}
+	};
+
 	@Override
 	public RecommendationFactory getRecommendationFactory() {
 		return new MuseRecommendationFactory();
@@ -51,433 +124,153 @@ public class MuseRepository implements DataRepository {
 
 	@Override
 	public List<Song> getAnnualCharts(int year) {
-		List<Song> songs = new ArrayList<Song>();
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String query = "SELECT track_id, trackposition, artist, name, chartsyear"
-					+ " FROM charts_year, tracks "
-					+ "WHERE track_id = id AND chartsYear = "
-					+ year
-					+ " ORDER BY trackposition ASC";
-
-			// Add songs to list
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
-				song.setID(result.getInt("track_id"));
-				songs.add(song);
-			}
-
+			return ANNUAL_CHARTS.list(SONG, year);
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get annual charts for year: " + year, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
-		return songs;
+		return new ArrayList<Song>();
 	}
 
 	@Override
 	public HashMap<Integer, List<Song>> getAnnualCharts(int yearStart,
 			int yearEnd) {
-		HashMap<Integer, List<Song>> charts = new HashMap<Integer, List<Song>>();
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
+		final HashMap<Integer, List<Song>> charts = new HashMap<Integer, List<Song>>();
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String query = "SELECT track_id, trackposition, artist, name, chartsyear"
-					+ " FROM charts_year, tracks "
-					+ "WHERE track_id = id AND chartsYear BETWEEN "
-					+ yearStart
-					+ " AND " + yearEnd + " ORDER BY trackposition ASC";
-
-			// Add songs mapping
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				int year = result.getInt("chartsyear");
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
-				song.setID(result.getInt("track_id"));
-
-				// Check if there is already a list created for the year
-				if (charts.containsKey(year)) {
-					charts.get(year).add(song);
-				} else {
-					List<Song> songs = new ArrayList<Song>();
-					songs.add(song);
-					charts.put(year, songs);
+			ANNUAL_CHARTS_PERIOD.forEach(new RowHandler() {
+				@Override
+				public void handle(ResultSet row) throws SQLException {
+					addToChart(charts, row.getInt("chartsyear"), row);
 				}
-			}
-
+			}, yearStart, yearEnd);
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get annual charts for period: " + yearStart
 					+ " to " + yearEnd, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
 		return charts;
 	}
 
 	@Override
 	public List<Song> getRegionalCharts(String region) {
-		List<Song> songs = new ArrayList<Song>();
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String query = "SELECT track_id, trackposition, artist, name, chartsregion"
-					+ " FROM charts_region, tracks "
-					+ "WHERE track_id = id AND chartsregion = '"
-					+ region
-					+ "' ORDER BY trackposition ASC";
-
-			// Add songs to list
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
-				song.setID(result.getInt("track_id"));
-				songs.add(song);
-			}
-
+			return REGIONAL_CHARTS.list(SONG, region);
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get regional charts for region: " + region, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
-		return songs;
+		return new ArrayList<Song>();
 	}
 
 	@Override
 	public HashMap<String, List<Song>> getRegionalCharts(List<String> regions) {
-		HashMap<String, List<Song>> charts = new HashMap<String, List<Song>>();
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String queryStart = "SELECT track_id, trackposition, artist, name, chartsregion "
-					+ "FROM charts_region cr, tracks "
-					+ "WHERE cr.track_id = id AND (cr.chartsRegion=";
-
-			// Add all regions to the query
-			String queryRegions = "";
-			queryRegions = "'" + regions.get(0) + "'";
-			for (String region : regions) {
-				if (!(region == regions.get(0))) {
-					queryRegions += " or cr.chartsRegion='" + region + "'";
-				}
-			}
-			queryRegions += ")";
-
-			// Finish query string
-			String queryEnd = " ORDER BY trackposition ASC";
-			String query = queryStart + queryRegions + queryEnd;
-
-			// Add songs mapping
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				String region = result.getString("chartsregion");
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
-				song.setID(result.getInt("track_id"));
-
-				// Check if there is already a list created for the region
-				if (charts.containsKey(region)) {
-					charts.get(region).add(song);
-				} else {
-					List<Song> songs = new ArrayList<Song>();
-					songs.add(song);
-					charts.put(region, songs);
-				}
-			}
-
+			return groupCharts(REGIONAL_CHARTS_LIST, "chartsregion", regions);
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get region charts for regions: " + regions, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
-		return charts;
+		return new HashMap<String, List<Song>>();
 	}
 
 	@Override
 	public List<Song> getCityCharts(String city) {
-		List<Song> songs = new ArrayList<Song>();
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String query = "SELECT trackposition, track_id, artist, name, chartscity "
-					+ "FROM charts_city, tracks WHERE track_id = id AND chartscity = '"
-					+ city + "' ORDER BY trackposition ASC";
-
-			// Add songs to list
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
-				song.setID(result.getInt("track_id"));
-				songs.add(song);
-			}
-
+			return CITY_CHARTS.list(SONG, city);
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get city chart for city: " + city, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
-		return songs;
+		return new ArrayList<Song>();
 	}
 
 	@Override
 	public HashMap<String, List<Song>> getCityCharts(List<String> cities) {
-		HashMap<String, List<Song>> charts = new HashMap<String, List<Song>>();
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String queryStart = "SELECT track_id, trackposition, artist, name, chartscity "
-					+ "FROM charts_city cr, tracks "
-					+ "WHERE cr.track_id = id AND (cr.chartscity=";
-
-			// Add all cities to the query
-			String queryRegions = "";
-			queryRegions = "'" + cities.get(0) + "'";
-			for (String city : cities) {
-				if (!(city == cities.get(0))) {
-					queryRegions += " or cr.chartscity='" + city + "'";
-				}
-			}
-			queryRegions += ")";
-
-			// Finish query string
-			String queryEnd = " ORDER BY trackposition ASC";
-			String query = queryStart + queryRegions + queryEnd;
-
-			// Add songs mapping
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				String city = result.getString("chartscity");
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
-				song.setID(result.getInt("track_id"));
-
-				// Check if there is already a list created for the city
-				if (charts.containsKey(city)) {
-					charts.get(city).add(song);
-				} else {
-					List<Song> songs = new ArrayList<Song>();
-					songs.add(song);
-					charts.put(city, songs);
-				}
-			}
-
+			return groupCharts(CITY_CHARTS_LIST, "chartscity", cities);
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get city charts for cities: " + cities, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
-		return charts;
+		return new HashMap<String, List<Song>>();
 	}
 
 	@Override
 	public HashMap<String, List<Song>> getTagCharts(User user) {
-		HashMap<String, List<Song>> charts = new HashMap<String, List<Song>>();
-
 		// Get the users Last.fm account
 		String lfmAccount = user.getLfmaccount();
 		if (lfmAccount == null || lfmAccount.isEmpty())
-			return charts;
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
+			return new HashMap<String, List<Song>>();
 
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String query = "SELECT track_id, trackposition, artist, name, chartstag"
-					+ " FROM charts_tag, tracks WHERE track_id = id AND chartsUser="
-					+ "'" + lfmAccount + "' " + " ORDER BY trackposition ASC";
-
-			// Add songs mapping
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				String tag = result.getString("chartstag");
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
-				song.setID(result.getInt("track_id"));
-
-				// Check if there is already a list created for the tag
-				if (charts.containsKey(tag)) {
-					charts.get(tag).add(song);
-				} else {
-					List<Song> songs = new ArrayList<Song>();
-					songs.add(song);
-					charts.put(tag, songs);
-				}
-			}
-
+			return groupCharts(TAG_CHARTS, "chartstag", lfmAccount);
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get tag charts for user: " + user.getName(), e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
-		return charts;
+		return new HashMap<String, List<Song>>();
 	}
 
 	@Override
 	public HashMap<String, List<Song>> getNeighborCharts(User user) {
-		HashMap<String, List<Song>> charts = new HashMap<String, List<Song>>();
-
 		// Get the users Last.fm account
 		String lfmAccount = user.getLfmaccount();
 		if (lfmAccount == null || lfmAccount.isEmpty())
-			return charts;
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
+			return new HashMap<String, List<Song>>();
 
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String query = "SELECT track_id, artist, name, neighbor "
-					+ " FROM charts_neighbor, tracks WHERE track_id = id AND chartsUser="
-					+ "'" + lfmAccount + "' " + " ORDER BY trackplaycount ASC";
-
-			// Add songs mapping
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				String neighbor = result.getString("neighbor");
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
-				song.setID(result.getInt("track_id"));
-
-				// Check if there is already a list created for the neighbor
-				if (charts.containsKey(neighbor)) {
-					charts.get(neighbor).add(song);
-				} else {
-					List<Song> songs = new ArrayList<Song>();
-					songs.add(song);
-					charts.put(neighbor, songs);
-				}
-			}
-
+			return groupCharts(NEIGHBOR_CHARTS, "neighbor", lfmAccount);
 		} catch (SQLException e) {
 			LOG.warn(
 					"Couldn't get neighbor charts for user: " + user.getName(),
 					e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
-		return charts;
+		return new HashMap<String, List<Song>>();
 	}
 
 	@Override
 	public Set<Integer> getRatedSongIDs(String username) {
-		Set<Integer> songIds = new HashSet<Integer>();
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
+		final Set<Integer> songIds = new HashSet<Integer>();
+		RowHandler handler = new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				songIds.add(row.getInt("track_id"));
+			}
+		};
 
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-
 			// Check if user takes part in an Evaluation
 			int evalId = EvaluationData.getIdForParticipant(username);
-			String evalQuery = (evalId == 0) ? "" : " AND eval_id = " + evalId;
-			String query = "SELECT track_id FROM recommendation WHERE consumer = "
-					+ "'" + username + "'" + evalQuery;
-
-			// Add songs to list
-			result = stmt.executeQuery(query);
-			while (result.next()) {
-				songIds.add(result.getInt("track_id"));
+			if (RatingMatrix.isLoaded()) {
+				return RatingMatrix.getRatedSongIDs(username, evalId);
+			} else if (evalId == 0) {
+				RATED_SONGS.forEach(handler, username);
+			} else {
+				RATED_SONGS_EVAL.forEach(handler, username, evalId);
 			}
-
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get rated songs for user: " + username, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
 		return songIds;
 	}
 
 	@Override
 	public LinkedHashMap<Integer, Double> getRatingsFromUser(String user) {
-		LinkedHashMap<Integer, Double> ratings = new LinkedHashMap<Integer, Double>();
-
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
+		final LinkedHashMap<Integer, Double> ratings = new LinkedHashMap<Integer, Double>();
+		RowHandler handler = new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				double rating = row.getInt("rating");
+				ratings.put(row.getInt("track_id"), rating);
+			}
+		};
 
 		try {
 			// Check if user takes part in an Evaluation
 			int evalId = EvaluationData.getIdForParticipant(user);
-			String evalQuery = (evalId == 0) ? "" : " AND eval_id = " + evalId;
-			String query = "SELECT track_id, rating FROM recommendation WHERE consumer = '"
-					+ user + "'" + evalQuery + " ORDER BY rating DESC";
-
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			result = stmt.executeQuery(query);
-
-			while (result.next()) {
-				int trackId = result.getInt("track_id");
-				double rating = result.getInt("rating");
-				ratings.put(trackId, rating);
+			if (RatingMatrix.isLoaded()) {
+				return RatingMatrix.getRatings(user, evalId);
+			} else if (evalId == 0) {
+				RATINGS.forEach(handler, user);
+			} else {
+				RATINGS_EVAL.forEach(handler, user, evalId);
 			}
-
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get list of ratings for user: " + user, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
 		return ratings;
 	}
@@ -485,126 +278,81 @@ public class MuseRepository implements DataRepository {
 	@Override
 	public Set<String> getUsers() {
 		Set<String> users = new HashSet<String>();
-
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
 		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			result = stmt.executeQuery("SELECT DISTINCT name FROM consumer "
-					+ "WHERE role != 'test'");
-
-			while (result.next()) {
-				String user = result.getString("name");
-				users.add(user);
-			}
-
+			users.addAll(USERS.list(new RowMapper<String>() {
+				@Override
+				public String map(ResultSet row) throws SQLException {
+					return row.getString("name");
+				}
+			}));
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get list of all users.", e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
 		return users;
 	}
 
 	@Override
 	public User getUserInfo(String username) {
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-		User user = null;
-
-		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			result = stmt
-					.executeQuery("SELECT sex, birthyear, lfmaccount FROM consumer WHERE name="
-							+ "'" + username.toLowerCase() + "'");
-
-			if (result.next()) {
-				user = new MuseUser(username, result.getInt("birthyear"),
-						result.getString("sex"), result.getString("lfmaccount"));
-			}
-
-		} catch (SQLException e) {
-			LOG.warn("Couldn't get user info for: " + username, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
+		UserProfile profile = UserProfile.get(username);
+		if (profile == null) {
+			LOG.warn("Couldn't get user info for: " + username);
+			return null;
 		}
-		user.getLangs();
-		return user;
+		return new MuseUser(profile);
 	}
 
 	@Override
 	public Set<Integer> getSongIDs() {
 		Set<Integer> songs = new HashSet<Integer>();
-
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
 		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			result = stmt.executeQuery("SELECT id FROM tracks");
-
-			// Get all the tracks from the database
-			while (result.next()) {
-				songs.add(result.getInt("id"));
-			}
-
+			songs.addAll(SONG_IDS.list(new RowMapper<Integer>() {
+				@Override
+				public Integer map(ResultSet row) throws SQLException {
+					return row.getInt("id");
+				}
+			}));
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get song ids from the database.", e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
 		return songs;
 	}
 
 	@Override
 	public Song getSongInfo(int songID) {
-		Song song = null;
-		HashMap<String, Double> tags = new HashMap<String, Double>();
-
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
+		MuseSong song = null;
+		final HashMap<String, Double> tags = new HashMap<String, Double>();
 
 		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
 			// Query tags
-			result = stmt.executeQuery("SELECT tag, count FROM "
-					+ "track_tags WHERE track_id = " + songID);
-
-			while (result.next()) {
-				tags.put(result.getString("tag"), result.getDouble("count"));
-			}
+			SONG_TAGS.forEach(new RowHandler() {
+				@Override
+				public void handle(ResultSet row) throws SQLException {
+					tags.put(row.getString("tag"), row.getDouble("count"));
+				}
+			}, songID);
 
-			// Query artist and name
-			result = stmt
-					.executeQuery("SELECT artist, name FROM tracks WHERE id = "
-							+ songID);
-			while (result.next()) {
-				String artist = result.getString("artist");
-				String name = result.getString("name");
-				song = new MuseSong(artist, name);
-				((MuseSong) song).setTags(tags);
+			// Artist and name from the catalog
+			TrackCatalog.Track track = TrackCatalog.get(songID);
+			if (track != null) {
+				song = track.toSong();
+				song.setTags(tags);
 			}
 		} catch (SQLException e) {
 			LOG.warn("Couldn't get info for song: " + songID, e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
 		}
 		return song;
 	}
 
+	@Override
+	public Map<Integer, Song> getSongInfo(Collection<Integer> songIDs) {
+		Map<Integer, Song> songs = new HashMap<Integer, Song>(
+				songIDs.size() * 2);
+		for (TrackCatalog.Track track : TrackCatalog.getAll(songIDs).values()) {
+			songs.put(track.getID(), track.toSong());
+		}
+		return songs;
+	}
+
 	/*
 	 * Outside the data repository interface
 	 */
@@ -624,43 +372,50 @@ public class MuseRepository implements DataRepository {
 
 	public List<SimpleEntry<Integer, Integer>> getSongCityCount(
 			List<String> cities) {
-		List<SimpleEntry<Integer, Integer>> count = new ArrayList<SimpleEntry<Integer, Integer>>();
-
-		// Connect to database and fetch required data
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
 		try {
-			// Query the database
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			String queryStart = "SELECT track_id, COUNT(chartscity) AS totalcount"
-					+ " FROM charts_city WHERE chartscity = ";
-
-			// Add all cities to the query
-			String queryCities = "";
-			queryCities = "'" + cities.get(0) + "'";
-			for (String city : cities) {
-				if (!(city == cities.get(0))) {
-					queryCities += " or chartscity='" + city + "'";
-				}
-			}
-
-			String queryEnd = " GROUP BY track_id ORDER BY totalcount ASC";
+			return SONG_CITY_COUNT.listIn(
+					new RowMapper<SimpleEntry<Integer, Integer>>() {
+						@Override
+						public SimpleEntry<Integer, Integer> map(ResultSet row)
+								throws SQLException {
+							return new SimpleEntry<Integer, Integer>(row
+									.getInt("track_id"), row
+									.getInt("totalcount"));
+						}
+					}, cities);
+		} catch (SQLException e) {
+			LOG.warn("Couldn't get song uniqueness count", e);
+		}
+		return new ArrayList<SimpleEntry<Integer, Integer>>();
+	}
 
-			// Add songs mapping
-			result = stmt.executeQuery(queryStart + queryCities + queryEnd);
-			while (result.next()) {
-				count.add(new SimpleEntry<Integer, Integer>(result
-						.getInt("track_id"), result.getInt("totalcount")));
+	// Group the songs of a charts query by the given column
+	private static HashMap<String, List<Song>> groupCharts(Query query,
+			final String groupColumn, Object param) throws SQLException {
+		final HashMap<String, List<Song>> charts = new HashMap<String, List<Song>>();
+		RowHandler handler = new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				addToChart(charts, row.getString(groupColumn), row);
 			}
+		};
 
-		} catch (SQLException e) {
-			LOG.warn("Couldn't get song uniqueness count", e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
+		if (param instanceof List) {
+			query.forEachIn(handler, (List<?>) param);
+		} else {
+			query.forEach(handler, param);
+		}
+		return charts;
+	}
+
+	// Add the song of the current row to the chart of the given key
+	private static <K> void addToChart(HashMap<K, List<Song>> charts, K key,
+			ResultSet row) throws SQLException {
+		List<Song> songs = charts.get(key);
+		if (songs == null) {
+			songs = new ArrayList<Song>();
+			charts.put(key, songs);
 		}
-		return count;
+		songs.add(SONG.map(row));
 	}
 }
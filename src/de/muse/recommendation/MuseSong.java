@@ -144,6 +144,22 @@ public class MuseSong implements Song {
 		this.id = 0;
 	}
 
+	/**
+	 * Copy a song object, including its tags.
+	 * 
+	 * @param song
+	 *            The song to copy.
+	 */
+	public MuseSong(MuseSong song) {
+		this.id = song.id;
+		this.artist = song.artist;
+		this.name = song.name;
+		this.playCount = song.playCount;
+		this.tags = song.tags != null ? new HashMap<String, Double>(song.tags)
+				: null;
+		this.neighbor = song.neighbor;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
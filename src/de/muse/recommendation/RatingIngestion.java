@@ -0,0 +1,604 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.config.ApplicationConfig;
+import de.muse.recommendation.RecommenderAffinity.ListRatings;
+import de.muse.recommendation.recommenders.collaborative.CollaborativeFilteringUpdater;
+import de.muse.utility.Database;
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+
+/**
+ * Write-behind pipeline for the ratings of recommendation lists.
+ *
+ * A rated list is appended to a local journal file and synced to disk
+ * before the request returns. Concurrent requests share a sync. A single
+ * background thread takes the rated lists of many users at once, writes
+ * them with batched updates in one transaction and then passes them on to
+ * the in-memory rating consumers: the rating matrix, the recommender
+ * affinities, the CF updater and the list prefetcher.
+ *
+ * A pass that fails is retried with growing delays; rated lists arriving
+ * meanwhile wait in the queue and the journal. A pass still failing after a
+ * few attempts is split into its rated lists, and a single rated list that
+ * keeps failing while the database is reachable is moved to a dead-letter
+ * file so it can't block the others. The journal is emptied whenever
+ * everything in it was written or dead-lettered. Entries left
+ * after a crash or a shutdown during a failure are applied again on the next
+ * start. This may apply a rated list twice, which all consumers tolerate:
+ * ratings are set rather than added, and the recommender affinities replace
+ * the earlier ratings of a list.
+ */
+public final class RatingIngestion {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(RatingIngestion.class.getName());
+
+	// Named queries
+	private static final Query LISTS_OF = new Query("ratedListsOf",
+			"SELECT id, consumer, list, recommender_id, rating "
+					+ "FROM recommendation WHERE (consumer, list) IN "
+					+ "(SELECT consumer, list FROM recommendation "
+					+ "WHERE id IN ({list}))");
+	private static final Query UPDATE_RATING = new Query("updateRating",
+			"UPDATE recommendation SET rating = ? WHERE id = ?");
+	private static final Query UPDATE_LIST_RATING = new Query(
+			"updateListRating", "UPDATE recommendation_list SET rating = ? "
+					+ "WHERE consumer = ? AND list_id = ?");
+
+	// Rated lists written per pass at most
+	private static final int BATCH_SIZE = 500;
+	// Time in ms before a failed pass is retried, doubled per failure
+	private static final long RETRY_DELAY = 5000;
+	private static final long MAX_RETRY_DELAY = 300000;
+	// Attempts before a pass is split or a rated list is dead-lettered
+	private static final int MAX_ATTEMPTS = 5;
+	// Time in s to wait for the database check before dead-lettering
+	private static final int CHECK_TIMEOUT = 5;
+	// Time in ms the shutdown waits for the writer
+	private static final long SHUTDOWN_WAIT = 10000;
+
+	private static final File JOURNAL_FILE = new File(ApplicationConfig.PERM_DIR
+			+ "ratings.journal");
+	private static final File DEAD_LETTER_FILE = new File(
+			ApplicationConfig.PERM_DIR + "ratings.deadletter");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Rated lists waiting to be written
+	private static final LinkedBlockingQueue<RatedList> queue = new LinkedBlockingQueue<RatedList>();
+
+	// Guards journal and written
+	private static final Object journalLock = new Object();
+	private static FileChannel journal = null;
+	private static long written = 0;
+	// Guards synced
+	private static final Object syncLock = new Object();
+	private static long synced = 0;
+
+	private static Thread writer = null;
+	private static volatile boolean running = false;
+	// Notified to end the wait for a retry on shutdown
+	private static final Object retryLock = new Object();
+
+	/**
+	 * The ratings of one list as sent by the user.
+	 */
+	private static final class RatedList {
+		// Null if the list itself wasn't rated
+		final Integer listRating;
+		final int[] recIds;
+		final int[] ratings;
+		// Resolved by the writer
+		String user = null;
+		int list = 0;
+		// Recommendation id -> recommender id and stored rating, for all
+		// recommendations of the list
+		Map<Integer, int[]> recommendations = null;
+
+		RatedList(Integer listRating, int[] recIds, int[] ratings) {
+			this.listRating = listRating;
+			this.recIds = recIds;
+			this.ratings = ratings;
+		}
+
+		// One journal line: the list rating or "-", then recId:rating pairs
+		String encode() {
+			StringBuilder line = new StringBuilder();
+			line.append(listRating != null ? listRating.toString() : "-");
+			for (int i = 0; i < recIds.length; i++) {
+				line.append(' ').append(recIds[i]).append(':')
+						.append(ratings[i]);
+			}
+			return line.append('\n').toString();
+		}
+
+		static RatedList decode(String line) {
+			String[] fields = line.trim().split(" ");
+			Integer listRating = fields[0].equals("-") ? null : Integer
+					.valueOf(fields[0]);
+			int[] recIds = new int[fields.length - 1];
+			int[] ratings = new int[fields.length - 1];
+			for (int i = 1; i < fields.length; i++) {
+				String[] pair = fields[i].split(":");
+				recIds[i - 1] = Integer.parseInt(pair[0]);
+				ratings[i - 1] = Integer.parseInt(pair[1]);
+			}
+			return new RatedList(listRating, recIds, ratings);
+		}
+	}
+
+	private RatingIngestion() {
+	}
+
+	/**
+	 * Apply the entries left in the journal and start the background
+	 * writer. Does nothing if it is running already.
+	 *
+	 * @throws IOException
+	 *             If the journal can't be read or opened
+	 */
+	public static synchronized void start() throws IOException {
+		if (running)
+			return;
+
+		// The journal holds everything not written yet
+		queue.clear();
+		int replayed = replay();
+		if (replayed > 0) {
+			LOG.info("Replaying " + replayed + " rated lists from the journal.");
+		}
+		synchronized (journalLock) {
+			journal = new FileOutputStream(JOURNAL_FILE, true).getChannel();
+		}
+
+		running = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "rating-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Write the waiting ratings and stop the background writer.
+	 */
+	public static synchronized void shutdown() {
+		if (!running)
+			return;
+
+		running = false;
+		synchronized (retryLock) {
+			retryLock.notifyAll();
+		}
+		try {
+			writer.join(SHUTDOWN_WAIT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (journalLock) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				LOG.warn("Couldn't close the rating journal.", e);
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * Journal the ratings of a list and queue them for writing. Returns once
+	 * the journal entry is on disk.
+	 *
+	 * @param listRating
+	 *            The rating of the list as a whole or null
+	 * @param recIds
+	 *            The rated recommendations
+	 * @param ratings
+	 *            The rating of each recommendation
+	 * @throws IOException
+	 *             If the ratings couldn't be journaled
+	 */
+	public static void submit(Integer listRating, int[] recIds, int[] ratings)
+			throws IOException {
+		if (!running) {
+			start();
+		}
+		RatedList rated = new RatedList(listRating, recIds, ratings);
+		ByteBuffer line = ByteBuffer.wrap(rated.encode().getBytes(UTF8));
+
+		long position;
+		synchronized (journalLock) {
+			if (journal == null)
+				throw new IOException("Rating journal is closed.");
+			while (line.hasRemaining()) {
+				journal.write(line);
+			}
+			position = ++written;
+			queue.add(rated);
+		}
+		sync(position);
+	}
+
+	// Sync the journal up to the given entry. A single sync covers all
+	// entries written before it started.
+	private static void sync(long position) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= position)
+				return;
+
+			long target;
+			FileChannel channel;
+			synchronized (journalLock) {
+				target = written;
+				channel = journal;
+			}
+			if (channel == null)
+				throw new IOException("Rating journal is closed.");
+			channel.force(false);
+			synced = target;
+		}
+	}
+
+	// Queue the entries of the journal, skipping a torn last line
+	private static int replay() throws IOException {
+		if (!JOURNAL_FILE.exists())
+			return 0;
+
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(JOURNAL_FILE), UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				try {
+					queue.add(RatedList.decode(line));
+					count++;
+				} catch (RuntimeException e) {
+					LOG.warn("Skipped unreadable rating journal entry: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	// Write the queued ratings pass by pass until stopped
+	private static void drain() {
+		List<RatedList> pass = new ArrayList<RatedList>();
+		while (running || !queue.isEmpty()) {
+			try {
+				RatedList first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null)
+					continue;
+				pass.add(first);
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(pass, BATCH_SIZE - 1);
+
+			if (!writeWithRetry(pass))
+				break;
+			pass.clear();
+			truncateIfDone();
+		}
+	}
+
+	// Write a pass, retrying with growing delays. A pass failing too often is
+	// written list by list, and a single list failing too often while the
+	// database works is dead-lettered. Returns false if the writer was
+	// stopped meanwhile; the pass stays in the journal then.
+	private static boolean writeWithRetry(List<RatedList> pass) {
+		long delay = RETRY_DELAY;
+		for (int attempt = 1;; attempt++) {
+			try {
+				write(pass);
+				return true;
+			} catch (SQLException e) {
+				if (attempt >= MAX_ATTEMPTS && pass.size() > 1) {
+					LOG.warn("Writing " + pass.size() + " rated lists failed "
+							+ attempt + " times, writing them one by one.", e);
+					return writeSingly(pass);
+				}
+				if (attempt >= MAX_ATTEMPTS && databaseWorks()) {
+					deadLetter(pass.get(0), e);
+					return true;
+				}
+				LOG.warn("Writing " + pass.size()
+						+ " rated lists failed, retrying in " + delay + " ms.",
+						e);
+			}
+			synchronized (retryLock) {
+				if (!running)
+					return false;
+				try {
+					retryLock.wait(delay);
+				} catch (InterruptedException e) {
+					return false;
+				}
+				if (!running)
+					return false;
+			}
+			delay = Math.min(2 * delay, MAX_RETRY_DELAY);
+		}
+	}
+
+	// Write each rated list of a pass on its own
+	private static boolean writeSingly(List<RatedList> pass) {
+		for (RatedList rated : pass) {
+			List<RatedList> single = new ArrayList<RatedList>(1);
+			single.add(rated);
+			if (!writeWithRetry(single))
+				return false;
+		}
+		return true;
+	}
+
+	// Check if the database can be reached, so failures are due to the data
+	private static boolean databaseWorks() {
+		Connection conn = null;
+		try {
+			conn = Database.getConnection();
+			return conn.isValid(CHECK_TIMEOUT);
+		} catch (SQLException e) {
+			return false;
+		} finally {
+			Database.quietClose(conn);
+		}
+	}
+
+	// Move a rated list that can't be written to the dead-letter file, in
+	// the journal format
+	private static void deadLetter(RatedList rated, SQLException cause) {
+		String line = rated.encode();
+		LOG.error("Moved rated list to " + DEAD_LETTER_FILE + " after "
+				+ MAX_ATTEMPTS + " failed attempts: " + line.trim(), cause);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(DEAD_LETTER_FILE, true);
+			out.write(line.getBytes(UTF8));
+			out.getFD().sync();
+		} catch (IOException e) {
+			LOG.error("Couldn't write the dead-letter file, dropped rated list: "
+					+ line.trim(), e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.warn("Couldn't close the dead-letter file.", e);
+				}
+			}
+		}
+	}
+
+	// Empty the journal if everything in it was written
+	private static void truncateIfDone() {
+		synchronized (journalLock) {
+			if (!queue.isEmpty() || journal == null)
+				return;
+			try {
+				journal.truncate(0);
+				journal.force(true);
+			} catch (IOException e) {
+				LOG.warn("Couldn't truncate the rating journal.", e);
+			}
+		}
+	}
+
+	// Write a pass in one transaction, then update the in-memory data
+	private static void write(List<RatedList> pass) throws SQLException {
+		resolveLists(pass);
+
+		// Only the latest rating of a recommendation or list counts
+		Map<Integer, Integer> ratings = new LinkedHashMap<Integer, Integer>();
+		Map<String, Map<Integer, Integer>> listRatings = new LinkedHashMap<String, Map<Integer, Integer>>();
+		for (RatedList rated : pass) {
+			for (int i = 0; i < rated.recIds.length; i++) {
+				ratings.put(rated.recIds[i], rated.ratings[i]);
+			}
+			if (rated.user != null && rated.listRating != null) {
+				Map<Integer, Integer> lists = listRatings.get(rated.user);
+				if (lists == null) {
+					lists = new HashMap<Integer, Integer>();
+					listRatings.put(rated.user, lists);
+				}
+				lists.put(rated.list, rated.listRating);
+			}
+		}
+
+		Connection conn = null;
+		PreparedStatement pstmt = null;
+		try {
+			conn = Database.getConnection();
+			// Start transaction
+			conn.setAutoCommit(false);
+
+			pstmt = UPDATE_RATING.prepare(conn);
+			for (Map.Entry<Integer, Integer> entry : ratings.entrySet()) {
+				Query.bind(pstmt, entry.getValue(), entry.getKey());
+				pstmt.addBatch();
+			}
+			pstmt.executeBatch();
+			Database.quietClose(pstmt);
+
+			pstmt = UPDATE_LIST_RATING.prepare(conn);
+			for (Map.Entry<String, Map<Integer, Integer>> user : listRatings
+					.entrySet()) {
+				for (Map.Entry<Integer, Integer> list : user.getValue()
+						.entrySet()) {
+					Query.bind(pstmt, list.getValue(), user.getKey(),
+							list.getKey());
+					pstmt.addBatch();
+				}
+			}
+			pstmt.executeBatch();
+
+			// Transaction succeeded. Commit it.
+			conn.commit();
+		} catch (SQLException e) {
+			LOG.warn("- Rollback - Writing " + pass.size()
+					+ " rated lists failed.");
+			Database.quietRollback(conn);
+			throw e;
+		} finally {
+			// Finished transaction
+			Database.resetAutoCommit(conn);
+			Database.quietClose(pstmt);
+			Database.quietClose(conn);
+		}
+
+		applyToConsumers(pass);
+	}
+
+	// Look up user, list and all recommendations of each rated list by its
+	// first recommendation
+	private static void resolveLists(List<RatedList> pass) throws SQLException {
+		final Map<Integer, RatedList> byRecId = new HashMap<Integer, RatedList>();
+		for (RatedList rated : pass) {
+			if (rated.user == null && rated.recIds.length > 0) {
+				byRecId.put(rated.recIds[0], rated);
+			}
+		}
+		if (byRecId.isEmpty())
+			return;
+
+		final Map<Integer, String> users = new HashMap<Integer, String>();
+		final Map<Integer, Integer> lists = new HashMap<Integer, Integer>();
+		// User and list -> recommendations of the list
+		final Map<String, Map<Integer, int[]>> recommendations = new HashMap<String, Map<Integer, int[]>>();
+		LISTS_OF.forEachIn(new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				int id = row.getInt("id");
+				String user = row.getString("consumer");
+				int list = row.getInt("list");
+				users.put(id, user);
+				lists.put(id, list);
+
+				String key = user + ":" + list;
+				Map<Integer, int[]> recs = recommendations.get(key);
+				if (recs == null) {
+					recs = new HashMap<Integer, int[]>();
+					recommendations.put(key, recs);
+				}
+				recs.put(id, new int[] { row.getInt("recommender_id"),
+						row.getInt("rating") });
+			}
+		}, new ArrayList<Integer>(byRecId.keySet()));
+
+		// Several lists may start with the same recommendation
+		for (RatedList rated : pass) {
+			if (rated.user != null || rated.recIds.length == 0)
+				continue;
+			Integer list = lists.get(rated.recIds[0]);
+			if (list != null) {
+				rated.user = users.get(rated.recIds[0]);
+				rated.list = list;
+				rated.recommendations = recommendations.get(rated.user + ":"
+						+ list);
+			}
+		}
+	}
+
+	// Pass the written ratings on to the in-memory data
+	private static void applyToConsumers(List<RatedList> pass) {
+		Map<Integer, Integer> ratings = new HashMap<Integer, Integer>();
+		for (RatedList rated : pass) {
+			for (int i = 0; i < rated.recIds.length; i++) {
+				ratings.put(rated.recIds[i], rated.ratings[i]);
+			}
+		}
+
+		Map<String, Map<Integer, RatedList>> ratedLists = new LinkedHashMap<String, Map<Integer, RatedList>>();
+		for (RatedList rated : pass) {
+			if (rated.user == null) {
+				LOG.warn("Dropped ratings of an unknown list: "
+						+ rated.encode().trim());
+				continue;
+			}
+			updateRatingMatrix(rated);
+			Map<Integer, RatedList> lists = ratedLists.get(rated.user);
+			if (lists == null) {
+				lists = new TreeMap<Integer, RatedList>();
+				ratedLists.put(rated.user, lists);
+			}
+			lists.put(rated.list, rated);
+		}
+
+		for (Map.Entry<String, Map<Integer, RatedList>> user : ratedLists
+				.entrySet()) {
+			CurrentListCache.invalidate(user.getKey());
+			CollaborativeFilteringUpdater.ratingsChanged(user.getKey());
+			List<ListRatings> listRatings = new ArrayList<ListRatings>();
+			for (RatedList rated : user.getValue().values()) {
+				listRatings.add(sumRatings(rated, ratings));
+			}
+			RecommenderAffinity.listsRated(user.getKey(), listRatings);
+			ListPrefetcher.schedule(user.getKey());
+		}
+	}
+
+	// Sum up the ratings of a list per recommender as they are stored now
+	private static ListRatings sumRatings(RatedList rated,
+			Map<Integer, Integer> ratings) {
+		ListRatings sums = new ListRatings(rated.list);
+		for (Map.Entry<Integer, int[]> rec : rated.recommendations.entrySet()) {
+			Integer rating = ratings.get(rec.getKey());
+			sums.add(rec.getValue()[0], rating != null ? rating : rec
+					.getValue()[1]);
+		}
+		return sums;
+	}
+
+	// Update the ratings of the user in the in-memory rating matrix
+	private static void updateRatingMatrix(RatedList rated) {
+		for (int i = 0; i < rated.recIds.length; i++) {
+			if (!RatingMatrix.updateRating(rated.user, rated.recIds[i],
+					rated.ratings[i]))
+				return;
+		}
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+
+/**
+ * In-memory copy of the RECOMMENDATION table reduced to what the recommenders
+ * need: which user has seen which track, with which rating and in which
+ * evaluation.
+ *
+ * Rows are kept in compressed sparse row (CSR) layout: one int index per user
+ * into parallel primitive arrays of recommendation ids, track ids, evaluation
+ * ids and byte ratings. Users whose rows changed since the last compaction are
+ * kept in small single-row blocks of the same layout until the next
+ * {@link #compact()}.
+ */
+public final class RatingMatrix {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(RatingMatrix.class.getName());
+
+	// Named queries
+	private static final Query ALL_RATINGS = new Query("matrixAllRatings",
+			"SELECT id, consumer, track_id, rating, eval_id "
+					+ "FROM recommendation ORDER BY consumer, id");
+	private static final Query USER_RATINGS = new Query("matrixUserRatings",
+			"SELECT id, consumer, track_id, rating, eval_id "
+					+ "FROM recommendation WHERE consumer = ? ORDER BY id");
+
+	// Rows of all users at the time of the last load or compaction
+	private static volatile Block base = Block.EMPTY;
+	// Rows changed since, replacing the row in the base block
+	private static final ConcurrentHashMap<String, Block> changed = new ConcurrentHashMap<String, Block>();
+	// Marker for rows which have to be reloaded from the database
+	private static final Block STALE = new Block(new String[0], new int[1],
+			new int[0], new int[0], new int[0], new byte[0]);
+	private static volatile boolean loaded = false;
+
+	/**
+	 * Block of rows in CSR layout. Row r spans [rowStart[r], rowStart[r+1]).
+	 * Only the ratings are mutable.
+	 */
+	private static final class Block {
+		static final Block EMPTY = new Block(new String[0], new int[1],
+				new int[0], new int[0], new int[0], new byte[0]);
+
+		final String[] users;
+		final Map<String, Integer> index;
+		final int[] rowStart;
+		final int[] recIds;
+		final int[] trackIds;
+		final int[] evalIds;
+		final byte[] ratings;
+
+		Block(String[] users, int[] rowStart, int[] recIds, int[] trackIds,
+				int[] evalIds, byte[] ratings) {
+			this.users = users;
+			this.rowStart = rowStart;
+			this.recIds = recIds;
+			this.trackIds = trackIds;
+			this.evalIds = evalIds;
+			this.ratings = ratings;
+			this.index = new HashMap<String, Integer>(users.length * 2);
+			for (int r = 0; r < users.length; r++) {
+				index.put(users[r], r);
+			}
+		}
+
+		View row(String user) {
+			Integer r = index.get(user);
+			if (r == null)
+				return null;
+			return new View(this, rowStart[r], rowStart[r + 1]);
+		}
+	}
+
+	/**
+	 * Read-only, zero-copy view of the row of one user. Entries are in
+	 * insertion order. The view is not affected by rows added later but
+	 * reflects rating updates.
+	 */
+	public static final class View {
+		private static final View EMPTY = new View(Block.EMPTY, 0, 0);
+
+		private final Block block;
+		private final int from;
+		private final int to;
+
+		private View(Block block, int from, int to) {
+			this.block = block;
+			this.from = from;
+			this.to = to;
+		}
+
+		public int size() {
+			return to - from;
+		}
+
+		public int getRecommendationId(int i) {
+			return block.recIds[from + i];
+		}
+
+		public int getTrackId(int i) {
+			return block.trackIds[from + i];
+		}
+
+		/**
+		 * @return The evaluation id or 0 if seen outside an evaluation
+		 */
+		public int getEvalId(int i) {
+			return block.evalIds[from + i];
+		}
+
+		public int getRating(int i) {
+			return block.ratings[from + i];
+		}
+
+		// Check if the entry belongs to the given evaluation (0 = all)
+		boolean matches(int i, int evalId) {
+			return evalId == 0 || block.evalIds[from + i] == evalId;
+		}
+	}
+
+	// Growable arrays used to build a block
+	private static final class Builder {
+		final List<String> users = new ArrayList<String>();
+		int[] rowStart = new int[16];
+		int[] recIds = new int[1024];
+		int[] trackIds = new int[1024];
+		int[] evalIds = new int[1024];
+		byte[] ratings = new byte[1024];
+		int size = 0;
+
+		void startRow(String user) {
+			if (users.size() + 1 >= rowStart.length) {
+				rowStart = Arrays.copyOf(rowStart, rowStart.length * 2);
+			}
+			rowStart[users.size()] = size;
+			users.add(user);
+		}
+
+		void add(int recId, int trackId, int evalId, int rating) {
+			if (size == recIds.length) {
+				int capacity = size * 2;
+				recIds = Arrays.copyOf(recIds, capacity);
+				trackIds = Arrays.copyOf(trackIds, capacity);
+				evalIds = Arrays.copyOf(evalIds, capacity);
+				ratings = Arrays.copyOf(ratings, capacity);
+			}
+			recIds[size] = recId;
+			trackIds[size] = trackId;
+			evalIds[size] = evalId;
+			ratings[size] = (byte) rating;
+			size++;
+		}
+
+		void addAll(View row) {
+			for (int i = 0; i < row.size(); i++) {
+				add(row.getRecommendationId(i), row.getTrackId(i),
+						row.getEvalId(i), row.getRating(i));
+			}
+		}
+
+		Block build() {
+			int rows = users.size();
+			int[] starts = Arrays.copyOf(rowStart, rows + 1);
+			starts[rows] = size;
+			return new Block(users.toArray(new String[rows]), starts,
+					Arrays.copyOf(recIds, size), Arrays.copyOf(trackIds, size),
+					Arrays.copyOf(evalIds, size), Arrays.copyOf(ratings, size));
+		}
+	}
+
+	private RatingMatrix() {
+	}
+
+	/**
+	 * Load all ratings from the database.
+	 */
+	public static synchronized void load() {
+		try {
+			final Builder builder = new Builder();
+			ALL_RATINGS.forEach(new RowHandler() {
+				private String current = null;
+
+				@Override
+				public void handle(ResultSet row) throws SQLException {
+					String user = row.getString("consumer");
+					if (!user.equals(current)) {
+						builder.startRow(user);
+						current = user;
+					}
+					builder.add(row.getInt("id"), row.getInt("track_id"),
+							row.getInt("eval_id"), row.getInt("rating"));
+				}
+			});
+			base = builder.build();
+			changed.clear();
+			loaded = true;
+			LOG.info("Loaded " + builder.size + " ratings of "
+					+ builder.users.size() + " users.");
+		} catch (SQLException e) {
+			LOG.warn("Couldn't load rating matrix.", e);
+		}
+	}
+
+	/**
+	 * Merge all changed rows into a new base block.
+	 */
+	public static synchronized void compact() {
+		if (changed.isEmpty())
+			return;
+
+		Block current = base;
+		Map<String, Block> merged = new HashMap<String, Block>(changed);
+		Builder builder = new Builder();
+		for (String user : current.users) {
+			if (!merged.containsKey(user)) {
+				builder.startRow(user);
+				builder.addAll(current.row(user));
+			}
+		}
+		for (Map.Entry<String, Block> entry : merged.entrySet()) {
+			// Stale rows are reloaded lazily
+			if (entry.getValue() == STALE)
+				continue;
+			builder.startRow(entry.getKey());
+			builder.addAll(entry.getValue().row(entry.getKey()));
+		}
+
+		base = builder.build();
+		for (Map.Entry<String, Block> entry : merged.entrySet()) {
+			if (entry.getValue() != STALE) {
+				changed.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		LOG.info("Compacted rating matrix: " + builder.size + " ratings of "
+				+ builder.users.size() + " users.");
+	}
+
+	/**
+	 * Check if the matrix was loaded and can answer queries.
+	 */
+	public static boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Get a zero-copy view of the ratings of the given user.
+	 */
+	public static View getRow(String user) {
+		Block block = changed.get(user);
+		if (block == STALE) {
+			block = reload(user);
+		}
+		View row = block != null ? block.row(user) : base.row(user);
+		return row != null ? row : View.EMPTY;
+	}
+
+	/**
+	 * Get the names of all users having at least one entry.
+	 */
+	public static Set<String> getUsers() {
+		Set<String> users = new HashSet<String>(Arrays.asList(base.users));
+		users.addAll(changed.keySet());
+		return users;
+	}
+
+	/**
+	 * Get the ids of all tracks the user has seen.
+	 *
+	 * @param evalId
+	 *            Only consider tracks seen in this evaluation. 0 for all.
+	 */
+	public static Set<Integer> getRatedSongIDs(String user, int evalId) {
+		View row = getRow(user);
+		Set<Integer> songIds = new HashSet<Integer>(row.size() * 2);
+		for (int i = 0; i < row.size(); i++) {
+			if (row.matches(i, evalId)) {
+				songIds.add(row.getTrackId(i));
+			}
+		}
+		return songIds;
+	}
+
+	/**
+	 * Get the ratings of the user ordered by rating DESC.
+	 *
+	 * @param evalId
+	 *            Only consider tracks seen in this evaluation. 0 for all.
+	 */
+	public static LinkedHashMap<Integer, Double> getRatings(String user,
+			int evalId) {
+		View row = getRow(user);
+		LinkedHashMap<Integer, Double> ratings = new LinkedHashMap<Integer, Double>(
+				row.size() * 2);
+		if (row.size() == 0)
+			return ratings;
+
+		// Ratings only take a few distinct values: emit them value by value
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for (int i = 0; i < row.size(); i++) {
+			min = Math.min(min, row.getRating(i));
+			max = Math.max(max, row.getRating(i));
+		}
+		for (int value = max; value >= min; value--) {
+			for (int i = 0; i < row.size(); i++) {
+				if (row.getRating(i) == value && row.matches(i, evalId)) {
+					ratings.put(row.getTrackId(i), (double) value);
+				}
+			}
+		}
+		return ratings;
+	}
+
+	/**
+	 * Add newly recommended tracks (rating 0) to the row of the user.
+	 */
+	public static synchronized void addRecommendations(String user,
+			int[] recIds, int[] trackIds, int evalId) {
+		if (!loaded)
+			return;
+
+		View row = getRow(user);
+		Builder builder = new Builder();
+		builder.startRow(user);
+		builder.addAll(row);
+		for (int i = 0; i < trackIds.length; i++) {
+			builder.add(recIds[i], trackIds[i], evalId, 0);
+		}
+		changed.put(user, builder.build());
+	}
+
+	/**
+	 * Update the rating of a recommendation of the user in place.
+	 *
+	 * @return False if the recommendation is unknown. The row of the user is
+	 *         then reloaded on next access.
+	 */
+	public static synchronized boolean updateRating(String user, int recId,
+			int rating) {
+		if (!loaded)
+			return true;
+
+		Block block = changed.get(user);
+		if (block == STALE)
+			return true;
+		if (block == null) {
+			block = base;
+		}
+
+		Integer r = block.index.get(user);
+		if (r != null) {
+			for (int i = block.rowStart[r]; i < block.rowStart[r + 1]; i++) {
+				if (block.recIds[i] == recId) {
+					block.ratings[i] = (byte) rating;
+					return true;
+				}
+			}
+		}
+		invalidate(user);
+		return false;
+	}
+
+	/**
+	 * Mark the row of the user as outdated, e.g. after rows were written or
+	 * deleted outside of this class.
+	 */
+	public static void invalidate(String user) {
+		if (loaded) {
+			changed.put(user, STALE);
+		}
+	}
+
+	// Reload the row of the given user from the database
+	private static synchronized Block reload(final String user) {
+		Block block = changed.get(user);
+		if (block != STALE)
+			return block;
+
+		final Builder builder = new Builder();
+		builder.startRow(user);
+		try {
+			USER_RATINGS.forEach(new RowHandler() {
+				@Override
+				public void handle(ResultSet row) throws SQLException {
+					builder.add(row.getInt("id"), row.getInt("track_id"),
+							row.getInt("eval_id"), row.getInt("rating"));
+				}
+			}, user);
+		} catch (SQLException e) {
+			LOG.warn("Couldn't reload ratings of user: " + user, e);
+			return Block.EMPTY;
+		}
+		block = builder.build();
+		changed.put(user, block);
+		return block;
+	}
+}
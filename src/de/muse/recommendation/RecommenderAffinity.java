@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.utility.Database;
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+
+/**
+ * Aggregated ratings of each user per recommender, used to weight the
+ * recommenders of the dynamic list behavior.
+ *
+ * Per user and recommender the rating sum and count of the two most recent
+ * lists are kept apart from those of all older lists; the recent lists
+ * count twice. The rating writer passes the sums and counts of the rated
+ * lists, which update the aggregates of a recent list in memory; re-rating
+ * an older list rebuilds them from the history. Both replace the earlier
+ * ratings of the list, so rating a list again is safe. Aggregates are written
+ * through to the RECOMMENDER_AFFINITY table. The
+ * first access to a user without saved aggregates builds them once from the
+ * RECOMMENDATION history.
+ */
+public final class RecommenderAffinity {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(RecommenderAffinity.class.getName());
+
+	// Named queries
+	private static final Query SAVED = new Query("affinitySaved",
+			"SELECT recommender_id, rating_sum, rating_count, list_1, sum_1, "
+					+ "count_1, list_2, sum_2, count_2 "
+					+ "FROM recommender_affinity WHERE consumer = ?");
+	private static final Query HISTORY = new Query("affinityHistory",
+			"SELECT recommender_id, list, SUM(rating) total, COUNT(*) ratings "
+					+ "FROM recommendation WHERE consumer = ? "
+					+ "GROUP BY recommender_id, list ORDER BY list");
+	private static final Query SAVE = new Query("affinitySave",
+			"MERGE INTO recommender_affinity a USING (SELECT ? consumer, "
+					+ "? recommender_id FROM dual) s ON (a.consumer = s.consumer "
+					+ "AND a.recommender_id = s.recommender_id) "
+					+ "WHEN MATCHED THEN UPDATE SET rating_sum = ?, "
+					+ "rating_count = ?, list_1 = ?, sum_1 = ?, count_1 = ?, "
+					+ "list_2 = ?, sum_2 = ?, count_2 = ? "
+					+ "WHEN NOT MATCHED THEN INSERT VALUES (s.consumer, "
+					+ "s.recommender_id, ?, ?, ?, ?, ?, ?, ?, ?)");
+	private static final Query INSERT = new Query("affinityInsert",
+			"INSERT INTO recommender_affinity "
+					+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+	private static final Query DELETE = new Query("affinityDelete",
+			"DELETE FROM recommender_affinity WHERE consumer = ?");
+
+	// User name -> aggregates per recommender
+	private static final ConcurrentHashMap<String, UserAffinity> users = new ConcurrentHashMap<String, UserAffinity>();
+
+	/**
+	 * Ratings of one user for one recommender. A list id of -1 marks an
+	 * empty slot.
+	 */
+	private static final class Affinity {
+		// All lists older than the two most recent ones
+		long sum = 0;
+		int count = 0;
+		// Most recent list
+		int list1 = -1;
+		long sum1 = 0;
+		int count1 = 0;
+		// Second most recent list
+		int list2 = -1;
+		long sum2 = 0;
+		int count2 = 0;
+
+		// Set the ratings of a list, replacing earlier ratings of the list.
+		// Returns false for a list older than the two recent ones: its
+		// earlier ratings are folded in and can't be replaced.
+		boolean put(int list, long listSum, int listCount) {
+			if (list == list1) {
+				sum1 = listSum;
+				count1 = listCount;
+			} else if (list == list2) {
+				sum2 = listSum;
+				count2 = listCount;
+			} else if (list > list1) {
+				foldSecond();
+				list2 = list1;
+				sum2 = sum1;
+				count2 = count1;
+				list1 = list;
+				sum1 = listSum;
+				count1 = listCount;
+			} else if (list > list2) {
+				foldSecond();
+				list2 = list;
+				sum2 = listSum;
+				count2 = listCount;
+			} else {
+				return false;
+			}
+			return true;
+		}
+
+		private void foldSecond() {
+			if (list2 >= 0) {
+				sum += sum2;
+				count += count2;
+			}
+		}
+
+		// Mean rating with the recent lists counted twice, scaled to [0, 1]
+		double getScore() {
+			long weightedCount = count + 2L * (count1 + count2);
+			if (weightedCount == 0)
+				return 0.0;
+			double weightedSum = sum + 2.0 * (sum1 + sum2);
+			return weightedSum / (2 * weightedCount);
+		}
+	}
+
+	/**
+	 * Rating sums and counts per recommender of one rated list, including
+	 * its unrated recommendations.
+	 */
+	static final class ListRatings {
+		final int list;
+		// Recommender id -> rating sum and count
+		final Map<Integer, long[]> totals = new HashMap<Integer, long[]>();
+
+		ListRatings(int list) {
+			this.list = list;
+		}
+
+		void add(int recommenderId, int rating) {
+			long[] total = totals.get(recommenderId);
+			if (total == null) {
+				total = new long[2];
+				totals.put(recommenderId, total);
+			}
+			total[0] += rating;
+			total[1]++;
+		}
+	}
+
+	/**
+	 * Aggregates of one user, loaded on first use.
+	 */
+	private static final class UserAffinity {
+		final Map<Integer, Affinity> recommenders = new HashMap<Integer, Affinity>();
+		boolean loaded = false;
+
+		Affinity get(int recommenderId) {
+			Affinity affinity = recommenders.get(recommenderId);
+			if (affinity == null) {
+				affinity = new Affinity();
+				recommenders.put(recommenderId, affinity);
+			}
+			return affinity;
+		}
+	}
+
+	private RecommenderAffinity() {
+	}
+
+	/**
+	 * Get the score of a recommender for a user: the mean of the user's
+	 * ratings of its recommendations with the two most recent lists counted
+	 * twice, divided by 2.
+	 *
+	 * @return The score or 0 if the user didn't rate the recommender yet
+	 */
+	public static double getScore(String user, int recommenderId) {
+		UserAffinity affinity = getUser(user);
+		synchronized (affinity) {
+			ensureLoaded(user, affinity);
+			Affinity recommender = affinity.recommenders.get(recommenderId);
+			return recommender != null ? recommender.getScore() : 0.0;
+		}
+	}
+
+	/**
+	 * Update the aggregates after lists of the user were rated and written.
+	 *
+	 * @param lists
+	 *            The ratings of each rated list, oldest list first
+	 */
+	static void listsRated(String user, List<ListRatings> lists) {
+		UserAffinity affinity = getUser(user);
+		synchronized (affinity) {
+			ensureLoaded(user, affinity);
+			// Not loaded yet means the written ratings are read on next use
+			if (!affinity.loaded)
+				return;
+
+			Map<Integer, Affinity> changed = new HashMap<Integer, Affinity>();
+			boolean outdated = false;
+			for (ListRatings list : lists) {
+				for (Map.Entry<Integer, long[]> total : list.totals
+						.entrySet()) {
+					Affinity recommender = affinity.get(total.getKey());
+					if (!recommender.put(list.list, total.getValue()[0],
+							(int) total.getValue()[1])) {
+						outdated = true;
+					}
+					changed.put(total.getKey(), recommender);
+				}
+			}
+			if (!outdated) {
+				save(user, changed);
+				return;
+			}
+
+			// An older list was rated again
+			try {
+				loadHistory(user, affinity);
+			} catch (SQLException e) {
+				LOG.warn("Couldn't rebuild recommender affinity of user: "
+						+ user, e);
+				// Rebuild from the history on next use
+				affinity.loaded = false;
+			}
+		}
+	}
+
+	/**
+	 * Drop the aggregates of a user, e.g. after recommendations of the user
+	 * were deleted. They are rebuilt from the history on next use.
+	 */
+	public static void invalidate(String user) {
+		UserAffinity affinity = getUser(user);
+		synchronized (affinity) {
+			try {
+				DELETE.update(user);
+			} catch (SQLException e) {
+				LOG.warn("Couldn't delete recommender affinity of user: "
+						+ user, e);
+			}
+			affinity.recommenders.clear();
+			affinity.loaded = false;
+		}
+	}
+
+	private static UserAffinity getUser(String user) {
+		UserAffinity affinity = users.get(user);
+		if (affinity == null) {
+			UserAffinity created = new UserAffinity();
+			affinity = users.putIfAbsent(user, created);
+			if (affinity == null) {
+				affinity = created;
+			}
+		}
+		return affinity;
+	}
+
+	// Read the saved aggregates or build them from the history
+	private static void ensureLoaded(String user, final UserAffinity affinity) {
+		if (affinity.loaded)
+			return;
+
+		affinity.recommenders.clear();
+		try {
+			SAVED.forEach(new RowHandler() {
+				@Override
+				public void handle(ResultSet row) throws SQLException {
+					Affinity recommender = affinity.get(row
+							.getInt("recommender_id"));
+					recommender.sum = row.getLong("rating_sum");
+					recommender.count = row.getInt("rating_count");
+					recommender.list1 = row.getInt("list_1");
+					recommender.sum1 = row.getLong("sum_1");
+					recommender.count1 = row.getInt("count_1");
+					recommender.list2 = row.getInt("list_2");
+					recommender.sum2 = row.getLong("sum_2");
+					recommender.count2 = row.getInt("count_2");
+				}
+			}, user);
+
+			if (affinity.recommenders.isEmpty()) {
+				loadHistory(user, affinity);
+			}
+			affinity.loaded = true;
+		} catch (SQLException e) {
+			LOG.warn("Couldn't load recommender affinity of user: " + user, e);
+			affinity.recommenders.clear();
+		}
+	}
+
+	// Build the aggregates of the user from the history and save them
+	private static void loadHistory(String user, final UserAffinity affinity)
+			throws SQLException {
+		affinity.recommenders.clear();
+		// Rows come ordered by list, so each list is newer than the others
+		HISTORY.forEach(new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				affinity.get(row.getInt("recommender_id")).put(
+						row.getInt("list"), row.getLong("total"),
+						row.getInt("ratings"));
+			}
+		}, user);
+		replace(user, affinity.recommenders);
+	}
+
+	// Replace all saved aggregates of the user in one transaction
+	private static void replace(String user, Map<Integer, Affinity> recommenders) {
+		Connection conn = null;
+		PreparedStatement pstmt = null;
+		try {
+			conn = Database.getConnection();
+			// Start transaction
+			conn.setAutoCommit(false);
+
+			DELETE.update(conn, user);
+			pstmt = INSERT.prepare(conn);
+			for (Map.Entry<Integer, Affinity> entry : recommenders.entrySet()) {
+				Affinity a = entry.getValue();
+				Query.bind(pstmt, user, entry.getKey(), a.sum, a.count,
+						a.list1, a.sum1, a.count1, a.list2, a.sum2, a.count2);
+				pstmt.addBatch();
+			}
+			pstmt.executeBatch();
+
+			// Transaction succeeded. Commit it.
+			conn.commit();
+		} catch (SQLException e) {
+			LOG.warn("- Rollback - Couldn't save recommender affinity of user: "
+					+ user, e);
+			Database.quietRollback(conn);
+		} finally {
+			// Finished transaction
+			Database.resetAutoCommit(conn);
+			Database.quietClose(pstmt);
+			Database.quietClose(conn);
+		}
+	}
+
+	// Write the given aggregates of the user through to the side table
+	private static void save(String user, Map<Integer, Affinity> recommenders) {
+		if (recommenders.isEmpty())
+			return;
+
+		Connection conn = null;
+		PreparedStatement pstmt = null;
+		try {
+			conn = Database.getConnection();
+			pstmt = SAVE.prepare(conn);
+			for (Map.Entry<Integer, Affinity> entry : recommenders.entrySet()) {
+				Affinity a = entry.getValue();
+				Query.bind(pstmt, user, entry.getKey(), a.sum, a.count,
+						a.list1, a.sum1, a.count1, a.list2, a.sum2, a.count2,
+						a.sum, a.count, a.list1, a.sum1, a.count1, a.list2,
+						a.sum2, a.count2);
+				pstmt.addBatch();
+			}
+			pstmt.executeBatch();
+		} catch (SQLException e) {
+			LOG.warn("Couldn't save recommender affinity of user: " + user, e);
+		} finally {
+			Database.quietClose(pstmt);
+			Database.quietClose(conn);
+		}
+	}
+}
@@ -15,13 +15,17 @@
  */
 package de.muse.recommendation;
 
+import java.io.IOException;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ws.rs.core.MultivaluedMap;
 
@@ -29,7 +33,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.muse.api.Recommendation;
+import de.muse.config.ApplicationConfig;
 import de.muse.utility.Database;
+import de.muse.utility.Query;
 
 /**
  * Utility class to provide access to recommender specific data. This should be
@@ -41,71 +47,121 @@ public class RecommenderData {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(RecommenderData.class.getName());
 
+	// Named queries
+	private static final Query NEXT_RECOMMENDATION_IDS = new Query(
+			"nextRecommendationIds",
+			"SELECT RECID.nextval FROM dual CONNECT BY LEVEL <= ?");
+	private static final Query INSERT_RECOMMENDATION = new Query(
+			"insertRecommendation",
+			"INSERT INTO recommendation VALUES(?, CURRENT_TIMESTAMP, ?, 0, ?, ?, ?, ?, ?, ?)");
+	private static final Query INSERT_LIST = new Query("insertList",
+			"INSERT INTO recommendation_list VALUES(?, ?, 0, CURRENT_TIMESTAMP)");
+	private static final String RESERVE_LIST_ID = "BEGIN UPDATE consumer "
+			+ "SET list = list + 1 WHERE name = ? RETURNING list INTO ?; END;";
+
+	// List size -> anonymous block saving a list of that size
+	private static final ConcurrentHashMap<Integer, String> LIST_BLOCKS = new ConcurrentHashMap<Integer, String>();
+	private static final Query CURRENT_LIST = new Query("currentList",
+			"SELECT r.id, r.list, artist, name, recommender_id, explanation, score "
+					+ "FROM recommendation r JOIN tracks ON r.track_id = tracks.id "
+					+ "WHERE r.consumer = ? AND r.list = "
+					+ "(SELECT list FROM consumer WHERE name = ?) "
+					+ "ORDER BY r.id ASC");
+
 	/**
-	 * Save a list of recommendations to the database
+	 * Save a list of recommendations to the database as the next list of the
+	 * user. The list id is reserved by incrementing the list counter of the
+	 * user, which also serializes concurrent calls for the same user.
 	 * 
 	 * @throws SQLException
 	 */
 	public static void putRecommendations(String name,
 			List<Recommendation> recs, int evalId) throws SQLException {
-		// Connect to database
+		// Resolve the tracks before the transaction
+		int[] trackIds = new int[recs.size()];
+		for (int i = 0; i < recs.size(); i++) {
+			trackIds[i] = recs.get(i).getSong().getID();
+		}
+
+		int[] recIds = new int[recs.size()];
+		int list;
+		if (ApplicationConfig.LIST_SINGLE_ROUND_TRIP) {
+			list = putListBlock(name, recs, trackIds, evalId, recIds);
+		} else {
+			list = putListBatch(name, recs, trackIds, evalId, recIds);
+		}
+		LOG.info("Created recommendation list for user: " + name);
+		RatingMatrix.addRecommendations(name, recIds, trackIds, evalId);
+		// A list composed in the background meanwhile would repeat this one
+		ListPrefetcher.invalidate(name);
+
+		// Write through to the current list cache, as it would be loaded
+		List<MuseRecommendation> current = new ArrayList<MuseRecommendation>();
+		for (int i = 0; i < recs.size(); i++) {
+			Recommendation rec = recs.get(i);
+			MuseRecommendation saved = new MuseRecommendation();
+			saved.setId(String.valueOf(recIds[i]));
+			saved.setSong(new MuseSong(rec.getSong().getArtist(), rec
+					.getSong().getName()));
+			saved.setRecommenderID(rec.getRecommenderID());
+			saved.setExplanation(rec.getExplanation());
+			saved.setScore(rec.getScore());
+			current.add(saved);
+		}
+		CurrentListCache.put(name, list, current);
+	}
+
+	// Reserve the list id and the recommendation ids, then insert all rows
+	// in one batch. Returns the list id and fills in the recommendation ids.
+	private static int putListBatch(String name, List<Recommendation> recs,
+			int[] trackIds, int evalId, final int[] recIds)
+			throws SQLException {
 		Connection conn = null;
+		CallableStatement cstmt = null;
 		PreparedStatement pstmt = null;
-		ResultSet result = null;
 
 		try {
 			conn = Database.getConnection();
 			// Start transaction
 			conn.setAutoCommit(false);
 
-			// Get the list value
-			pstmt = conn
-					.prepareStatement("SELECT list FROM consumer WHERE name='"
-							+ name + "'");
-			result = pstmt.executeQuery();
-			int list = 0;
-			while (result.next()) {
-				list = result.getInt("list");
-			}
+			// Increment the list counter, locks the row of the user
+			cstmt = conn.prepareCall(RESERVE_LIST_ID);
+			cstmt.setString(1, name);
+			cstmt.registerOutParameter(2, Types.INTEGER);
+			cstmt.execute();
+			int list = cstmt.getInt(2);
+			if (cstmt.wasNull())
+				throw new SQLException("Unknown user: " + name);
 
-			// Save list to db
-			pstmt = conn
-					.prepareStatement("INSERT INTO recommendation VALUES(RECID.nextval,  CURRENT_TIMESTAMP, ?, 0, ?, ?, ?, ?, ?, ?)");
-			// Save list of recommendations
-			for (Recommendation rec : recs) {
-				pstmt.setString(1, name);
-				pstmt.setInt(2, list + 1);
-				pstmt.setInt(3, rec.getRecommenderID());
-				pstmt.setString(4, rec.getExplanation());
-				pstmt.setDouble(5, rec.getScore());
-				pstmt.setInt(6, rec.getSong().getID());
-				if (evalId == 0) {
-					pstmt.setNull(7, java.sql.Types.INTEGER);
-				} else {
-					pstmt.setInt(7, evalId);
+			if (recs.size() > 0) {
+				NEXT_RECOMMENDATION_IDS.forEach(conn, new Query.RowHandler() {
+					private int next = 0;
+
+					@Override
+					public void handle(ResultSet row) throws SQLException {
+						recIds[next++] = row.getInt(1);
+					}
+				}, recs.size());
+
+				pstmt = INSERT_RECOMMENDATION.prepare(conn);
+				Integer eval = evalId == 0 ? null : evalId;
+				for (int i = 0; i < recs.size(); i++) {
+					Recommendation rec = recs.get(i);
+					Query.bind(pstmt, recIds[i], name, list,
+							rec.getRecommenderID(), rec.getExplanation(),
+							rec.getScore(), trackIds[i], eval);
+					pstmt.addBatch();
 				}
-				pstmt.execute();
+				pstmt.executeBatch();
 			}
 
-			// Write back new list id for user
-			list++;
-			pstmt = conn
-					.prepareStatement("UPDATE consumer SET list = ? WHERE name= ?");
-			pstmt.setInt(1, list);
-			pstmt.setString(2, name);
-			pstmt.execute();
-
 			// Create row in list rating table
-			pstmt = conn
-					.prepareStatement("INSERT INTO recommendation_list VALUES(?,?,0,CURRENT_TIMESTAMP)");
-			pstmt.setString(1, name);
-			pstmt.setInt(2, list);
-			pstmt.execute();
-
-			LOG.info("Created recommendation list for user: " + name);
+			INSERT_LIST.update(conn, name, list);
 
 			// Transaction succeeded. Commit it.
 			conn.commit();
+			return list;
 		} catch (SQLException e) {
 			LOG.warn("- Rollback - Saving recommendations to database for: "
 					+ name + " failed.", e);
@@ -114,124 +170,181 @@ public class RecommenderData {
 		} finally {
 			// Finished transaction
 			Database.resetAutoCommit(conn);
-			Database.quietClose(conn, pstmt, result);
+			Database.quietClose(cstmt);
+			Database.quietClose(pstmt);
+			Database.quietClose(conn);
 		}
 	}
 
-	/**
-	 * Put ratings to database.
-	 * 
-	 * @param ratings
-	 *            Map of key value pairs. Where recommendation id as key and
-	 *            rating as value.
-	 * 
-	 */
-	public static void putRatings(MultivaluedMap<String, String> evals)
-			throws SQLException {
-		List<String> keys = new ArrayList<String>(evals.keySet());
-		if (keys.isEmpty())
-			return;
-
-		// Connect to database
+	// Save the whole list with one anonymous block. The block runs
+	// atomically and is committed along with its execution. Returns the list
+	// id and fills in the recommendation ids.
+	private static int putListBlock(String name, List<Recommendation> recs,
+			int[] trackIds, int evalId, int[] recIds) throws SQLException {
 		Connection conn = null;
-		PreparedStatement pstmt = null;
-		ResultSet result = null;
+		CallableStatement cstmt = null;
 
 		try {
 			conn = Database.getConnection();
-			pstmt = conn
-					.prepareStatement("UPDATE recommendation SET rating = ? WHERE id = ?");
-
-			for (int i = 0; i < evals.size(); i++) {
-				String key = keys.get(i);
-				if (key.equals("behavior") || key.equals("recommenders")
-						|| key.equals("places") || key.equals("list")) {
-					continue;
+			cstmt = conn.prepareCall(listBlock(recs.size()));
+			int index = 1;
+			// User of the list counter and of the list rating row
+			cstmt.setString(index++, name);
+			cstmt.setString(index++, name);
+			Integer eval = evalId == 0 ? null : evalId;
+			for (int i = 0; i < recs.size(); i++) {
+				Recommendation rec = recs.get(i);
+				cstmt.setString(index++, name);
+				cstmt.setInt(index++, rec.getRecommenderID());
+				cstmt.setString(index++, rec.getExplanation());
+				cstmt.setDouble(index++, rec.getScore());
+				cstmt.setInt(index++, trackIds[i]);
+				if (eval == null) {
+					cstmt.setNull(index++, Types.INTEGER);
+				} else {
+					cstmt.setInt(index++, eval);
 				}
-				List<String> values = evals.get(key);
-				// Radio button can only have one value per key
-				String value = values.get(0);
-				pstmt.setString(1, value);
-				pstmt.setString(2, key);
-				pstmt.execute();
+				cstmt.registerOutParameter(index++, Types.INTEGER);
 			}
+			// List id
+			cstmt.registerOutParameter(index, Types.INTEGER);
+			cstmt.execute();
 
-			// Query list information
-			int list = 0;
-			String userName = null;
-			pstmt = conn.prepareStatement("SELECT consumer, list "
-					+ "FROM recommendation WHERE id = ?");
-			pstmt.setString(1, keys.get(0));
-			result = pstmt.executeQuery();
-			while (result.next()) {
-				list = result.getInt("list");
-				userName = result.getString("consumer");
+			index = 3;
+			for (int i = 0; i < recs.size(); i++) {
+				index += 6;
+				recIds[i] = cstmt.getInt(index++);
 			}
-
-			// Save list rating to database
-			pstmt = conn.prepareStatement("UPDATE recommendation_list "
-					+ "SET rating = ? WHERE consumer = ? and list_id = ?");
-			pstmt.setString(1, evals.get("list").get(0));
-			pstmt.setString(2, userName);
-			pstmt.setInt(3, list);
-			pstmt.execute();
-
+			return cstmt.getInt(index);
 		} catch (SQLException e) {
-			LOG.warn("Couldn't save ratings.", e);
+			LOG.warn("Saving recommendations to database for: " + name
+					+ " failed.", e);
 			throw e;
 		} finally {
-			Database.quietClose(conn, pstmt, result);
+			Database.quietClose(cstmt);
+			Database.quietClose(conn);
 		}
 	}
 
+	// Anonymous block saving a list of the given size
+	private static String listBlock(int size) {
+		String block = LIST_BLOCKS.get(size);
+		if (block != null)
+			return block;
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("DECLARE l consumer.list%TYPE; BEGIN ");
+		sql.append("UPDATE consumer SET list = list + 1 WHERE name = ? ");
+		sql.append("RETURNING list INTO l; ");
+		sql.append("IF l IS NULL THEN ");
+		sql.append("RAISE_APPLICATION_ERROR(-20001, 'Unknown user'); END IF; ");
+		sql.append("INSERT INTO recommendation_list ");
+		sql.append("VALUES(?, l, 0, CURRENT_TIMESTAMP); ");
+		for (int i = 0; i < size; i++) {
+			sql.append("INSERT INTO recommendation VALUES(RECID.nextval, ");
+			sql.append("CURRENT_TIMESTAMP, ?, 0, l, ?, ?, ?, ?, ?) ");
+			sql.append("RETURNING id INTO ?; ");
+		}
+		sql.append("? := l; END;");
+		block = sql.toString();
+		LIST_BLOCKS.putIfAbsent(size, block);
+		return block;
+	}
+
+	/**
+	 * Put ratings to database. The ratings are journaled and written in the
+	 * background by {@link RatingIngestion}.
+	 * 
+	 * @param ratings
+	 *            Map of key value pairs. Where recommendation id as key and
+	 *            rating as value. The optional user lets the next list of
+	 *            the user be expected while the ratings are written.
+	 * @throws IOException
+	 *             If the ratings couldn't be journaled
+	 * @throws IllegalArgumentException
+	 *             If an id or a rating isn't a number or the list is rated
+	 *             without rating any of its recommendations
+	 */
+	public static void putRatings(MultivaluedMap<String, String> evals)
+			throws IOException {
+		List<Integer> recIds = new ArrayList<Integer>();
+		List<Integer> ratings = new ArrayList<Integer>();
+		for (String key : evals.keySet()) {
+			if (key.equals("behavior") || key.equals("recommenders")
+					|| key.equals("places") || key.equals("list")
+					|| key.equals("user")) {
+				continue;
+			}
+			// Radio button can only have one value per key
+			recIds.add(Integer.valueOf(key));
+			ratings.add(Integer.valueOf(evals.getFirst(key)));
+		}
+		String list = evals.getFirst("list");
+		Integer listRating = list != null ? Integer.valueOf(list) : null;
+		if (recIds.isEmpty() && listRating == null)
+			return;
+		// The list is identified by its rated recommendations
+		if (recIds.isEmpty())
+			throw new IllegalArgumentException(
+					"Got a list rating without rated recommendations.");
+
+		// Written to the database in the background
+		String user = evals.getFirst("user");
+		if (user != null) {
+			ListPrefetcher.expect(user);
+		}
+		try {
+			RatingIngestion.submit(listRating, toArray(recIds),
+					toArray(ratings));
+		} catch (IOException e) {
+			if (user != null) {
+				ListPrefetcher.unexpect(user);
+			}
+			throw e;
+		}
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
 	/**
-	 * Get current list of recommendations for a user from the database
+	 * Get current list of recommendations for a user from the cache or the
+	 * database
 	 * 
 	 * @param name
 	 *            The name of the user
 	 */
 	public static List<MuseRecommendation> getCurrentRecommendationList(
 			String name) throws SQLException {
-		List<MuseRecommendation> recs = new ArrayList<MuseRecommendation>();
-
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			// Get id of current list of the user
-			int id = 0;
-			result = stmt.executeQuery("SELECT list FROM consumer WHERE name="
-					+ "'" + name + "'");
+		List<MuseRecommendation> recs = CurrentListCache.get(name);
+		if (recs != null)
+			return recs;
+		recs = new ArrayList<MuseRecommendation>();
+		long since = CurrentListCache.stamp();
+		final int[] list = new int[1];
 
-			while (result.next()) {
-				id = result.getInt("list");
-			}
-			// Query the users current recommendation list
-			result = stmt
-					.executeQuery("SELECT r.id, artist, name, recommender_id, explanation, score "
-							+ "FROM Recommendation r JOIN tracks ON r.track_id = tracks.id WHERE list ="
-							+ String.valueOf(id)
-							+ " AND consumer ='"
-							+ name
-							+ "' ORDER BY r.id ASC");
-
-			while (result.next()) {
+		// Query the users current recommendation list
+		recs.addAll(CURRENT_LIST.list(new Query.RowMapper<MuseRecommendation>() {
+			@Override
+			public MuseRecommendation map(ResultSet row) throws SQLException {
+				list[0] = row.getInt("list");
 				MuseRecommendation rec = new MuseRecommendation();
-				rec.setId(result.getString("id"));
-				MuseSong song = new MuseSong(result.getString("artist"),
-						result.getString("name"));
+				rec.setId(row.getString("id"));
+				MuseSong song = new MuseSong(row.getString("artist"), row
+						.getString("name"));
 				rec.setSong(song);
-				rec.setRecommenderID(result.getInt("recommender_id"));
-				rec.setExplanation(result.getString("explanation"));
-				rec.setScore(result.getDouble("score"));
-				recs.add(rec);
+				rec.setRecommenderID(row.getInt("recommender_id"));
+				rec.setExplanation(row.getString("explanation"));
+				rec.setScore(row.getDouble("score"));
+				return rec;
 			}
-		} finally {
-			Database.quietClose(conn, stmt, result);
-		}
+		}, name, name));
+		CurrentListCache.putLoaded(name, list[0], recs, since);
 		return recs;
 	}
 
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+
+/**
+ * In-memory copy of a table of precomputed prediction scores (user_name,
+ * track_id, score, explanation), so recommenders can answer without querying
+ * the database.
+ *
+ * Per user the best {@link #TOP_N} distinct tracks are kept in primitive
+ * arrays ordered by score DESC. Filtering out tracks the user has seen in the
+ * meantime is left to the reader.
+ */
+public final class ScoreTable {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory.getLogger(ScoreTable.class
+			.getName());
+
+	// Number of scores kept per user
+	public static final int TOP_N = 200;
+
+	// Precomputed scores of the recommenders
+	public static final ScoreTable COLLABORATIVE = new ScoreTable(
+			"user_user_score");
+	public static final ScoreTable CONTENT = new ScoreTable("user_track_score");
+
+	private final String table;
+	private final Query allScores;
+	private final Query userScores;
+
+	// User name -> scores
+	private final ConcurrentHashMap<String, Row> rows = new ConcurrentHashMap<String, Row>();
+	private volatile boolean loaded = false;
+
+	/**
+	 * Scores of one user ordered by score DESC.
+	 */
+	public static final class Row {
+		private final int[] trackIds;
+		private final float[] scores;
+		private final String[] explanations;
+
+		private Row(int[] trackIds, float[] scores, String[] explanations) {
+			this.trackIds = trackIds;
+			this.scores = scores;
+			this.explanations = explanations;
+		}
+
+		public int size() {
+			return trackIds.length;
+		}
+
+		public int getTrackId(int i) {
+			return trackIds[i];
+		}
+
+		public double getScore(int i) {
+			return scores[i];
+		}
+
+		public String getExplanation(int i) {
+			return explanations[i];
+		}
+	}
+
+	// Collects the rows of one user
+	private static final class Builder {
+		final Set<Integer> seen = new HashSet<Integer>();
+		int[] trackIds = new int[TOP_N];
+		float[] scores = new float[TOP_N];
+		String[] explanations = new String[TOP_N];
+		int size = 0;
+
+		// Add a track, rows must come ordered by score DESC
+		void add(int trackId, double score, String explanation) {
+			if (size == TOP_N || !seen.add(trackId))
+				return;
+			trackIds[size] = trackId;
+			scores[size] = (float) score;
+			explanations[size++] = explanation;
+		}
+
+		Row build() {
+			return new Row(Arrays.copyOf(trackIds, size), Arrays.copyOf(
+					scores, size), Arrays.copyOf(explanations, size));
+		}
+	}
+
+	private ScoreTable(String table) {
+		this.table = table;
+		this.allScores = new Query(table + "All",
+				"SELECT user_name, track_id, score, explanation FROM " + table
+						+ " ORDER BY user_name, score DESC");
+		this.userScores = new Query(table + "User",
+				"SELECT track_id, score, explanation FROM " + table
+						+ " WHERE user_name = ? ORDER BY score DESC");
+	}
+
+	/**
+	 * Check if the table was loaded and can answer queries.
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Get the scores of a user.
+	 *
+	 * @return The scores or null if there are none
+	 */
+	public Row get(String user) {
+		return rows.get(user);
+	}
+
+	/**
+	 * Load all scores from the database. The previous scores stay in use if
+	 * this fails.
+	 */
+	public synchronized void load() {
+		Loader loader = new Loader();
+		try {
+			allScores.forEach(loader);
+		} catch (SQLException e) {
+			LOG.warn("Couldn't load scores from " + table, e);
+			return;
+		}
+		loader.finishUser();
+
+		rows.putAll(loader.rows);
+		rows.keySet().retainAll(loader.rows.keySet());
+		loaded = true;
+		LOG.info("Loaded " + table + " scores of " + loader.rows.size()
+				+ " users.");
+	}
+
+	/**
+	 * Reload the scores of one user, e.g. after they were replaced in the
+	 * database.
+	 */
+	public synchronized void reload(String user) {
+		if (!loaded)
+			return;
+
+		final Builder builder = new Builder();
+		try {
+			userScores.forEach(new RowHandler() {
+				@Override
+				public void handle(ResultSet row) throws SQLException {
+					builder.add(row.getInt("track_id"),
+							row.getDouble("score"),
+							row.getString("explanation"));
+				}
+			}, user);
+		} catch (SQLException e) {
+			LOG.warn("Couldn't reload " + table + " scores of user: " + user,
+					e);
+			rows.remove(user);
+			return;
+		}
+
+		if (builder.size == 0) {
+			rows.remove(user);
+		} else {
+			rows.put(user, builder.build());
+		}
+	}
+
+	/**
+	 * Drop the scores of a user after they were deleted from the database.
+	 */
+	public void remove(String user) {
+		rows.remove(user);
+	}
+
+	/**
+	 * Builds the rows of all users from a result ordered by user name.
+	 */
+	private static final class Loader implements RowHandler {
+		final Map<String, Row> rows = new HashMap<String, Row>();
+		// Equal explanation texts are shared between rows
+		private final Map<String, String> texts = new HashMap<String, String>();
+		private String current = null;
+		private Builder builder = null;
+
+		@Override
+		public void handle(ResultSet row) throws SQLException {
+			String user = row.getString("user_name");
+			if (!user.equals(current)) {
+				finishUser();
+				current = user;
+				builder = new Builder();
+			}
+			builder.add(row.getInt("track_id"), row.getDouble("score"),
+					share(row.getString("explanation")));
+		}
+
+		void finishUser() {
+			if (builder != null) {
+				rows.put(current, builder.build());
+				builder = null;
+			}
+		}
+
+		private String share(String text) {
+			if (text == null)
+				return null;
+			String shared = texts.get(text);
+			if (shared == null) {
+				texts.put(text, text);
+				shared = text;
+			}
+			return shared;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.muse.utility.SparseVector;
+
+/**
+ * Maps the tag strings of TRACK_TAGS to dense int ids, so tag vectors can be
+ * stored as {@link SparseVector}s.
+ *
+ * Ids are assigned on first sight and stay valid while the application runs.
+ * They are not persisted, so vectors must not outlive the application.
+ */
+public final class TagDictionary {
+	// Tag -> id
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	// Id -> tag, replaced when growing
+	private static volatile String[] tags = new String[256];
+	private static int size = 0;
+
+	private TagDictionary() {
+	}
+
+	/**
+	 * Get the id of a tag, assigning a new one if the tag is unknown.
+	 */
+	public static int getId(String tag) {
+		Integer id = ids.get(tag);
+		if (id != null)
+			return id;
+
+		synchronized (TagDictionary.class) {
+			id = ids.get(tag);
+			if (id != null)
+				return id;
+
+			if (size == tags.length) {
+				tags = Arrays.copyOf(tags, size * 2);
+			}
+			tags[size] = tag;
+			id = size++;
+			ids.put(tag, id);
+			return id;
+		}
+	}
+
+	/**
+	 * Get the id of a tag without assigning one.
+	 *
+	 * @return The id or -1 if the tag is unknown
+	 */
+	public static int lookup(String tag) {
+		Integer id = ids.get(tag);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Get the tag of an id.
+	 *
+	 * @return The tag or null if the id wasn't assigned
+	 */
+	public static String getTag(int id) {
+		String[] current = tags;
+		return id >= 0 && id < current.length ? current[id] : null;
+	}
+
+	/**
+	 * Get the number of known tags.
+	 */
+	public static int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Convert a tag -> count mapping to a sparse vector.
+	 */
+	public static SparseVector toVector(Map<String, Double> tagCounts) {
+		if (tagCounts == null || tagCounts.isEmpty())
+			return SparseVector.EMPTY;
+
+		int[] vectorIds = new int[tagCounts.size()];
+		float[] weights = new float[tagCounts.size()];
+		int i = 0;
+		for (Map.Entry<String, Double> tag : tagCounts.entrySet()) {
+			vectorIds[i] = getId(tag.getKey());
+			weights[i++] = tag.getValue().floatValue();
+		}
+		return new SparseVector(vectorIds, weights);
+	}
+}
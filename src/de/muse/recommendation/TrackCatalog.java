@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+
+/**
+ * In-memory index of all tracks: id -> (artist, name, mbid).
+ *
+ * The catalog is loaded from the TRACKS table on first use and afterwards kept
+ * up to date by the code that inserts, merges or enriches tracks. Lookups of
+ * ids that are not (yet) known fall back to the database.
+ */
+public final class TrackCatalog {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TrackCatalog.class.getName());
+
+	// Named queries
+	private static final Query ALL_TRACKS = new Query("catalogAllTracks",
+			"SELECT id, artist, name, mbid FROM tracks");
+	private static final Query TRACKS = new Query("catalogTracks",
+			"SELECT id, artist, name, mbid FROM tracks WHERE id IN ({list})");
+
+	// Maximum number of ids per fallback query
+	private static final int CHUNK_SIZE = 512;
+
+	// Track id -> Track
+	private static final ConcurrentHashMap<Integer, Track> tracks = new ConcurrentHashMap<Integer, Track>();
+	private static volatile boolean loaded = false;
+
+	/**
+	 * Immutable catalog entry of a track.
+	 */
+	public static final class Track {
+		private final int id;
+		private final String artist;
+		private final String name;
+		private final String mbid;
+
+		public Track(int id, String artist, String name, String mbid) {
+			this.id = id;
+			this.artist = artist;
+			this.name = name;
+			this.mbid = mbid;
+		}
+
+		public int getID() {
+			return id;
+		}
+
+		public String getArtist() {
+			return artist;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getMbid() {
+			return mbid;
+		}
+
+		/**
+		 * Create a new song object of this track.
+		 */
+		public MuseSong toSong() {
+			MuseSong song = new MuseSong(artist, name);
+			song.setID(id);
+			return song;
+		}
+	}
+
+	private TrackCatalog() {
+	}
+
+	/**
+	 * Get the track with the given id.
+	 *
+	 * @return The track or null if it does not exist
+	 */
+	public static Track get(int id) {
+		ensureLoaded();
+		Track track = tracks.get(id);
+		if (track == null) {
+			track = getAll(Collections.singletonList(id)).get(id);
+		}
+		return track;
+	}
+
+	/**
+	 * Get the tracks with the given ids. Ids missing in the catalog are
+	 * fetched from the database in bulk and added to the catalog.
+	 *
+	 * @return Mapping track id -> track of all existing tracks
+	 */
+	public static Map<Integer, Track> getAll(Collection<Integer> ids) {
+		ensureLoaded();
+		Map<Integer, Track> found = new HashMap<Integer, Track>(
+				ids.size() * 2);
+		List<Integer> missing = new ArrayList<Integer>();
+		for (Integer id : ids) {
+			Track track = tracks.get(id);
+			if (track != null) {
+				found.put(id, track);
+			} else {
+				missing.add(id);
+			}
+		}
+
+		// Fetch unknown tracks from the database
+		for (int from = 0; from < missing.size(); from += CHUNK_SIZE) {
+			List<Integer> chunk = missing.subList(from,
+					Math.min(from + CHUNK_SIZE, missing.size()));
+			try {
+				for (Track track : load(TRACKS, chunk)) {
+					tracks.put(track.getID(), track);
+					found.put(track.getID(), track);
+				}
+			} catch (SQLException e) {
+				LOG.warn("Couldn't get tracks from the database: " + chunk, e);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Get the number of tracks in the catalog.
+	 */
+	public static int size() {
+		ensureLoaded();
+		return tracks.size();
+	}
+
+	/**
+	 * Add a newly inserted track to the catalog.
+	 */
+	public static void register(int id, String artist, String name, String mbid) {
+		if (id == 0)
+			return;
+		tracks.put(id, new Track(id, artist, name, mbid));
+	}
+
+	/**
+	 * Remove a deleted track from the catalog.
+	 */
+	public static void remove(int id) {
+		tracks.remove(id);
+	}
+
+	/**
+	 * Update the MusicBrainz id of a track in the catalog.
+	 */
+	public static void updateMbid(int id, String mbid) {
+		Track track = tracks.get(id);
+		if (track != null) {
+			tracks.put(id, new Track(id, track.getArtist(), track.getName(),
+					mbid));
+		}
+	}
+
+	/**
+	 * Load all tracks from the database into the catalog. Entries registered
+	 * in the meantime are kept.
+	 */
+	public static synchronized void reload() {
+		try {
+			List<Track> all = load(ALL_TRACKS, null);
+			for (Track track : all) {
+				tracks.put(track.getID(), track);
+			}
+			loaded = true;
+			LOG.info("Loaded " + all.size() + " tracks into the catalog.");
+		} catch (SQLException e) {
+			LOG.warn("Couldn't load the track catalog.", e);
+		}
+	}
+
+	// Load the catalog on first use
+	private static void ensureLoaded() {
+		if (!loaded) {
+			synchronized (TrackCatalog.class) {
+				if (!loaded) {
+					reload();
+					// Don't retry on every lookup if the database is down
+					loaded = true;
+				}
+			}
+		}
+	}
+
+	// Read tracks using the given query
+	private static List<Track> load(Query query, List<Integer> ids)
+			throws SQLException {
+		final List<Track> result = new ArrayList<Track>();
+		RowHandler handler = new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				result.add(new Track(row.getInt("id"), row.getString("artist"),
+						row.getString("name"), row.getString("mbid")));
+			}
+		};
+
+		if (ids == null) {
+			query.forEach(handler);
+		} else {
+			query.forEachIn(handler, ids);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.collaborative;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.recommendation.RatingMatrix;
+
+/**
+ * Learns latent user and track factors from the explicit ratings with
+ * alternating least squares (ALS).
+ *
+ * Each half-step fixes one side and solves a regularized k x k least squares
+ * problem per user (or track) by Cholesky decomposition. The problems of one
+ * half-step are independent and solved in parallel on a fork-join pool.
+ * Factors are kept in flat float arrays, row i at [i * k, (i + 1) * k).
+ */
+public class AlsTrainer {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory.getLogger(AlsTrainer.class
+			.getName());
+
+	// Number of rows a fork-join task solves without splitting
+	private static final int TASK_SIZE = 64;
+
+	private final int factors;
+	private final int iterations;
+	private final double lambda;
+
+	// Users and tracks by index
+	private String[] users;
+	private int[] trackIds;
+
+	// Ratings by user (CSR) and by track (CSC)
+	private int[] userStart;
+	private int[] userTracks;
+	private float[] userRatings;
+	private int[] trackStart;
+	private int[] trackUsers;
+	private float[] trackRatings;
+
+	// Factors
+	private float[] userFactors;
+	private float[] trackFactors;
+
+	/**
+	 * Create a trainer.
+	 *
+	 * @param factors
+	 *            Number of latent factors
+	 * @param iterations
+	 *            Number of ALS iterations
+	 * @param lambda
+	 *            Regularization weight, scaled by the number of ratings of
+	 *            each user and track
+	 */
+	public AlsTrainer(int factors, int iterations, double lambda) {
+		this.factors = factors;
+		this.iterations = iterations;
+		this.lambda = lambda;
+	}
+
+	/**
+	 * Train a model on all non-zero ratings of the rating matrix.
+	 *
+	 * @return The trained model or null if there are no ratings
+	 */
+	public MatrixFactorizationModel train() {
+		long start = System.currentTimeMillis();
+		if (!readRatings())
+			return null;
+
+		// Small random start values for the track factors
+		Random random = new Random(42);
+		userFactors = new float[users.length * factors];
+		trackFactors = new float[trackIds.length * factors];
+		for (int i = 0; i < trackFactors.length; i++) {
+			trackFactors[i] = random.nextFloat() * 0.1f;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			for (int iteration = 0; iteration < iterations; iteration++) {
+				pool.invoke(new SolveTask(true, 0, users.length));
+				pool.invoke(new SolveTask(false, 0, trackIds.length));
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		LOG.info("Trained " + factors + " factors for " + users.length
+				+ " users and " + trackIds.length + " tracks in "
+				+ (System.currentTimeMillis() - start) + " ms. RMSE: "
+				+ computeRmse());
+		return new MatrixFactorizationModel(factors, users, trackIds,
+				userFactors, trackFactors);
+	}
+
+	// Read the non-zero ratings into CSR and CSC arrays
+	private boolean readRatings() {
+		List<String> names = new ArrayList<String>();
+		Map<Integer, Integer> trackIndex = new HashMap<Integer, Integer>();
+		List<Integer> tracks = new ArrayList<Integer>();
+		int[] starts = new int[16];
+		int[] columns = new int[1024];
+		float[] ratings = new float[1024];
+		int size = 0;
+
+		for (String user : RatingMatrix.getUsers()) {
+			RatingMatrix.View row = RatingMatrix.getRow(user);
+			int rowStart = size;
+			for (int i = 0; i < row.size(); i++) {
+				int rating = row.getRating(i);
+				if (rating == 0)
+					continue;
+				Integer t = trackIndex.get(row.getTrackId(i));
+				if (t == null) {
+					t = tracks.size();
+					trackIndex.put(row.getTrackId(i), t);
+					tracks.add(row.getTrackId(i));
+				}
+				if (size == columns.length) {
+					columns = Arrays.copyOf(columns, size * 2);
+					ratings = Arrays.copyOf(ratings, size * 2);
+				}
+				columns[size] = t;
+				ratings[size++] = rating;
+			}
+
+			// Users without ratings get no factors
+			if (size == rowStart)
+				continue;
+			if (names.size() + 1 >= starts.length) {
+				starts = Arrays.copyOf(starts, starts.length * 2);
+			}
+			starts[names.size()] = rowStart;
+			names.add(user);
+		}
+		if (size == 0) {
+			LOG.warn("No ratings to train the matrix factorization model on.");
+			return false;
+		}
+
+		users = names.toArray(new String[names.size()]);
+		trackIds = new int[tracks.size()];
+		for (int t = 0; t < trackIds.length; t++) {
+			trackIds[t] = tracks.get(t);
+		}
+		userStart = Arrays.copyOf(starts, users.length + 1);
+		userStart[users.length] = size;
+		userTracks = Arrays.copyOf(columns, size);
+		userRatings = Arrays.copyOf(ratings, size);
+
+		// Transpose
+		trackStart = new int[trackIds.length + 1];
+		for (int i = 0; i < size; i++) {
+			trackStart[userTracks[i] + 1]++;
+		}
+		for (int t = 0; t < trackIds.length; t++) {
+			trackStart[t + 1] += trackStart[t];
+		}
+		trackUsers = new int[size];
+		trackRatings = new float[size];
+		int[] next = Arrays.copyOf(trackStart, trackIds.length);
+		for (int u = 0; u < users.length; u++) {
+			for (int i = userStart[u]; i < userStart[u + 1]; i++) {
+				int position = next[userTracks[i]]++;
+				trackUsers[position] = u;
+				trackRatings[position] = userRatings[i];
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Solves the factors of a range of users or tracks, splitting the range
+	 * until it is small enough.
+	 */
+	private class SolveTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final boolean solveUsers;
+		private final int from;
+		private final int to;
+
+		SolveTask(boolean solveUsers, int from, int to) {
+			this.solveUsers = solveUsers;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SolveTask(solveUsers, from, middle),
+						new SolveTask(solveUsers, middle, to));
+				return;
+			}
+
+			double[] matrix = new double[factors * factors];
+			double[] vector = new double[factors];
+			for (int row = from; row < to; row++) {
+				if (solveUsers) {
+					solve(row, userStart, userTracks, userRatings,
+							trackFactors, userFactors, matrix, vector);
+				} else {
+					solve(row, trackStart, trackUsers, trackRatings,
+							userFactors, trackFactors, matrix, vector);
+				}
+			}
+		}
+	}
+
+	// Solve (Y^T Y + lambda * n * I) x = Y^T r for one row, where Y are the
+	// fixed factors of the rated columns
+	private void solve(int row, int[] start, int[] columns, float[] ratings,
+			float[] fixed, float[] target, double[] matrix, double[] vector) {
+		int k = factors;
+		Arrays.fill(matrix, 0);
+		Arrays.fill(vector, 0);
+		int n = start[row + 1] - start[row];
+		for (int i = start[row]; i < start[row + 1]; i++) {
+			int offset = columns[i] * k;
+			double rating = ratings[i];
+			for (int a = 0; a < k; a++) {
+				double ya = fixed[offset + a];
+				vector[a] += rating * ya;
+				for (int b = 0; b <= a; b++) {
+					matrix[a * k + b] += ya * fixed[offset + b];
+				}
+			}
+		}
+		for (int a = 0; a < k; a++) {
+			matrix[a * k + a] += lambda * Math.max(n, 1);
+		}
+
+		choleskySolve(matrix, vector, k);
+		int offset = row * k;
+		for (int a = 0; a < k; a++) {
+			target[offset + a] = (float) vector[a];
+		}
+	}
+
+	// Solve A x = b in place for a symmetric positive definite A of which
+	// the lower triangle is given. The solution is written to b.
+	private static void choleskySolve(double[] a, double[] b, int k) {
+		// Decompose A = L L^T, L stored in the lower triangle of a
+		for (int j = 0; j < k; j++) {
+			double diagonal = a[j * k + j];
+			for (int p = 0; p < j; p++) {
+				diagonal -= a[j * k + p] * a[j * k + p];
+			}
+			diagonal = Math.sqrt(Math.max(diagonal, 1e-12));
+			a[j * k + j] = diagonal;
+			for (int i = j + 1; i < k; i++) {
+				double sum = a[i * k + j];
+				for (int p = 0; p < j; p++) {
+					sum -= a[i * k + p] * a[j * k + p];
+				}
+				a[i * k + j] = sum / diagonal;
+			}
+		}
+
+		// Forward substitution L y = b
+		for (int i = 0; i < k; i++) {
+			double sum = b[i];
+			for (int p = 0; p < i; p++) {
+				sum -= a[i * k + p] * b[p];
+			}
+			b[i] = sum / a[i * k + i];
+		}
+		// Backward substitution L^T x = y
+		for (int i = k - 1; i >= 0; i--) {
+			double sum = b[i];
+			for (int p = i + 1; p < k; p++) {
+				sum -= a[p * k + i] * b[p];
+			}
+			b[i] = sum / a[i * k + i];
+		}
+	}
+
+	// Root mean squared error on the training ratings
+	private double computeRmse() {
+		double sum = 0;
+		for (int u = 0; u < users.length; u++) {
+			for (int i = userStart[u]; i < userStart[u + 1]; i++) {
+				double prediction = 0;
+				for (int a = 0; a < factors; a++) {
+					prediction += userFactors[u * factors + a]
+							* trackFactors[userTracks[i] * factors + a];
+				}
+				double error = userRatings[i] - prediction;
+				sum += error * error;
+			}
+		}
+		return Math.sqrt(sum / userRatings.length);
+	}
+}
@@ -1,379 +1,463 @@
-/*
- * Copyright (C) 2014 University of Freiburg.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- * http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package de.muse.recommendation.recommenders.collaborative;
-
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import de.muse.api.AbstractRecommender;
-import de.muse.api.DataRepository;
-import de.muse.api.Recommendation;
-import de.muse.api.User;
-import de.muse.recommendation.MuseRecommendation;
-import de.muse.recommendation.MuseSong;
-import de.muse.utility.Database;
-import de.muse.utility.MathHelper;
-
-public class CollaborativeFilteringRecommender extends AbstractRecommender {
-
-	// Configured logger
-	private static transient final Logger LOG = LoggerFactory
-			.getLogger(CollaborativeFilteringRecommender.class.getName());
-
-	// Meta information
-	private static final String NAME = "Collaborative Filtering";
-	private static final String EXPLANATION = "Recommendations are based on preferences of similar users.";
-	private static final Map<String, Double> tagDistribution = new HashMap<String, Double>();
-	static {
-		tagDistribution.put("Accuracy", 80.0);
-		tagDistribution.put("Novelty", 10.0);
-		tagDistribution.put("Diversity", 0.0);
-		tagDistribution.put("Serendipity", 10.0);
-	}
-
-	/**
-	 * Create recommender object
-	 * 
-	 * @param ID
-	 *            The internal ID of the recommender
-	 * @param dataRepository
-	 *            The data repository
-	 */
-	public CollaborativeFilteringRecommender(int ID,
-			DataRepository dataRepository) {
-		super(ID, dataRepository);
-	}
-
-	@Override
-	public List<Recommendation> getRecommendations(User user, int howMany) {
-		List<Recommendation> recommendations = new ArrayList<Recommendation>();
-
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
-
-		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-
-			// 1) Get the tracks with highest predicted rating
-			result = stmt
-					.executeQuery("SELECT DISTINCT track_id, score, explanation "
-							+ "FROM user_user_score WHERE track_id "
-							+ "NOT IN(SELECT track_id FROM recommendation WHERE consumer = '"
-							+ user.getName()
-							+ "')"
-							+ " AND user_name = '"
-							+ user.getName() + "' ORDER BY score DESC ");
-
-			// Save tracks in HashMap to lookup the score and in a list to keep
-			// the ordering
-			HashMap<Integer, Double> candidates = new HashMap<Integer, Double>();
-			HashMap<Integer, String> explanations = new HashMap<Integer, String>();
-			List<Integer> topN = new ArrayList<Integer>();
-
-			while (result.next() && topN.size() < howMany) {
-				// Track data
-				int trackId = result.getInt("track_id");
-				double score = result.getDouble("score");
-				String explanationArtists = result.getString("explanation");
-
-				if (!candidates.keySet().contains(trackId)) {
-					candidates.put(trackId, score);
-					explanations.put(trackId, explanationArtists);
-					topN.add(trackId);
-				}
-			}
-
-			/*
-			 * 4) Query information about topN tracks and return as
-			 * recommendations
-			 */
-			recommendations = mapTracksToRecommendations(topN, candidates,
-					explanations);
-
-		} catch (SQLException e) {
-			LOG.warn(
-					"Couldn't get CF recommendations for user: "
-							+ user.getName(), e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
-		}
-		return recommendations;
-	}
-
-	private List<Recommendation> mapTracksToRecommendations(List<Integer> ids,
-			HashMap<Integer, Double> candidates,
-			HashMap<Integer, String> explanations) {
-		List<Recommendation> recommendations = new ArrayList<Recommendation>();
-
-		// Connect to database
-		Connection conn = null;
-		PreparedStatement pstmt = null;
-		ResultSet result = null;
-
-		try {
-			conn = Database.getConnection();
-			// Get information of each track
-			pstmt = conn
-					.prepareStatement("SELECT artist, name FROM tracks WHERE id = ?");
-			for (int id : ids) {
-				pstmt.setInt(1, id);
-				result = pstmt.executeQuery();
-				while (result.next()) {
-					String artist = result.getString("artist");
-					String name = result.getString("name");
-					MuseSong song = new MuseSong(artist, name);
-					song.setID(id);
-					double score = candidates.get(id);
-					String explanation = explanations.get(id);
-
-					MuseRecommendation rec = new MuseRecommendation();
-					rec.setSong(song);
-					rec.setScore(score);
-					rec.setExplanation(explanation);
-					rec.setRecommenderID(getID());
-					recommendations.add(rec);
-				}
-			}
-
-		} catch (SQLException e) {
-			LOG.warn("Couldn't create recommendations out of ids.", e);
-		} finally {
-			Database.quietClose(conn, pstmt, result);
-		}
-		return recommendations;
-	}
-
-	/**
-	 * Precompute prediction scores for the given user considering the given
-	 * neighborhood size.
-	 * 
-	 * @param neighborhoodSize
-	 *            The number of neighbors to consider for the score computation.
-	 * 
-	 * @param The
-	 *            name of the user
-	 */
-	public void refreshUserItemMatrix(String user, int neighborhoodSize) {
-		List<MuseRecommendation> recommendations = new ArrayList<MuseRecommendation>();
-
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		PreparedStatement pstmt = null;
-		ResultSet result = null;
-
-		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			pstmt = conn
-					.prepareStatement("INSERT INTO user_user_score VALUES(?,?,?,?)");
-
-			// Compute prediction scores for user
-			LOG.info("Precomputing scores for user: " + user);
-
-			/*
-			 * 1) Get the k nearest neighbors of the user. Neighbor meaning user
-			 * with high rating similarity
-			 */
-			HashMap<String, Double> neighbors = new HashMap<String, Double>();
-			result = stmt.executeQuery("SELECT user_1,user_2, similarity "
-					+ "FROM user_similarities WHERE user_1 = '" + user + "' "
-					+ "AND ROWNUM <= " + neighborhoodSize
-					+ " ORDER BY similarity DESC");
-
-			// Save neighbors to HashMap neighbor -> similarity
-			while (result.next()) {
-				double similarity = result.getDouble("similarity");
-				String neighbor = result.getString("user_1");
-				if (neighbor.equals(user)) {
-					neighbor = result.getString("user_2");
-				}
-				neighbors.put(neighbor, similarity);
-			}
-
-			/*
-			 * 2) Get each neighbors top tracks (highest rated tracks) which the
-			 * user has not yet rated
-			 */
-			for (String neighbor : neighbors.keySet()) {
-				// Save top tracks to HashMap Track -> Rating
-				LOG.info("Creating candidates of neighbor " + neighbor);
-				HashMap<Integer, Double> candidates = new HashMap<Integer, Double>();
-				result = stmt
-						.executeQuery("SELECT track_id, rating FROM recommendation WHERE consumer = '"
-								+ neighbor
-								+ "' AND track_id NOT IN(SELECT track_id FROM recommendation WHERE consumer ='"
-								+ user + "') ORDER BY rating DESC");
-
-				while (result.next()) {
-					int track = result.getInt("track_id");
-					double rating = result.getDouble("rating");
-					if (rating > 0) {
-						candidates.put(track, rating);
-					}
-				}
-
-				// 2.1) Compute score and add to recommendations list
-				for (int id : candidates.keySet()) {
-					result = stmt
-							.executeQuery("SELECT artist, name FROM tracks WHERE id = "
-									+ id);
-					while (result.next()) {
-						String artist = result.getString("artist");
-						String name = result.getString("name");
-						MuseSong song = new MuseSong(artist, name);
-						song.setID(id);
-						double score = neighbors.get(neighbor)
-								* candidates.get(id);
-						String explanation = "Liked by similar user "
-								+ neighbor;
-
-						MuseRecommendation rec = new MuseRecommendation();
-						rec.setSong(song);
-						rec.setScore(score);
-						rec.setExplanation(explanation);
-						recommendations.add(rec);
-					}
-				}
-
-			}
-
-			/*
-			 * 3) Order list by score and save wanted number of recommendations
-			 * to the
-			 */
-			Collections.sort(recommendations, Collections.reverseOrder());
-			for (int k = 0; k < recommendations.size() && k <= 200; k++) {
-				Recommendation rec = recommendations.get(k);
-
-				pstmt.setString(1, user);
-				pstmt.setInt(2, rec.getSong().getID());
-				pstmt.setDouble(3, rec.getScore());
-				pstmt.setString(4, rec.getExplanation());
-				pstmt.addBatch();
-			}
-			pstmt.executeBatch();
-
-		} catch (SQLException e) {
-			LOG.warn("Precomputing scores for user " + user + " failed.", e);
-		} finally {
-			Database.quietClose(pstmt);
-			Database.quietClose(conn, stmt, result);
-		}
-	}
-
-	/**
-	 * Compute user-user similarities for the given user by comparing ratings of
-	 * different users.
-	 */
-	public void refreshUserSimilarities(String user) {
-		// Connect to database
-		Connection conn = null;
-		PreparedStatement pstmt = null;
-
-		try {
-			conn = Database.getConnection();
-			pstmt = conn
-					.prepareStatement("INSERT INTO user_similarities VALUES(?,?,?)");
-
-			// Compute user-user similarities
-			LOG.info("...Computing similarities for user: " + user);
-			// Counter for batch inserting to the database
-			int count = 0;
-
-			// Get all ratings of the user
-			HashMap<Integer, Double> ratingsOne = getDataRepository()
-					.getRatingsFromUser(user);
-
-			// Compare to ratings of all neighbor candidates
-			HashSet<String> neighborCandidates = (HashSet<String>) getDataRepository()
-					.getUsers();
-
-			for (String userTwo : neighborCandidates) {
-				// Don't compare to the user itself
-				if (user.equals(userTwo))
-					continue;
-
-				// Get the ratings of the other user
-				HashMap<Integer, Double> ratingsTwo = getDataRepository()
-						.getRatingsFromUser(user);
-
-				// Compute similarity between the two user by pearson
-				// correlation of
-				// the rating vectors
-				double similarity = MathHelper.computePearsonCorrelation(
-						ratingsOne, ratingsTwo);
-
-				// Only save positive similarities
-				if (similarity <= 0.0)
-					continue;
-
-				// If not zero save similarity to database
-				pstmt.setString(1, user);
-				pstmt.setString(2, userTwo);
-				pstmt.setDouble(3, similarity);
-				pstmt.addBatch();
-
-				// Save stacks of size 1000 to the database
-				count++;
-				if (count == 1000) {
-					pstmt.executeBatch();
-					count = 0;
-				}
-				LOG.info("Computed similarity " + similarity + " of " + user
-						+ " and " + userTwo + ".");
-			}
-			pstmt.executeBatch();
-
-		} catch (SQLException e) {
-			LOG.warn("Couldn't save user similarities to the database: ", e);
-		} finally {
-			Database.quietClose(pstmt);
-			Database.quietClose(conn);
-		}
-	}
-
-	@Override
-	public String getName() {
-		return NAME;
-	}
-
-	@Override
-	public String getExplanation() {
-		return EXPLANATION;
-	}
-
-	@Override
-	public Map<String, Double> getTagDistribution() {
-		return tagDistribution;
-	}
-
-}
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.collaborative;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.api.AbstractRecommender;
+import de.muse.api.DataRepository;
+import de.muse.api.Recommendation;
+import de.muse.api.Song;
+import de.muse.api.User;
+import de.muse.config.ApplicationConfig;
+import de.muse.recommendation.MuseRecommendation;
+import de.muse.recommendation.ScoreTable;
+import de.muse.utility.Database;
+import de.muse.utility.Query;
+import de.muse.utility.TopK;
+
+public class CollaborativeFilteringRecommender extends AbstractRecommender {
+
+	// Configured logger
+	private static transient final Logger LOG = LoggerFactory
+			.getLogger(CollaborativeFilteringRecommender.class.getName());
+
+	// Meta information
+	private static final String NAME = "Collaborative Filtering";
+	private static final String EXPLANATION = "Recommendations are based on preferences of similar users.";
+	private static final Map<String, Double> tagDistribution = new HashMap<String, Double>();
+
+	// Named queries
+	private static final Query PREDICTED_SCORES = new Query("cfPredictedScores",
+			"SELECT DISTINCT track_id, score, explanation "
+					+ "FROM user_user_score WHERE track_id "
+					+ "NOT IN(SELECT track_id FROM recommendation WHERE consumer = ?)"
+					+ " AND user_name = ? ORDER BY score DESC");
+	private static final Query NEIGHBORS = new Query("cfNeighbors",
+			"SELECT user_1, user_2, similarity FROM "
+					+ "(SELECT user_1, user_2, similarity "
+					+ "FROM user_similarities WHERE user_1 = ? "
+					+ "ORDER BY similarity DESC) WHERE ROWNUM <= ?");
+	private static final Query NEIGHBOR_CANDIDATES = new Query(
+			"cfNeighborCandidates",
+			"SELECT track_id, rating FROM recommendation WHERE consumer = ? "
+					+ "AND track_id NOT IN(SELECT track_id FROM recommendation "
+					+ "WHERE consumer = ?) ORDER BY rating DESC");
+	private static final Query INSERT_SCORE = new Query("cfInsertScore",
+			"INSERT INTO user_user_score VALUES(?,?,?,?)");
+	private static final Query DELETE_SCORES = new Query("cfDeleteScores",
+			"DELETE FROM user_user_score WHERE user_name = ?");
+
+	// Number of precomputed scores saved per user
+	private static final int SCORES_PER_USER = 200;
+
+	static {
+		tagDistribution.put("Accuracy", 80.0);
+		tagDistribution.put("Novelty", 10.0);
+		tagDistribution.put("Diversity", 0.0);
+		tagDistribution.put("Serendipity", 10.0);
+	}
+
+	/**
+	 * Create recommender object
+	 * 
+	 * @param ID
+	 *            The internal ID of the recommender
+	 * @param dataRepository
+	 *            The data repository
+	 */
+	public CollaborativeFilteringRecommender(int ID,
+			DataRepository dataRepository) {
+		super(ID, dataRepository);
+	}
+
+	@Override
+	public List<Recommendation> getRecommendations(User user, int howMany) {
+		// Serve the precomputed scores from memory once they are loaded
+		if (ScoreTable.COLLABORATIVE.isLoaded())
+			return getStoredRecommendations(user, howMany);
+
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+
+		// Connect to database
+		Connection conn = null;
+		PreparedStatement pstmt = null;
+		ResultSet result = null;
+
+		try {
+			conn = Database.getConnection();
+
+			// 1) Get the tracks with highest predicted rating
+			pstmt = PREDICTED_SCORES.prepare(conn);
+			Query.bind(pstmt, user.getName(), user.getName());
+			result = pstmt.executeQuery();
+
+			// Save tracks in HashMap to lookup the score and in a list to keep
+			// the ordering
+			HashMap<Integer, Double> candidates = new HashMap<Integer, Double>();
+			HashMap<Integer, String> explanations = new HashMap<Integer, String>();
+			List<Integer> topN = new ArrayList<Integer>();
+
+			while (result.next() && topN.size() < howMany) {
+				// Track data
+				int trackId = result.getInt("track_id");
+				double score = result.getDouble("score");
+				String explanationArtists = result.getString("explanation");
+
+				if (!candidates.keySet().contains(trackId)) {
+					candidates.put(trackId, score);
+					explanations.put(trackId, explanationArtists);
+					topN.add(trackId);
+				}
+			}
+
+			/*
+			 * 4) Query information about topN tracks and return as
+			 * recommendations
+			 */
+			recommendations = mapTracksToRecommendations(topN, candidates,
+					explanations);
+
+		} catch (SQLException e) {
+			LOG.warn(
+					"Couldn't get CF recommendations for user: "
+							+ user.getName(), e);
+		} finally {
+			Database.quietClose(conn, pstmt, result);
+		}
+		return recommendations;
+	}
+
+	// Get the best precomputed tracks the user hasn't seen yet
+	private List<Recommendation> getStoredRecommendations(User user,
+			int howMany) {
+		HashMap<Integer, Double> candidates = new HashMap<Integer, Double>();
+		HashMap<Integer, String> explanations = new HashMap<Integer, String>();
+		List<Integer> topN = new ArrayList<Integer>();
+
+		ScoreTable.Row row = ScoreTable.COLLABORATIVE.get(user.getName());
+		if (row != null) {
+			Set<Integer> seen = getDataRepository().getRatedSongIDs(
+					user.getName());
+			for (int i = 0; i < row.size() && topN.size() < howMany; i++) {
+				int trackId = row.getTrackId(i);
+				if (seen.contains(trackId))
+					continue;
+				candidates.put(trackId, row.getScore(i));
+				explanations.put(trackId, row.getExplanation(i));
+				topN.add(trackId);
+			}
+		}
+		return mapTracksToRecommendations(topN, candidates, explanations);
+	}
+
+	private List<Recommendation> mapTracksToRecommendations(List<Integer> ids,
+			HashMap<Integer, Double> candidates,
+			HashMap<Integer, String> explanations) {
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+
+		// Get information of all tracks at once
+		Map<Integer, Song> songs = getDataRepository().getSongInfo(ids);
+		for (int id : ids) {
+			Song song = songs.get(id);
+			if (song == null)
+				continue;
+			double score = candidates.get(id);
+			String explanation = explanations.get(id);
+
+			MuseRecommendation rec = new MuseRecommendation();
+			rec.setSong(song);
+			rec.setScore(score);
+			rec.setExplanation(explanation);
+			rec.setRecommenderID(getID());
+			recommendations.add(rec);
+		}
+		return recommendations;
+	}
+
+	/**
+	 * Precompute prediction scores for the given user considering the given
+	 * neighborhood size.
+	 * 
+	 * @param neighborhoodSize
+	 *            The number of neighbors to consider for the score computation.
+	 * 
+	 * @param The
+	 *            name of the user
+	 */
+	public void refreshUserItemMatrix(String user, int neighborhoodSize) {
+		refreshUserItemMatrix(user, neighborhoodSize, false);
+	}
+
+	/**
+	 * Recompute the prediction scores of the given user, replacing the
+	 * existing ones in one transaction, and update the in-memory scores.
+	 * 
+	 * @param neighborhoodSize
+	 *            The number of neighbors to consider for the score computation.
+	 * 
+	 * @param The
+	 *            name of the user
+	 */
+	public void replaceUserItemMatrix(String user, int neighborhoodSize) {
+		refreshUserItemMatrix(user, neighborhoodSize, true);
+		ScoreTable.COLLABORATIVE.reload(user);
+	}
+
+	private void refreshUserItemMatrix(String user, int neighborhoodSize,
+			boolean replace) {
+		// Connect to database
+		Connection conn = null;
+		PreparedStatement query = null;
+		PreparedStatement pstmt = null;
+		ResultSet result = null;
+
+		try {
+			conn = Database.getConnection();
+
+			// Compute prediction scores for user
+			LOG.info("Precomputing scores for user: " + user);
+
+			/*
+			 * 1) Get the k nearest neighbors of the user. Neighbor meaning user
+			 * with high rating similarity
+			 */
+			List<String> neighbors = new ArrayList<String>();
+			List<Double> similarities = new ArrayList<Double>();
+			query = NEIGHBORS.prepare(conn);
+			Query.bind(query, user, neighborhoodSize);
+			result = query.executeQuery();
+
+			// Neighbors ordered by similarity DESC
+			while (result.next()) {
+				String neighbor = result.getString("user_1");
+				if (neighbor.equals(user)) {
+					neighbor = result.getString("user_2");
+				}
+				neighbors.add(neighbor);
+				similarities.add(result.getDouble("similarity"));
+			}
+			Database.quietClose(result);
+			Database.quietClose(query);
+
+			/*
+			 * 2) Score the liked tracks of each neighbor which the user has
+			 * not yet rated. Neighbors with a non-positive similarity can't
+			 * contribute a positive score.
+			 */
+			Candidates candidates = new Candidates();
+			for (int n = 0; n < neighbors.size(); n++) {
+				double similarity = similarities.get(n);
+				if (similarity <= 0)
+					continue;
+				query = NEIGHBOR_CANDIDATES.prepare(conn);
+				Query.bind(query, neighbors.get(n), user);
+				result = query.executeQuery();
+
+				while (result.next()) {
+					// Candidates are ordered by rating DESC
+					double rating = result.getDouble("rating");
+					if (rating <= 0)
+						break;
+					candidates.add(result.getInt("track_id"), similarity
+							* rating, n);
+				}
+				Database.quietClose(result);
+				Database.quietClose(query);
+			}
+
+			/*
+			 * 3) Keep the best tracks, each with its best score, and explain
+			 * them by the most similar neighbor liking them
+			 */
+			HashMap<Integer, String> explanations = new HashMap<Integer, String>();
+			TopK best = candidates.select(SCORES_PER_USER, neighbors,
+					explanations);
+
+			/*
+			 * 4) Save the scores of existing tracks to the database
+			 */
+			List<Integer> ids = new ArrayList<Integer>(best.size());
+			for (int i = 0; i < best.size(); i++) {
+				ids.add(best.getId(i));
+			}
+			Map<Integer, Song> songs = getDataRepository().getSongInfo(ids);
+
+			if (replace) {
+				conn.setAutoCommit(false);
+				DELETE_SCORES.update(conn, user);
+			}
+			pstmt = INSERT_SCORE.prepare(conn);
+			for (int i = 0; i < best.size(); i++) {
+				int id = best.getId(i);
+				if (!songs.containsKey(id))
+					continue;
+				Query.bind(pstmt, user, id, best.getScore(i),
+						"Liked by similar user " + explanations.get(id));
+				pstmt.addBatch();
+			}
+			pstmt.executeBatch();
+			if (replace) {
+				conn.commit();
+			}
+
+		} catch (SQLException e) {
+			LOG.warn("Precomputing scores for user " + user + " failed.", e);
+			if (replace) {
+				Database.quietRollback(conn);
+			}
+		} finally {
+			if (replace) {
+				Database.resetAutoCommit(conn);
+			}
+			Database.quietClose(pstmt);
+			Database.quietClose(conn, query, result);
+		}
+	}
+
+	/**
+	 * Scored candidate tracks of all neighbors in primitive arrays. A track
+	 * liked by several neighbors is added several times and counted once on
+	 * selection.
+	 */
+	private static final class Candidates {
+		private int[] tracks = new int[256];
+		private double[] scores = new double[256];
+		private int[] neighbors = new int[256];
+		private int size = 0;
+
+		void add(int track, double score, int neighbor) {
+			if (size == tracks.length) {
+				tracks = Arrays.copyOf(tracks, 2 * size);
+				scores = Arrays.copyOf(scores, 2 * size);
+				neighbors = Arrays.copyOf(neighbors, 2 * size);
+			}
+			tracks[size] = track;
+			scores[size] = score;
+			neighbors[size++] = neighbor;
+		}
+
+		// Select the k best distinct tracks by their best score, sorted.
+		// Fills in the most similar neighbor of each selected track.
+		TopK select(int k, List<String> names,
+				Map<Integer, String> explanations) {
+			// Sort (track, position) pairs; positions follow the neighbor
+			// order, so the first entry of a track is its most similar
+			// neighbor
+			long[] pairs = new long[size];
+			for (int i = 0; i < size; i++) {
+				pairs[i] = ((long) tracks[i] << 32) | i;
+			}
+			Arrays.sort(pairs);
+
+			// Offer each track once, identified by its first position
+			TopK best = new TopK(k);
+			for (int start = 0; start < size;) {
+				int track = (int) (pairs[start] >> 32);
+				int end = start;
+				double score = Double.NEGATIVE_INFINITY;
+				while (end < size && (int) (pairs[end] >> 32) == track) {
+					score = Math.max(score, scores[(int) pairs[end]]);
+					end++;
+				}
+				best.offer((int) pairs[start], score);
+				start = end;
+			}
+			best.sort();
+
+			TopK selected = new TopK(best.size());
+			for (int i = 0; i < best.size(); i++) {
+				int position = best.getId(i);
+				selected.offer(tracks[position], best.getScore(i));
+				explanations.put(tracks[position],
+						names.get(neighbors[position]));
+			}
+			selected.sort();
+			return selected;
+		}
+	}
+
+	/**
+	 * Compute the user-user similarities of the given users by comparing
+	 * their ratings to the ratings of all other users, and save the
+	 * neighborhoods to the database.
+	 * 
+	 * @param users
+	 *            The users to compute the neighbors of
+	 * @param neighborhoodSize
+	 *            The number of neighbors to keep per user
+	 * @return The engine holding the computed neighborhoods or null if they
+	 *         couldn't be saved
+	 */
+	public UserSimilarityEngine refreshUserSimilarities(List<String> users,
+			int neighborhoodSize) {
+		return refreshUserSimilarities(users, neighborhoodSize, false);
+	}
+
+	/**
+	 * Compute the nearest neighbors of the given users and replace the saved
+	 * similarities.
+	 * 
+	 * @param approximate
+	 *            Only compare the candidate pairs found by MinHash LSH (see
+	 *            cf_minhash_bands and cf_minhash_rows)
+	 * @return The engine holding the neighborhoods or null if they couldn't
+	 *         be saved
+	 */
+	public UserSimilarityEngine refreshUserSimilarities(List<String> users,
+			int neighborhoodSize, boolean approximate) {
+		UserSimilarityEngine engine = approximate ? new UserSimilarityEngine(
+				getDataRepository(), neighborhoodSize,
+				ApplicationConfig.CF_MINHASH_BANDS,
+				ApplicationConfig.CF_MINHASH_ROWS) : new UserSimilarityEngine(
+				getDataRepository(), neighborhoodSize);
+		try {
+			UserSimilarityEngine.save(engine.compute(users));
+		} catch (SQLException e) {
+			LOG.warn("Couldn't save user similarities to the database: ", e);
+			return null;
+		}
+		return engine;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String getExplanation() {
+		return EXPLANATION;
+	}
+
+	@Override
+	public Map<String, Double> getTagDistribution() {
+		return tagDistribution;
+	}
+
+}
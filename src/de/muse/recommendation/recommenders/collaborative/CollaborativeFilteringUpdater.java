@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.collaborative;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.recommendation.MuseRepository;
+import de.muse.user.UserData;
+
+/**
+ * Applies rating changes to the collaborative filtering data in the
+ * background.
+ *
+ * After a user rated, the user's vector in the current similarity engine is
+ * replaced and all neighborhoods depending on it are recomputed. The
+ * USER_SIMILARITIES and USER_USER_SCORE rows of these users are replaced.
+ * Several changes of the same user waiting to be applied are merged.
+ *
+ * The daily full computation serves as consistency sweep: while it runs,
+ * changes are only recorded, and they are applied to its result afterwards.
+ * Starting a sweep waits for a running update to finish its writes.
+ *
+ * The engine is built in the background on startup (see {@link #start()})
+ * or by the sweep. Changes made before it exists are recorded and applied
+ * once it is there.
+ */
+public final class CollaborativeFilteringUpdater {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CollaborativeFilteringUpdater.class.getName());
+
+	// Number of neighbors per user
+	public static final int NEIGHBORHOOD_SIZE = 20;
+
+	// Single background thread applying the changes in order
+	private static final ExecutorService executor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "cf-updater");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// Held while an update writes the CF data
+	private static final Object applyLock = new Object();
+
+	// Users with changes waiting to be applied
+	private static final Set<String> pending = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	// Engine holding the current neighborhoods, null until built
+	private static UserSimilarityEngine engine = null;
+	// Users changed before the engine was built
+	private static Set<String> deferred = new HashSet<String>();
+	// Users changed during a running sweep, null if no sweep is running
+	private static Set<String> sweepChanges = null;
+
+	private CollaborativeFilteringUpdater() {
+	}
+
+	/**
+	 * Schedule the update of the CF data after the ratings of a user changed.
+	 */
+	public static void ratingsChanged(final String user) {
+		synchronized (CollaborativeFilteringUpdater.class) {
+			if (sweepChanges != null) {
+				sweepChanges.add(user);
+				return;
+			}
+		}
+
+		if (pending.add(user)) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					pending.remove(user);
+					synchronized (applyLock) {
+						// Postponed until a sweep that started meanwhile is
+						// done or until the engine is built
+						UserSimilarityEngine current;
+						synchronized (CollaborativeFilteringUpdater.class) {
+							if (sweepChanges != null) {
+								sweepChanges.add(user);
+								return;
+							}
+							if (engine == null) {
+								deferred.add(user);
+								return;
+							}
+							current = engine;
+						}
+						apply(current, user);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Start a full recomputation. Changes are recorded until
+	 * {@link #endSweep(UserSimilarityEngine)} is called. Returns once no
+	 * update is writing anymore; queued updates are recorded as changes.
+	 */
+	public static void beginSweep() {
+		synchronized (CollaborativeFilteringUpdater.class) {
+			sweepChanges = new HashSet<String>();
+		}
+		// Wait for a running update
+		synchronized (applyLock) {
+			LOG.info("CF updates paused for the sweep.");
+		}
+	}
+
+	/**
+	 * Finish a full recomputation: use its engine from now on and apply the
+	 * changes recorded in the meantime.
+	 *
+	 * @param result
+	 *            The engine of the recomputation or null if it failed
+	 */
+	public static void endSweep(UserSimilarityEngine result) {
+		Set<String> changes;
+		synchronized (CollaborativeFilteringUpdater.class) {
+			if (result != null) {
+				engine = result;
+			}
+			changes = sweepChanges;
+			sweepChanges = null;
+		}
+		applyDeferred();
+
+		if (changes != null) {
+			LOG.info("Applying " + changes.size()
+					+ " rating changes made during the CF sweep.");
+			for (String user : changes) {
+				ratingsChanged(user);
+			}
+		}
+	}
+
+	/**
+	 * Build the engine in the background, e.g. on startup. Changes made
+	 * meanwhile are applied once it is built.
+	 */
+	public static void start() {
+		Thread builder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				UserSimilarityEngine created = new UserSimilarityEngine(
+						new MuseRepository(), NEIGHBORHOOD_SIZE);
+				try {
+					created.compute(UserData.getAllActiveUsers());
+				} catch (RuntimeException e) {
+					LOG.warn("Couldn't build the CF engine. Waiting for the "
+							+ "next sweep.", e);
+					return;
+				}
+				synchronized (CollaborativeFilteringUpdater.class) {
+					// A sweep may have been faster
+					if (engine == null) {
+						engine = created;
+					}
+				}
+				applyDeferred();
+			}
+		}, "cf-engine-build");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/**
+	 * Stop the background thread. Pending changes are dropped and logged;
+	 * the next sweep catches up on them.
+	 */
+	public static void shutdown() {
+		executor.shutdownNow();
+		Set<String> dropped = new HashSet<String>(pending);
+		synchronized (CollaborativeFilteringUpdater.class) {
+			dropped.addAll(deferred);
+			if (sweepChanges != null) {
+				dropped.addAll(sweepChanges);
+			}
+		}
+		if (!dropped.isEmpty()) {
+			LOG.warn("Dropped CF updates of " + dropped.size() + " users: "
+					+ dropped);
+		}
+	}
+
+	// Apply the changes recorded before the engine was built
+	private static void applyDeferred() {
+		Set<String> changes;
+		synchronized (CollaborativeFilteringUpdater.class) {
+			if (engine == null || deferred.isEmpty())
+				return;
+			changes = deferred;
+			deferred = new HashSet<String>();
+		}
+		LOG.info("Applying " + changes.size()
+				+ " rating changes made before the CF engine was built.");
+		for (String user : changes) {
+			ratingsChanged(user);
+		}
+	}
+
+	// Update the neighborhoods depending on the user and save them
+	private static void apply(UserSimilarityEngine current, String user) {
+		Map<String, LinkedHashMap<String, Double>> changed = current
+				.update(user);
+		if (changed.isEmpty())
+			return;
+
+		try {
+			UserSimilarityEngine.saveUsers(changed);
+		} catch (SQLException e) {
+			LOG.warn("Couldn't update similarities after ratings of: " + user,
+					e);
+			return;
+		}
+
+		// The scores of users with new neighbors change as well
+		CollaborativeFilteringRecommender cf = new CollaborativeFilteringRecommender(
+				0, new MuseRepository());
+		for (String name : changed.keySet()) {
+			cf.replaceUserItemMatrix(name, NEIGHBORHOOD_SIZE);
+		}
+		LOG.info("Updated CF data of " + changed.size()
+				+ " users after ratings of " + user);
+	}
+
+}
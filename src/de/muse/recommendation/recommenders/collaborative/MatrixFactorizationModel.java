@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.collaborative;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import de.muse.utility.TopK;
+
+/**
+ * Latent factors of users and tracks learned by {@link AlsTrainer}.
+ *
+ * The model is saved as one binary file (big endian):
+ *
+ * <pre>
+ * int magic, int version, int factors, int users, int tracks
+ * int[tracks] track ids
+ * float[tracks * factors] track factors
+ * float[users * factors] user factors
+ * users times: int length, byte[length] UTF-8 user name
+ * </pre>
+ *
+ * A loaded model maps the file read-only, so the factors are served from the
+ * page cache instead of the heap and a restarted server can answer requests
+ * right away.
+ */
+public final class MatrixFactorizationModel {
+	private static final int MAGIC = 0x4D55534D;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 5 * 4;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int factors;
+	private final int[] trackIds;
+	private final FloatBuffer trackFactors;
+	private final FloatBuffer userFactors;
+	// User name -> row in userFactors
+	private final Map<String, Integer> userIndex;
+	private final String[] users;
+
+	// Model fresh from training, kept on the heap until it was saved
+	MatrixFactorizationModel(int factors, String[] users, int[] trackIds,
+			float[] userFactors, float[] trackFactors) {
+		this.factors = factors;
+		this.users = users;
+		this.trackIds = trackIds;
+		this.userFactors = FloatBuffer.wrap(userFactors);
+		this.trackFactors = FloatBuffer.wrap(trackFactors);
+		this.userIndex = new HashMap<String, Integer>(users.length * 2);
+		for (int u = 0; u < users.length; u++) {
+			userIndex.put(users[u], u);
+		}
+	}
+
+	private MatrixFactorizationModel(int factors, String[] users,
+			int[] trackIds, FloatBuffer userFactors, FloatBuffer trackFactors,
+			Map<String, Integer> userIndex) {
+		this.factors = factors;
+		this.users = users;
+		this.trackIds = trackIds;
+		this.userFactors = userFactors;
+		this.trackFactors = trackFactors;
+		this.userIndex = userIndex;
+	}
+
+	/**
+	 * Map a saved model into memory.
+	 *
+	 * @throws IOException
+	 *             If the file can't be read, isn't a model file or is
+	 *             truncated
+	 */
+	public static MatrixFactorizationModel load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try {
+			// The mapping stays valid after the channel was closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC)
+			throw new IOException("Not a model file: " + file);
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported model version " + version
+					+ ": " + file);
+		int factors = buffer.getInt();
+		int userCount = buffer.getInt();
+		int trackCount = buffer.getInt();
+		if (factors < 0 || userCount < 0 || trackCount < 0)
+			throw new IOException("Corrupt model file: " + file);
+		// Track ids, factors and at least the length of each user name
+		long needed = HEADER_SIZE + 4L * trackCount + 4L * factors
+				* ((long) trackCount + userCount) + 4L * userCount;
+		if (needed > buffer.capacity())
+			throw new IOException("Truncated model file: " + file);
+
+		try {
+			return read(buffer, factors, userCount, trackCount);
+		} catch (RuntimeException e) {
+			// E.g. buffer underflow on a corrupt user name
+			throw new IOException("Corrupt model file: " + file, e);
+		}
+	}
+
+	// Read the body of a model file, the buffer is positioned after the
+	// header
+	private static MatrixFactorizationModel read(ByteBuffer buffer,
+			int factors, int userCount, int trackCount) {
+		int[] trackIds = new int[trackCount];
+		buffer.asIntBuffer().get(trackIds);
+		buffer.position(buffer.position() + trackCount * 4);
+		FloatBuffer trackFactors = floats(buffer, trackCount * factors);
+		FloatBuffer userFactors = floats(buffer, userCount * factors);
+
+		String[] users = new String[userCount];
+		Map<String, Integer> userIndex = new HashMap<String, Integer>(
+				userCount * 2);
+		for (int u = 0; u < userCount; u++) {
+			byte[] name = new byte[buffer.getInt()];
+			buffer.get(name);
+			users[u] = new String(name, UTF8);
+			userIndex.put(users[u], u);
+		}
+		return new MatrixFactorizationModel(factors, users, trackIds,
+				userFactors, trackFactors, userIndex);
+	}
+
+	// Slice the next count floats off the buffer
+	private static FloatBuffer floats(ByteBuffer buffer, int count) {
+		ByteBuffer slice = buffer.slice();
+		slice.limit(count * 4);
+		buffer.position(buffer.position() + count * 4);
+		return slice.asFloatBuffer();
+	}
+
+	/**
+	 * Save the model. The file is written next to the target and renamed, so
+	 * readers never see a partially written model.
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(factors);
+			out.writeInt(users.length);
+			out.writeInt(trackIds.length);
+			for (int id : trackIds) {
+				out.writeInt(id);
+			}
+			for (int i = 0; i < trackFactors.limit(); i++) {
+				out.writeFloat(trackFactors.get(i));
+			}
+			for (int i = 0; i < userFactors.limit(); i++) {
+				out.writeFloat(userFactors.get(i));
+			}
+			for (String user : users) {
+				byte[] name = user.getBytes(UTF8);
+				out.writeInt(name.length);
+				out.write(name);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Check if the model has factors for the user.
+	 */
+	public boolean contains(String user) {
+		return userIndex.containsKey(user);
+	}
+
+	/**
+	 * Get the tracks with the highest predicted ratings for the user.
+	 *
+	 * @param exclude
+	 *            Track ids not to recommend
+	 * @return The best tracks ordered by predicted rating DESC, null if the
+	 *         model doesn't know the user
+	 */
+	public TopK recommend(String user, Set<Integer> exclude, int howMany) {
+		Integer u = userIndex.get(user);
+		if (u == null)
+			return null;
+
+		float[] vector = new float[factors];
+		for (int a = 0; a < factors; a++) {
+			vector[a] = userFactors.get(u * factors + a);
+		}
+
+		TopK best = new TopK(howMany);
+		for (int t = 0; t < trackIds.length; t++) {
+			int offset = t * factors;
+			float score = 0;
+			for (int a = 0; a < factors; a++) {
+				score += vector[a] * trackFactors.get(offset + a);
+			}
+			if (score > best.threshold() && !exclude.contains(trackIds[t])) {
+				best.offer(trackIds[t], score);
+			}
+		}
+		best.sort();
+		return best;
+	}
+
+	public int getFactors() {
+		return factors;
+	}
+
+	public int getUserCount() {
+		return users.length;
+	}
+
+	public int getTrackCount() {
+		return trackIds.length;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.collaborative;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.api.AbstractRecommender;
+import de.muse.api.DataRepository;
+import de.muse.api.Recommendation;
+import de.muse.api.Song;
+import de.muse.api.User;
+import de.muse.config.ApplicationConfig;
+import de.muse.recommendation.MuseRecommendation;
+import de.muse.recommendation.RatingMatrix;
+import de.muse.utility.TopK;
+
+/**
+ * Collaborative filtering by matrix factorization. Users and tracks are
+ * described by latent factors learned from the ratings (see
+ * {@link AlsTrainer}); the predicted rating of a track is the dot product of
+ * the user's and the track's factors.
+ *
+ * The model is trained by the daily job and saved in the permanent directory.
+ * Recommendations are computed from the memory-mapped model without database
+ * access.
+ */
+public class MatrixFactorizationRecommender extends AbstractRecommender {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MatrixFactorizationRecommender.class.getName());
+
+	// Meta information
+	private static final String NAME = "Matrix Factorization";
+	private static final String EXPLANATION = "Recommendations are based on a taste profile learned from the ratings of all users.";
+	private static final Map<String, Double> tagDistribution = new HashMap<String, Double>();
+
+	// Training parameters
+	private static final int FACTORS = 16;
+	private static final int ITERATIONS = 10;
+	private static final double LAMBDA = 0.1;
+
+	// Saved model
+	private static final File MODEL_FILE = new File(ApplicationConfig.PERM_DIR
+			+ "mf-model.bin");
+
+	// Model serving the recommendations, loaded on first use
+	private static volatile MatrixFactorizationModel model = null;
+	private static boolean loadAttempted = false;
+
+	static {
+		tagDistribution.put("Accuracy", 70.0);
+		tagDistribution.put("Novelty", 15.0);
+		tagDistribution.put("Diversity", 5.0);
+		tagDistribution.put("Serendipity", 10.0);
+	}
+
+	/**
+	 * Create recommender object
+	 *
+	 * @param ID
+	 *            The internal ID of the recommender
+	 * @param dataRepository
+	 *            The data repository
+	 */
+	public MatrixFactorizationRecommender(int ID, DataRepository dataRepository) {
+		super(ID, dataRepository);
+	}
+
+	@Override
+	public List<Recommendation> getRecommendations(User user, int howMany) {
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+		MatrixFactorizationModel current = getModel();
+		if (current == null || !current.contains(user.getName()))
+			return recommendations;
+
+		Set<Integer> seen = RatingMatrix.isLoaded() ? RatingMatrix
+				.getRatedSongIDs(user.getName(), 0) : getDataRepository()
+				.getRatedSongIDs(user.getName());
+		TopK best = current.recommend(user.getName(), seen, howMany);
+
+		List<Integer> ids = new ArrayList<Integer>(best.size());
+		for (int i = 0; i < best.size(); i++) {
+			ids.add(best.getId(i));
+		}
+		Map<Integer, Song> songs = getDataRepository().getSongInfo(ids);
+		for (int i = 0; i < best.size(); i++) {
+			Song song = songs.get(best.getId(i));
+			if (song == null)
+				continue;
+
+			MuseRecommendation rec = new MuseRecommendation();
+			rec.setSong(song);
+			rec.setScore(best.getScore(i));
+			rec.setExplanation("Fits the taste profile learned from your ratings");
+			rec.setRecommenderID(getID());
+			recommendations.add(rec);
+		}
+		return recommendations;
+	}
+
+	/**
+	 * Train a new model on the current ratings, save it and serve it from now
+	 * on. The previous model stays in use if training or saving fails.
+	 */
+	public static void refreshModel() {
+		if (!RatingMatrix.isLoaded()) {
+			LOG.warn("Rating matrix not loaded. Skipping matrix factorization training.");
+			return;
+		}
+
+		MatrixFactorizationModel trained = new AlsTrainer(FACTORS, ITERATIONS,
+				LAMBDA).train();
+		if (trained == null)
+			return;
+		try {
+			trained.save(MODEL_FILE);
+			setModel(MatrixFactorizationModel.load(MODEL_FILE));
+		} catch (IOException e) {
+			LOG.warn("Couldn't save matrix factorization model: " + MODEL_FILE,
+					e);
+		}
+	}
+
+	// Get the current model, mapping the saved one on first use
+	private static MatrixFactorizationModel getModel() {
+		MatrixFactorizationModel current = model;
+		if (current != null)
+			return current;
+
+		synchronized (MatrixFactorizationRecommender.class) {
+			if (model == null && !loadAttempted && MODEL_FILE.exists()) {
+				try {
+					model = MatrixFactorizationModel.load(MODEL_FILE);
+					LOG.info("Loaded matrix factorization model with "
+							+ model.getUserCount() + " users and "
+							+ model.getTrackCount() + " tracks.");
+				} catch (IOException e) {
+					LOG.warn("Couldn't load matrix factorization model: "
+							+ MODEL_FILE, e);
+				}
+			}
+			loadAttempted = true;
+			return model;
+		}
+	}
+
+	private static synchronized void setModel(MatrixFactorizationModel trained) {
+		model = trained;
+		loadAttempted = true;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String getExplanation() {
+		return EXPLANATION;
+	}
+
+	@Override
+	public Map<String, Double> getTagDistribution() {
+		return tagDistribution;
+	}
+}
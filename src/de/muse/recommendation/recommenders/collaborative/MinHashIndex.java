@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.collaborative;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Locality sensitive hashing of users by the sets of tracks they liked.
+ *
+ * Every user gets a MinHash signature of bands * rows values. Two users agree
+ * on a single value with a probability equal to the Jaccard similarity J of
+ * their sets, so they share the bucket of at least one band with probability
+ * 1 - (1 - J^rows)^bands. More bands raise the recall, more rows per band cut
+ * the number of candidate pairs.
+ *
+ * Users are added from a single thread; candidates can then be looked up
+ * concurrently.
+ */
+final class MinHashIndex {
+	// Mersenne prime 2^31 - 1 for the universal hash functions
+	private static final long PRIME = (1L << 31) - 1;
+	private static final int[] EMPTY_BUCKET = new int[] { 0 };
+
+	private final int bands;
+	private final int rows;
+	private final long[] a;
+	private final long[] b;
+
+	// Band keys by user index, bands values per user. Users without liked
+	// tracks have no keys.
+	private long[][] keys = new long[0][];
+	// Per band: key -> bucket, bucket[0] is the number of users following
+	private final Map<Long, int[]>[] buckets;
+
+	/**
+	 * Create an index.
+	 *
+	 * @param bands
+	 *            Number of bands
+	 * @param rows
+	 *            Number of MinHash values per band
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	MinHashIndex(int bands, int rows) {
+		this.bands = bands;
+		this.rows = rows;
+		Random random = new Random(42);
+		a = new long[bands * rows];
+		b = new long[bands * rows];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = 1 + random.nextInt((int) PRIME - 1);
+			b[i] = random.nextInt((int) PRIME);
+		}
+		buckets = new Map[bands];
+		for (int band = 0; band < bands; band++) {
+			buckets[band] = new HashMap<Long, int[]>();
+		}
+	}
+
+	/**
+	 * Add a user.
+	 *
+	 * @param user
+	 *            The user index
+	 * @param likedTracks
+	 *            Ids of the tracks the user liked
+	 */
+	void add(int user, int[] likedTracks) {
+		if (user >= keys.length) {
+			keys = Arrays.copyOf(keys, Math.max(16, user * 2));
+		}
+		if (likedTracks.length == 0)
+			return;
+
+		// MinHash signature
+		long[] signature = new long[a.length];
+		Arrays.fill(signature, Long.MAX_VALUE);
+		for (int track : likedTracks) {
+			long x = track & 0x7FFFFFFFL;
+			for (int i = 0; i < signature.length; i++) {
+				long hash = (a[i] * x + b[i]) % PRIME;
+				if (hash < signature[i]) {
+					signature[i] = hash;
+				}
+			}
+		}
+
+		// One key per band
+		long[] userKeys = new long[bands];
+		for (int band = 0; band < bands; band++) {
+			long key = 1125899906842597L;
+			for (int r = 0; r < rows; r++) {
+				key = 31 * key + signature[band * rows + r];
+			}
+			userKeys[band] = key;
+
+			int[] bucket = buckets[band].get(key);
+			if (bucket == null) {
+				bucket = EMPTY_BUCKET;
+			}
+			int size = bucket[0];
+			if (size + 1 >= bucket.length) {
+				bucket = Arrays.copyOf(bucket, Math.max(4, bucket.length * 2));
+			}
+			bucket[++size] = user;
+			bucket[0] = size;
+			buckets[band].put(key, bucket);
+		}
+		keys[user] = userKeys;
+	}
+
+	/**
+	 * List the users sharing a bucket with the given user.
+	 *
+	 * @param candidates
+	 *            Receives the candidate indexes
+	 * @param stamps
+	 *            Marks listed users with user + 1 to skip duplicates
+	 * @return The number of candidates
+	 */
+	int candidates(int user, int[] candidates, int[] stamps) {
+		if (user >= keys.length || keys[user] == null)
+			return 0;
+
+		int count = 0;
+		for (int band = 0; band < bands; band++) {
+			int[] bucket = buckets[band].get(keys[user][band]);
+			for (int i = 1; i <= bucket[0]; i++) {
+				int v = bucket[i];
+				if (v != user && stamps[v] != user + 1) {
+					stamps[v] = user + 1;
+					candidates[count++] = v;
+				}
+			}
+		}
+		return count;
+	}
+}
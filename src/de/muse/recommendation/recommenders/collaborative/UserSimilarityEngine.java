@@ -0,0 +1,677 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.collaborative;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.api.DataRepository;
+import de.muse.utility.Database;
+import de.muse.utility.Query;
+import de.muse.utility.TopK;
+
+/**
+ * Computes the k most similar users of every user in memory.
+ *
+ * All rating vectors are read once and mean-centered. The Pearson correlation
+ * of two users is the scalar product of their centered vectors divided by the
+ * product of the vector lengths, and the scalar product is only non-zero for
+ * users sharing at least one track. A track -> users inverted index therefore
+ * yields exactly the pairs that have to be compared: for each user the
+ * scalar products with all co-rating users are accumulated by walking the
+ * postings of the user's tracks. Users are processed in parallel on a
+ * fork-join pool.
+ *
+ * Popular tracks have long postings, so the number of compared pairs still
+ * grows quadratically with their popularity. In approximate mode the
+ * candidate pairs are taken from a {@link MinHashIndex} over the liked tracks
+ * instead, and the exact correlation is only computed for them. The recall of
+ * the approximate neighborhoods is measured on a sample of users and logged.
+ *
+ * After the full computation the engine keeps its vectors and neighborhoods,
+ * so rating changes of single users can be applied with
+ * {@link #update(String)}. Updates are always exact.
+ */
+public class UserSimilarityEngine {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(UserSimilarityEngine.class.getName());
+
+	// Named queries
+	private static final Query DELETE_SIMILARITIES = new Query(
+			"cfDeleteSimilarities", "DELETE FROM user_similarities");
+	private static final Query DELETE_USER_SIMILARITIES = new Query(
+			"cfDeleteUserSimilarities",
+			"DELETE FROM user_similarities WHERE user_1 = ?");
+	private static final Query INSERT_SIMILARITY = new Query(
+			"cfInsertSimilarity", "INSERT INTO user_similarities VALUES(?,?,?)");
+
+	// Number of users a fork-join task processes without splitting
+	private static final int TASK_SIZE = 32;
+	// Number of rows per insert batch
+	private static final int BATCH_SIZE = 1000;
+	// Number of users the approximate neighborhoods are checked on
+	private static final int RECALL_SAMPLE = 100;
+	private static final int[] NO_INDEXES = new int[0];
+	private static final double[] NO_VALUES = new double[0];
+
+	private final DataRepository repository;
+	private final int neighbors;
+	// LSH parameters, 0 bands for exact computation
+	private final int bands;
+	private final int rows;
+	// Candidate index, only set during an approximate computation
+	private MinHashIndex candidateIndex = null;
+
+	// Users and their centered rating vectors, by user index
+	private int userCount = 0;
+	private String[] users = new String[0];
+	private final Map<String, Integer> userIndex = new HashMap<String, Integer>();
+	private int[][] tracks = new int[0][];
+	private double[][] values = new double[0][];
+	private double[] lengths = new double[0];
+
+	// Inverted index: track index -> users and their centered ratings
+	private final Map<Integer, Integer> trackIndex = new HashMap<Integer, Integer>();
+	private int[][] postingUsers = new int[0][];
+	private double[][] postingValues = new double[0][];
+
+	// Users whose neighbors are computed
+	private final Set<String> sources = new HashSet<String>();
+
+	// Result: user index -> neighbor indexes and similarities, best first.
+	// Null for users whose neighbors aren't computed.
+	private int[][] neighborUsers = new int[0][];
+	private double[][] neighborSimilarities = new double[0][];
+
+	/**
+	 * Mean-centered rating vector of a user, sorted by track id.
+	 */
+	private static final class Vector {
+		final int[] trackIds;
+		final double[] values;
+		final double length;
+		// Ids of the positively rated tracks
+		final int[] liked;
+
+		Vector(int[] trackIds, double[] values, double length, int[] liked) {
+			this.trackIds = trackIds;
+			this.values = values;
+			this.length = length;
+			this.liked = liked;
+		}
+	}
+
+	/**
+	 * Create an engine.
+	 *
+	 * @param repository
+	 *            The data repository to read the ratings from
+	 * @param neighbors
+	 *            The number of neighbors to keep per user
+	 */
+	public UserSimilarityEngine(DataRepository repository, int neighbors) {
+		this(repository, neighbors, 0, 0);
+	}
+
+	/**
+	 * Create an engine computing approximate neighborhoods with MinHash
+	 * locality sensitive hashing.
+	 *
+	 * @param repository
+	 *            The data repository to read the ratings from
+	 * @param neighbors
+	 *            The number of neighbors to keep per user
+	 * @param bands
+	 *            The number of LSH bands, 0 for exact computation
+	 * @param rows
+	 *            The number of MinHash values per band
+	 */
+	public UserSimilarityEngine(DataRepository repository, int neighbors,
+			int bands, int rows) {
+		this.repository = repository;
+		this.neighbors = neighbors;
+		this.bands = bands;
+		this.rows = rows;
+	}
+
+	/**
+	 * Compute the nearest neighbors of the given users. Neighbors are taken
+	 * from all users having ratings. Meant to be called once per engine.
+	 *
+	 * @return Mapping user -> (neighbor -> similarity), ordered by similarity
+	 *         DESC. Only positive similarities are contained.
+	 */
+	public synchronized Map<String, LinkedHashMap<String, Double>> compute(
+			Collection<String> sources) {
+		long start = System.currentTimeMillis();
+		Set<String> all = new LinkedHashSet<String>(sources);
+		all.addAll(repository.getUsers());
+		this.sources.addAll(sources);
+
+		// Read and index all vectors
+		candidateIndex = bands > 0 ? new MinHashIndex(bands, rows) : null;
+		for (String user : all) {
+			Vector vector = readVector(user);
+			if (vector != null) {
+				int u = addUser(user);
+				setVector(u, vector);
+				if (candidateIndex != null) {
+					candidateIndex.add(u, vector.liked);
+				}
+			}
+		}
+
+		// Compute neighborhoods of the wanted users in parallel
+		int[] wanted = new int[sources.size()];
+		int count = 0;
+		for (String user : sources) {
+			Integer u = userIndex.get(user);
+			if (u != null) {
+				wanted[count++] = u;
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new NeighborTask(wanted, 0, count));
+		} finally {
+			pool.shutdown();
+		}
+		if (candidateIndex != null) {
+			reportRecall(wanted, count);
+			candidateIndex = null;
+		}
+
+		Map<String, LinkedHashMap<String, Double>> result = new HashMap<String, LinkedHashMap<String, Double>>(
+				count * 2);
+		int pairs = 0;
+		for (int i = 0; i < count; i++) {
+			LinkedHashMap<String, Double> neighborhood = getNeighborhood(wanted[i]);
+			pairs += neighborhood.size();
+			result.put(users[wanted[i]], neighborhood);
+		}
+		LOG.info("Computed " + pairs + (bands > 0 ? " approximate" : "")
+				+ " neighbors of " + count + " users in "
+				+ (System.currentTimeMillis() - start) + " ms.");
+		return result;
+	}
+
+	/**
+	 * Re-read the ratings of a user and recompute the neighborhoods depending
+	 * on them: the one of the user itself and those of the users it enters or
+	 * leaves.
+	 *
+	 * @return Mapping user -> (neighbor -> similarity) of all recomputed
+	 *         neighborhoods
+	 */
+	public synchronized Map<String, LinkedHashMap<String, Double>> update(
+			String user) {
+		Map<String, LinkedHashMap<String, Double>> result = new HashMap<String, LinkedHashMap<String, Double>>();
+		Vector vector = readVector(user);
+		Integer index = userIndex.get(user);
+		if (index == null && vector == null)
+			return result;
+		int u = index != null ? index : addUser(user);
+
+		// Users having the user as neighbor before the update
+		Set<Integer> affected = new HashSet<Integer>();
+		for (int v = 0; v < userCount; v++) {
+			if (contains(neighborUsers[v], u)) {
+				affected.add(v);
+			}
+		}
+
+		setVector(u, vector);
+
+		// Users whose k-th neighbor the user now beats
+		double[] scalars = new double[userCount];
+		int[] touched = new int[userCount];
+		int[] stamps = new int[userCount];
+		int count = accumulate(u, scalars, touched, stamps);
+		for (int i = 0; i < count; i++) {
+			int v = touched[i];
+			if (neighborUsers[v] == null)
+				continue;
+			double similarity = scalars[v] / (lengths[u] * lengths[v]);
+			int size = neighborUsers[v].length;
+			if (similarity > 0.0
+					&& (size < neighbors || similarity > neighborSimilarities[v][size - 1])) {
+				affected.add(v);
+			}
+		}
+		if (sources.contains(user)) {
+			affected.add(u);
+		}
+
+		// Recompute the affected neighborhoods
+		TopK best = new TopK(neighbors);
+		for (int v : affected) {
+			Arrays.fill(stamps, 0);
+			computeNeighbors(v, scalars, touched, stamps, best);
+			result.put(users[v], getNeighborhood(v));
+		}
+		return result;
+	}
+
+	/**
+	 * Replace the content of the USER_SIMILARITIES table by the given
+	 * neighborhoods.
+	 */
+	public static void save(Map<String, LinkedHashMap<String, Double>> neighborhoods)
+			throws SQLException {
+		write(neighborhoods, true);
+	}
+
+	/**
+	 * Replace the USER_SIMILARITIES rows of the users contained in the given
+	 * neighborhoods.
+	 */
+	public static void saveUsers(
+			Map<String, LinkedHashMap<String, Double>> neighborhoods)
+			throws SQLException {
+		write(neighborhoods, false);
+	}
+
+	// Write neighborhoods in one transaction
+	private static void write(
+			Map<String, LinkedHashMap<String, Double>> neighborhoods,
+			boolean all) throws SQLException {
+		Connection conn = null;
+		PreparedStatement delete = null;
+		PreparedStatement pstmt = null;
+
+		try {
+			conn = Database.getConnection();
+			conn.setAutoCommit(false);
+			if (all) {
+				DELETE_SIMILARITIES.update(conn);
+			} else {
+				delete = DELETE_USER_SIMILARITIES.prepare(conn);
+				for (String user : neighborhoods.keySet()) {
+					Query.bind(delete, user);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+			}
+
+			pstmt = INSERT_SIMILARITY.prepare(conn);
+			int count = 0;
+			for (Map.Entry<String, LinkedHashMap<String, Double>> entry : neighborhoods
+					.entrySet()) {
+				for (Map.Entry<String, Double> neighbor : entry.getValue()
+						.entrySet()) {
+					Query.bind(pstmt, entry.getKey(), neighbor.getKey(),
+							neighbor.getValue());
+					pstmt.addBatch();
+					if (++count % BATCH_SIZE == 0) {
+						pstmt.executeBatch();
+					}
+				}
+			}
+			pstmt.executeBatch();
+			conn.commit();
+			if (all) {
+				LOG.info("Saved " + count + " user similarities.");
+			}
+		} catch (SQLException e) {
+			LOG.warn("- Rollback - Saving user similarities failed.", e);
+			Database.quietRollback(conn);
+			throw e;
+		} finally {
+			Database.resetAutoCommit(conn);
+			Database.quietClose(delete);
+			Database.quietClose(pstmt);
+			Database.quietClose(conn);
+		}
+	}
+
+	// Read and center the rating vector of a user
+	private Vector readVector(String user) {
+		HashMap<Integer, Double> ratings = repository.getRatingsFromUser(user);
+		if (ratings.isEmpty())
+			return null;
+
+		// Sort by track id and center on the mean rating
+		int[] ids = new int[ratings.size()];
+		int[] liked = new int[ratings.size()];
+		int i = 0;
+		int likes = 0;
+		double sum = 0;
+		for (Map.Entry<Integer, Double> rating : ratings.entrySet()) {
+			ids[i++] = rating.getKey();
+			sum += rating.getValue();
+			if (rating.getValue() > 0) {
+				liked[likes++] = rating.getKey();
+			}
+		}
+		Arrays.sort(ids);
+		double mean = sum / ids.length;
+		double[] centered = new double[ids.length];
+		double length = 0;
+		for (i = 0; i < ids.length; i++) {
+			centered[i] = ratings.get(ids[i]) - mean;
+			length += centered[i] * centered[i];
+		}
+
+		// Users with constant ratings correlate with nobody
+		if (length == 0)
+			return null;
+		return new Vector(ids, centered, Math.sqrt(length), Arrays.copyOf(
+				liked, likes));
+	}
+
+	// Add a user without ratings and return its index
+	private int addUser(String user) {
+		Integer index = userIndex.get(user);
+		if (index != null)
+			return index;
+
+		if (userCount == users.length) {
+			int capacity = Math.max(16, userCount * 2);
+			users = Arrays.copyOf(users, capacity);
+			tracks = Arrays.copyOf(tracks, capacity);
+			values = Arrays.copyOf(values, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			neighborUsers = Arrays.copyOf(neighborUsers, capacity);
+			neighborSimilarities = Arrays.copyOf(neighborSimilarities,
+					capacity);
+		}
+		int u = userCount++;
+		users[u] = user;
+		tracks[u] = NO_INDEXES;
+		values[u] = NO_VALUES;
+		userIndex.put(user, u);
+		return u;
+	}
+
+	// Replace the vector of user u and its postings
+	private void setVector(int u, Vector vector) {
+		// Remove the old postings
+		for (int t : tracks[u]) {
+			int[] postUsers = postingUsers[t];
+			double[] postValues = postingValues[t];
+			int[] newUsers = new int[postUsers.length - 1];
+			double[] newValues = new double[postUsers.length - 1];
+			int n = 0;
+			for (int p = 0; p < postUsers.length; p++) {
+				if (postUsers[p] != u) {
+					newUsers[n] = postUsers[p];
+					newValues[n++] = postValues[p];
+				}
+			}
+			postingUsers[t] = newUsers;
+			postingValues[t] = newValues;
+		}
+
+		if (vector == null) {
+			tracks[u] = NO_INDEXES;
+			values[u] = NO_VALUES;
+			lengths[u] = 0;
+			return;
+		}
+
+		// Add the new postings
+		int[] indexes = new int[vector.trackIds.length];
+		for (int i = 0; i < indexes.length; i++) {
+			int t = getTrackIndex(vector.trackIds[i]);
+			indexes[i] = t;
+			int size = postingUsers[t].length;
+			postingUsers[t] = Arrays.copyOf(postingUsers[t], size + 1);
+			postingValues[t] = Arrays.copyOf(postingValues[t], size + 1);
+			postingUsers[t][size] = u;
+			postingValues[t][size] = vector.values[i];
+		}
+		tracks[u] = indexes;
+		values[u] = vector.values;
+		lengths[u] = vector.length;
+	}
+
+	// Get the index of a track, adding an empty posting list if needed
+	private int getTrackIndex(int track) {
+		Integer t = trackIndex.get(track);
+		if (t != null)
+			return t;
+
+		int index = trackIndex.size();
+		if (index == postingUsers.length) {
+			int capacity = Math.max(64, index * 2);
+			postingUsers = Arrays.copyOf(postingUsers, capacity);
+			postingValues = Arrays.copyOf(postingValues, capacity);
+		}
+		postingUsers[index] = NO_INDEXES;
+		postingValues[index] = NO_VALUES;
+		trackIndex.put(track, index);
+		return index;
+	}
+
+	/**
+	 * Computes the neighborhoods of a range of users, splitting the range
+	 * until it is small enough.
+	 */
+	private class NeighborTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] wanted;
+		private final int from;
+		private final int to;
+
+		NeighborTask(int[] wanted, int from, int to) {
+			this.wanted = wanted;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new NeighborTask(wanted, from, middle),
+						new NeighborTask(wanted, middle, to));
+				return;
+			}
+
+			// Scalar products with all users, reused for each user of the range
+			double[] scalars = new double[userCount];
+			int[] touched = new int[userCount];
+			int[] stamps = new int[userCount];
+			TopK best = new TopK(neighbors);
+			if (candidateIndex == null) {
+				for (int i = from; i < to; i++) {
+					computeNeighbors(wanted[i], scalars, touched, stamps, best);
+				}
+				return;
+			}
+
+			// Centered ratings of the current user by track index
+			double[] dense = new double[trackIndex.size()];
+			for (int i = from; i < to; i++) {
+				computeCandidateNeighbors(wanted[i], dense, touched, stamps,
+						best);
+			}
+		}
+	}
+
+	// Compute the top k neighbors of user u
+	private void computeNeighbors(int u, double[] scalars, int[] touched,
+			int[] stamps, TopK best) {
+		int count = accumulate(u, scalars, touched, stamps);
+
+		// Select the k most similar users
+		best.clear();
+		for (int i = 0; i < count; i++) {
+			int v = touched[i];
+			double similarity = scalars[v] / (lengths[u] * lengths[v]);
+			if (similarity > 0.0) {
+				best.offer(v, similarity);
+			}
+		}
+
+		setNeighbors(u, best);
+	}
+
+	// Compute the top k neighbors of user u among its LSH candidates
+	private void computeCandidateNeighbors(int u, double[] dense,
+			int[] touched, int[] stamps, TopK best) {
+		int count = candidateIndex.candidates(u, touched, stamps);
+		for (int i = 0; i < tracks[u].length; i++) {
+			dense[tracks[u][i]] = values[u][i];
+		}
+
+		best.clear();
+		for (int i = 0; i < count; i++) {
+			int v = touched[i];
+			double scalar = 0;
+			for (int j = 0; j < tracks[v].length; j++) {
+				scalar += dense[tracks[v][j]] * values[v][j];
+			}
+			double similarity = scalar / (lengths[u] * lengths[v]);
+			if (similarity > 0.0) {
+				best.offer(v, similarity);
+			}
+		}
+
+		for (int i = 0; i < tracks[u].length; i++) {
+			dense[tracks[u][i]] = 0;
+		}
+		setNeighbors(u, best);
+	}
+
+	// Store the selected neighbors of user u
+	private void setNeighbors(int u, TopK best) {
+		best.sort();
+		int[] bestUsers = new int[best.size()];
+		double[] bestSimilarities = new double[best.size()];
+		for (int i = 0; i < best.size(); i++) {
+			bestUsers[i] = best.getId(i);
+			bestSimilarities[i] = best.getScore(i);
+		}
+		neighborUsers[u] = bestUsers;
+		neighborSimilarities[u] = bestSimilarities;
+	}
+
+	// Compare the approximate neighborhoods of a sample of users with the
+	// exact ones and log the recall
+	private void reportRecall(int[] wanted, int count) {
+		int sample = Math.min(RECALL_SAMPLE, count);
+		if (sample == 0)
+			return;
+
+		int[] sampled = Arrays.copyOf(wanted, count);
+		Random random = new Random(42);
+		double[] scalars = new double[userCount];
+		int[] touched = new int[userCount];
+		int[] stamps = new int[userCount];
+		TopK exact = new TopK(neighbors);
+		int found = 0;
+		int expected = 0;
+		int candidates = 0;
+		for (int i = 0; i < sample; i++) {
+			// Partial Fisher-Yates shuffle
+			int j = i + random.nextInt(count - i);
+			int u = sampled[j];
+			sampled[j] = sampled[i];
+			sampled[i] = u;
+
+			Arrays.fill(stamps, 0);
+			candidates += candidateIndex.candidates(u, touched, stamps);
+
+			Arrays.fill(stamps, 0);
+			int touchedCount = accumulate(u, scalars, touched, stamps);
+			exact.clear();
+			for (int t = 0; t < touchedCount; t++) {
+				int v = touched[t];
+				double similarity = scalars[v] / (lengths[u] * lengths[v]);
+				if (similarity > 0.0) {
+					exact.offer(v, similarity);
+				}
+			}
+			for (int n = 0; n < exact.size(); n++) {
+				if (contains(neighborUsers[u], exact.getId(n))) {
+					found++;
+				}
+			}
+			expected += exact.size();
+		}
+
+		LOG.info("MinHash neighbor recall@" + neighbors + " (" + bands
+				+ " bands x " + rows + " rows) on " + sample + " users: "
+				+ (expected == 0 ? 1.0 : (double) found / expected)
+				+ ", candidates per user: " + (candidates / sample));
+	}
+
+	// Accumulate the scalar products of user u with all co-rating users.
+	// Returns the number of these users, listed in touched.
+	private int accumulate(int u, double[] scalars, int[] touched, int[] stamps) {
+		int count = 0;
+		for (int i = 0; i < tracks[u].length; i++) {
+			int t = tracks[u][i];
+			double value = values[u][i];
+			int[] postUsers = postingUsers[t];
+			double[] postValues = postingValues[t];
+			for (int p = 0; p < postUsers.length; p++) {
+				int v = postUsers[p];
+				if (v == u)
+					continue;
+				// First co-rated track of v: reset its sum
+				if (stamps[v] != u + 1) {
+					stamps[v] = u + 1;
+					scalars[v] = 0;
+					touched[count++] = v;
+				}
+				scalars[v] += value * postValues[p];
+			}
+		}
+		return count;
+	}
+
+	// Get the neighborhood of user u by name
+	private LinkedHashMap<String, Double> getNeighborhood(int u) {
+		LinkedHashMap<String, Double> neighborhood = new LinkedHashMap<String, Double>();
+		if (neighborUsers[u] == null)
+			return neighborhood;
+		for (int n = 0; n < neighborUsers[u].length; n++) {
+			neighborhood.put(users[neighborUsers[u][n]],
+					neighborSimilarities[u][n]);
+		}
+		return neighborhood;
+	}
+
+	private static boolean contains(int[] array, int value) {
+		if (array == null)
+			return false;
+		for (int element : array) {
+			if (element == value)
+				return true;
+		}
+		return false;
+	}
+}
@@ -19,13 +19,14 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,17 +34,43 @@ import org.slf4j.LoggerFactory;
 import de.muse.api.AbstractRecommender;
 import de.muse.api.DataRepository;
 import de.muse.api.Recommendation;
+import de.muse.api.Song;
 import de.muse.api.User;
 import de.muse.recommendation.MuseRecommendation;
-import de.muse.recommendation.MuseSong;
+import de.muse.recommendation.ScoreTable;
+import de.muse.recommendation.TrackCatalog;
 import de.muse.utility.Database;
-import de.muse.utility.MathHelper;
+import de.muse.utility.Query;
+import de.muse.utility.TopK;
 
 public class ContentBasedRecommender extends AbstractRecommender {
 	// Configured logger
 	private static transient final Logger LOG = LoggerFactory
 			.getLogger(ContentBasedRecommender.class.getName());
 
+	// Named queries
+	private static final Query PREDICTED_SCORES = new Query("cbPredictedScores",
+			"SELECT DISTINCT track_id, score, explanation "
+					+ "FROM user_track_score WHERE track_id "
+					+ "NOT IN(SELECT track_id FROM recommendation WHERE consumer = ?)"
+					+ " AND user_name = ? ORDER BY score DESC");
+	private static final Query DELETE_SCORES = new Query("cbDeleteScores",
+			"DELETE FROM user_track_score");
+	private static final Query INSERT_SCORE = new Query("cbInsertScore",
+			"INSERT INTO user_track_score VALUES(?,?,?,?)");
+
+	// Number of neighbors saved per track
+	private static final int TRACK_NEIGHBORS = 20;
+	// Tracks and their neighbors, kept between the weekly runs
+	private static final TrackSimilarityEngine trackSimilarities = new TrackSimilarityEngine(
+			TRACK_NEIGHBORS);
+	// Number of users scored before their scores are written
+	private static final int CHUNK_SIZE = 1024;
+	// Number of users a fork-join task scores without splitting
+	private static final int TASK_SIZE = 16;
+	// Number of rows per insert batch
+	private static final int BATCH_SIZE = 1000;
+
 	// Meta information
 	private static final String NAME = "Content Based";
 	private static final String EXPLANATION = "Recommendations are based on items that are similar to items you like.";
@@ -69,26 +96,24 @@ public class ContentBasedRecommender extends AbstractRecommender {
 
 	@Override
 	public List<Recommendation> getRecommendations(User user, int howMany) {
+		// Serve the precomputed scores from memory once they are loaded
+		if (ScoreTable.CONTENT.isLoaded())
+			return getStoredRecommendations(user, howMany);
+
 		List<Recommendation> recommendations = new ArrayList<Recommendation>();
 
 		// Connect to database
 		Connection conn = null;
-		Statement stmt = null;
+		PreparedStatement pstmt = null;
 		ResultSet result = null;
 
 		try {
 			conn = Database.getConnection();
-			stmt = conn.createStatement();
 
 			// 1) Get the tracks with highest predicted rating
-			result = stmt
-					.executeQuery("SELECT DISTINCT track_id, score, explanation "
-							+ "FROM user_track_score WHERE track_id "
-							+ "NOT IN(SELECT track_id FROM recommendation WHERE consumer = '"
-							+ user.getName()
-							+ "')"
-							+ " AND user_name = '"
-							+ user.getName() + "' ORDER BY score DESC ");
+			pstmt = PREDICTED_SCORES.prepare(conn);
+			Query.bind(pstmt, user.getName(), user.getName());
+			result = pstmt.executeQuery();
 
 			// Save tracks in HashMap to lookup the score and in a list to keep
 			// the ordering
@@ -121,263 +146,270 @@ public class ContentBasedRecommender extends AbstractRecommender {
 					"Couldn't get recommendations for user: " + user.getName(),
 					e);
 		} finally {
-			Database.quietClose(conn, stmt, result);
+			Database.quietClose(conn, pstmt, result);
 		}
 		return recommendations;
 	}
 
+	// Get the best precomputed tracks the user hasn't seen yet
+	private List<Recommendation> getStoredRecommendations(User user,
+			int howMany) {
+		HashMap<Integer, Double> candidates = new HashMap<Integer, Double>();
+		HashMap<Integer, String> explanations = new HashMap<Integer, String>();
+		List<Integer> topN = new ArrayList<Integer>();
+
+		ScoreTable.Row row = ScoreTable.CONTENT.get(user.getName());
+		if (row != null) {
+			Set<Integer> seen = getDataRepository().getRatedSongIDs(
+					user.getName());
+			for (int i = 0; i < row.size() && topN.size() < howMany; i++) {
+				int trackId = row.getTrackId(i);
+				if (seen.contains(trackId))
+					continue;
+				candidates.put(trackId, row.getScore(i));
+				explanations.put(trackId, row.getExplanation(i));
+				topN.add(trackId);
+			}
+		}
+		return mapTracksToRecommendations(topN, candidates, explanations);
+	}
+
 	private List<Recommendation> mapTracksToRecommendations(List<Integer> ids,
 			HashMap<Integer, Double> candidates,
 			HashMap<Integer, String> explanations) {
 		List<Recommendation> recommendations = new ArrayList<Recommendation>();
 
-		// Connect to database
-		Connection conn = null;
-		PreparedStatement pstmt = null;
-		ResultSet result = null;
-
-		try {
-			conn = Database.getConnection();
-
-			// Get information of each track
-			pstmt = conn
-					.prepareStatement("SELECT artist, name FROM tracks WHERE id = ?");
-			for (int id : ids) {
-				pstmt.setInt(1, id);
-				result = pstmt.executeQuery();
-				while (result.next()) {
-					String artist = result.getString("artist");
-					String name = result.getString("name");
-					MuseSong song = new MuseSong(artist, name);
-					song.setID(id);
-					double score = candidates.get(id);
-					String explanation = "You liked: " + explanations.get(id);
-
-					MuseRecommendation rec = new MuseRecommendation();
-					rec.setSong(song);
-					rec.setScore(score);
-					rec.setExplanation(explanation);
-					rec.setRecommenderID(getID());
-					recommendations.add(rec);
-				}
-			}
-
-		} catch (SQLException e) {
-			LOG.warn("Couldn't create recommendations out of ids.", e);
-		} finally {
-			Database.quietClose(conn, pstmt, result);
+		// Get information of all tracks at once
+		Map<Integer, Song> songs = getDataRepository().getSongInfo(ids);
+		for (int id : ids) {
+			Song song = songs.get(id);
+			if (song == null)
+				continue;
+			double score = candidates.get(id);
+			String explanation = "You liked: " + explanations.get(id);
+
+			MuseRecommendation rec = new MuseRecommendation();
+			rec.setSong(song);
+			rec.setScore(score);
+			rec.setExplanation(explanation);
+			rec.setRecommenderID(getID());
+			recommendations.add(rec);
 		}
 		return recommendations;
 	}
 
 	/**
-	 * Precompute prediction scores for the given user.
+	 * Precompute the prediction scores of the given users and replace the
+	 * saved ones.
 	 * 
-	 * @param neighborhoodSize
-	 *            The number of neighbors to consider for the score computation.
-	 * @param user
-	 *            The name of the user.
+	 * The neighbors of all tracks are read once. Each user is then scored in
+	 * memory: every unrated neighbor of a liked track scores its similarity
+	 * times the rating, and the best score per track is kept. Users are
+	 * scored in parallel, chunk by chunk, and the best
+	 * {@link ScoreTable#TOP_N} tracks per user are saved.
 	 * 
+	 * @param users
+	 *            The users to score
+	 * @param neighborhoodSize
+	 *            The number of neighbors to consider per liked track.
 	 */
-	public void refreshUserItemMatrix(String user, int neighborhoodSize) {
+	public void refreshUserItemMatrices(List<String> users, int neighborhoodSize) {
+		long start = System.currentTimeMillis();
+		TrackNeighborIndex index;
+		try {
+			index = TrackNeighborIndex.load(neighborhoodSize);
+		} catch (SQLException e) {
+			LOG.warn("Couldn't read track similarities.", e);
+			return;
+		}
+
 		// Connect to database
 		Connection conn = null;
 		PreparedStatement pstmt = null;
-		PreparedStatement pstmt2 = null;
-		Statement stmt = null;
-		ResultSet result = null;
-		ResultSet result2 = null;
+		ForkJoinPool pool = new ForkJoinPool();
+		int count = 0;
 
 		try {
 			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			pstmt = conn
-					.prepareStatement("INSERT INTO user_track_score VALUES(?,?,?,?)");
-			pstmt2 = conn
-					.prepareStatement("SELECT track_id_1,track_id_2, similarity FROM "
-							+ "(SELECT track_id_1, track_id_2, similarity "
-							+ "FROM track_similarities "
-							+ "WHERE track_id_1 = ? OR track_id_2 = ?"
-							+ "ORDER BY similarity DESC) WHERE ROWNUM <= ?");
-
-			// Compute prediction scores
-			LOG.info("...Precomputing scores for user: " + user);
-
-			// Get already rated songs of the current user
-			LinkedHashMap<Integer, Double> ratedSongs = getDataRepository()
-					.getRatingsFromUser(user);
-
-			// Compute prediction score for neighbors of each rated song
-			for (int songID : ratedSongs.keySet()) {
-				// Check for positive rating
-				if (ratedSongs.get(songID) != 2 && ratedSongs.get(songID) != 1) {
-					// There are no more songs that the user likes
-					break;
-				}
-
-				pstmt2.setInt(1, songID);
-				pstmt2.setInt(2, songID);
-				pstmt2.setInt(3, neighborhoodSize);
-				result = pstmt2.executeQuery();
-
-				while (result.next()) {
-					// Get similarity of the neighbor
-					Double similarity = result.getDouble("similarity");
-					int neighborId = result.getInt("track_id_1");
-					if (neighborId == songID) {
-						neighborId = result.getInt("track_id_2");
-					}
-
-					// Check song was already rated by the user
-					double score = 0;
-					String artist = "";
-					if (!ratedSongs.containsKey(neighborId)) {
-						score = similarity * ratedSongs.get(songID);
-
-						// Get artist name for explanation
-						result2 = stmt
-								.executeQuery("SELECT artist FROM tracks WHERE id = "
-										+ songID);
-						while (result2.next()) {
-							artist = result2.getString("artist");
-						}
-
-						// 3) Save prediction score to database
-						pstmt.setString(1, user);
-						pstmt.setInt(2, neighborId);
-						pstmt.setDouble(3, score);
-						pstmt.setString(4, artist);
+			conn.setAutoCommit(false);
+			DELETE_SCORES.update(conn);
+			pstmt = INSERT_SCORE.prepare(conn);
+
+			for (int from = 0; from < users.size(); from += CHUNK_SIZE) {
+				int to = Math.min(users.size(), from + CHUNK_SIZE);
+				UserScores[] chunk = new UserScores[to - from];
+				pool.invoke(new ScoreTask(index, users, from, to, from, chunk));
+
+				for (UserScores scores : chunk) {
+					for (int i = 0; i < scores.trackIds.length; i++) {
+						Query.bind(pstmt, scores.user, scores.trackIds[i],
+								scores.scores[i], scores.explanations[i]);
 						pstmt.addBatch();
-
+						if (++count % BATCH_SIZE == 0) {
+							pstmt.executeBatch();
+						}
 					}
-					LOG.info("Computed prediction " + score + " for user "
-							+ user + " and " + neighborId + ".");
 				}
-				pstmt.executeBatch();
 			}
+			pstmt.executeBatch();
+			conn.commit();
+			LOG.info("Saved " + count + " content-based scores of "
+					+ users.size() + " users in "
+					+ (System.currentTimeMillis() - start) + " ms.");
 		} catch (SQLException e) {
-			LOG.warn("Couldn't save similarities to the database: ", e);
+			LOG.warn("- Rollback - Saving content-based scores failed.", e);
+			Database.quietRollback(conn);
 		} finally {
-			Database.quietClose(result2);
-			Database.quietClose(result);
+			pool.shutdown();
+			Database.resetAutoCommit(conn);
 			Database.quietClose(pstmt);
-			Database.quietClose(pstmt2);
-			Database.quietClose(stmt);
 			Database.quietClose(conn);
 		}
 	}
 
 	/**
-	 * Compute and save content based similarities for each song
+	 * Best scores of one user, ordered by score DESC.
 	 */
-	public static void refreshTrackSimilarities() {
-		List<MuseSong> songs = getAllTracksMissingTrackSimilarities();
-		HashSet<MuseSong> done = new HashSet<MuseSong>();
-
-		// Connect to database
-		Connection conn = null;
-		PreparedStatement pstmt = null;
-
-		try {
-			conn = Database.getConnection();
-			pstmt = conn
-					.prepareStatement("INSERT INTO track_similarities VALUES(?,?,?)");
-
-			// Compute the similarity
-			for (MuseSong songOne : songs) {
-				LOG.info("Compute similarities for song: " + songOne.toString());
-				int count = 0;
-				for (MuseSong songTwo : songs) {
-					LOG.info(" - Compute similarity to " + songTwo.toString()
-							+ ".");
-
-					// Avoid duplicate computations
-					if (songOne.equals(songTwo) || done.contains(songTwo))
-						continue;
-
-					// Compute similarity and save if not zero
-					double similarity = MathHelper.computeCosineDistance(
-							songOne.getTags(), songTwo.getTags());
-					if (similarity == 0.0)
-						continue;
-
-					// If not zero save similarity to database
-					pstmt.setInt(1, songOne.getID());
-					pstmt.setInt(2, songTwo.getID());
-					pstmt.setDouble(3, similarity);
-					pstmt.addBatch();
-
-					// Save stacks of size 1000 to the database
-					count++;
-					if (count == 1000) {
-						pstmt.executeBatch();
-						count = 0;
-					}
-				}
-				pstmt.executeBatch();
-				done.add(songOne);
-			}
-			LOG.info("Computed similarities for " + done.size() + " tracks.");
-
-		} catch (SQLException e) {
-			LOG.warn("Couldn't save track similarities to the database. ", e);
-		} finally {
-			Database.quietClose(pstmt);
-			Database.quietClose(conn);
+	private static final class UserScores {
+		final String user;
+		final int[] trackIds;
+		final double[] scores;
+		final String[] explanations;
+
+		UserScores(String user, int[] trackIds, double[] scores,
+				String[] explanations) {
+			this.user = user;
+			this.trackIds = trackIds;
+			this.scores = scores;
+			this.explanations = explanations;
 		}
 	}
 
 	/**
-	 * Get all tracks including the corresponding tags from the database for
-	 * which no content based similarity is computed.
-	 * 
-	 * @return A list of all tracks including corresponding tags
+	 * Scores a range of users, splitting the range until it is small enough.
 	 */
-	public static List<MuseSong> getAllTracksMissingTrackSimilarities() {
-		LOG.info("Fetching all tracks from the database.");
-		List<MuseSong> tracks = new ArrayList<MuseSong>();
+	private class ScoreTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final TrackNeighborIndex index;
+		private final List<String> users;
+		private final int from;
+		private final int to;
+		// Position of users.get(offset) in the results
+		private final int offset;
+		private final UserScores[] results;
+
+		ScoreTask(TrackNeighborIndex index, List<String> users, int from,
+				int to, int offset, UserScores[] results) {
+			this.index = index;
+			this.users = users;
+			this.from = from;
+			this.to = to;
+			this.offset = offset;
+			this.results = results;
+		}
 
-		// Connect to database
-		Connection conn = null;
-		Statement stmt = null;
-		ResultSet result = null;
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ScoreTask(index, users, from, middle, offset,
+						results), new ScoreTask(index, users, middle, to,
+						offset, results));
+				return;
+			}
 
-		try {
-			conn = Database.getConnection();
-			stmt = conn.createStatement();
-			result = stmt
-					.executeQuery("SELECT id, name, artist FROM tracks "
-							+ "WHERE id NOT IN (SELECT track_id_1 FROM track_similarities) "
-							+ "AND id NOT IN(SELECT track_id_2 FROM track_similarities)");
-
-			// Get all the tracks from the database
-			while (result.next()) {
-				String name = result.getString("name");
-				String artist = result.getString("artist");
-				MuseSong song = new MuseSong(artist, name);
-				song.setID(result.getInt("id"));
-				tracks.add(song);
+			// Per-track state, reused for each user of the range. A track
+			// belongs to the current user if its stamp is the user's.
+			int tracks = index.size();
+			double[] scores = new double[tracks];
+			int[] sources = new int[tracks];
+			int[] touched = new int[tracks];
+			int[] stamps = new int[tracks];
+			int[] rated = new int[tracks];
+			TopK best = new TopK(ScoreTable.TOP_N);
+			for (int u = from; u < to; u++) {
+				results[u - offset] = scoreUser(users.get(u), u + 1, index,
+						scores, sources, touched, stamps, rated, best);
 			}
+		}
+	}
 
-			// Get all corresponding tags for each of the tracks
-			for (MuseSong song : tracks) {
-				int id = song.getID();
-				result = stmt.executeQuery("SELECT tag, count FROM "
-						+ "track_tags WHERE track_id = " + id);
+	// Score the neighbors of the tracks the user liked
+	private UserScores scoreUser(String user, int stamp,
+			TrackNeighborIndex index, double[] scores, int[] sources,
+			int[] touched, int[] stamps, int[] rated, TopK best) {
+		// Ratings of the user ordered by rating DESC
+		LinkedHashMap<Integer, Double> ratings = getDataRepository()
+				.getRatingsFromUser(user);
+		for (int trackId : ratings.keySet()) {
+			int t = index.indexOf(trackId);
+			if (t >= 0) {
+				rated[t] = stamp;
+			}
+		}
 
-				HashMap<String, Double> tags = new HashMap<String, Double>();
-				while (result.next()) {
-					tags.put(result.getString("tag"), result.getDouble("count"));
+		int count = 0;
+		for (Map.Entry<Integer, Double> rating : ratings.entrySet()) {
+			// Check for positive rating
+			double value = rating.getValue();
+			if (value != 2 && value != 1) {
+				// There are no more songs that the user likes
+				break;
+			}
+			int t = index.indexOf(rating.getKey());
+			if (t < 0)
+				continue;
+
+			for (int i = index.start(t); i < index.end(t); i++) {
+				int v = index.getNeighbor(i);
+				if (rated[v] == stamp)
+					continue;
+				double score = index.getSimilarity(i) * value;
+				if (stamps[v] != stamp) {
+					stamps[v] = stamp;
+					scores[v] = score;
+					sources[v] = t;
+					touched[count++] = v;
+				} else if (score > scores[v]) {
+					scores[v] = score;
+					sources[v] = t;
 				}
-				song.setTags(tags);
 			}
+		}
 
+		best.clear();
+		for (int i = 0; i < count; i++) {
+			best.offer(touched[i], scores[touched[i]]);
+		}
+		best.sort();
+
+		// Explain by the artist of the liked track
+		int[] trackIds = new int[best.size()];
+		double[] bestScores = new double[best.size()];
+		String[] explanations = new String[best.size()];
+		for (int i = 0; i < best.size(); i++) {
+			int v = best.getId(i);
+			trackIds[i] = index.getTrackId(v);
+			bestScores[i] = best.getScore(i);
+			TrackCatalog.Track track = TrackCatalog.get(index
+					.getTrackId(sources[v]));
+			explanations[i] = track != null ? track.getArtist() : "";
+		}
+		return new UserScores(user, trackIds, bestScores, explanations);
+	}
+
+	/**
+	 * Compute the nearest neighbors of the tracks added since the last run
+	 * by their tags and save the new track similarities. The first run
+	 * computes all tracks.
+	 */
+	public static void refreshTrackSimilarities() {
+		try {
+			trackSimilarities.update();
 		} catch (SQLException e) {
-			LOG.warn("Couldn't get list of tracks from the database.", e);
-		} finally {
-			Database.quietClose(conn, stmt, result);
+			LOG.warn("Couldn't refresh track similarities.", e);
 		}
-		return tracks;
 	}
 
 	@Override
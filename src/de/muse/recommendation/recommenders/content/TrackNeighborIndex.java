@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.content;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+
+/**
+ * Read-only copy of the TRACK_SIMILARITIES table.
+ *
+ * Tracks are numbered densely, so callers can keep per-track state in
+ * primitive arrays of {@link #size()} entries. The neighbors of track t span
+ * [start(t), end(t)) and are ordered by similarity DESC.
+ */
+final class TrackNeighborIndex {
+	// Named queries
+	private static final Query ALL_SIMILARITIES = new Query(
+			"cbAllSimilarities",
+			"SELECT track_id_1, track_id_2, similarity FROM track_similarities "
+					+ "ORDER BY track_id_1, similarity DESC");
+
+	// Track id -> index and back
+	private final Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+	private int[] trackIds = new int[1024];
+
+	// Neighbors in CSR layout, rows ordered by track index
+	private int[] rowStart = new int[1];
+	private int[] neighbors = new int[1024];
+	private float[] similarities = new float[1024];
+
+	// Edges in reading order, only used while loading
+	private int[] sources = new int[1024];
+	private int size = 0;
+
+	private TrackNeighborIndex() {
+	}
+
+	/**
+	 * Read the neighbors of all tracks.
+	 *
+	 * @param perTrack
+	 *            The number of neighbors to keep per track
+	 */
+	static TrackNeighborIndex load(final int perTrack) throws SQLException {
+		final TrackNeighborIndex result = new TrackNeighborIndex();
+		ALL_SIMILARITIES.forEach(new RowHandler() {
+			private int current = -1;
+			private int count = 0;
+
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				int track = result.getIndex(row.getInt("track_id_1"));
+				if (track != current) {
+					current = track;
+					count = 0;
+				}
+				// Rows come ordered by similarity DESC
+				if (count++ < perTrack) {
+					result.add(track, result.getIndex(row.getInt("track_id_2")),
+							(float) row.getDouble("similarity"));
+				}
+			}
+		});
+		result.buildRows();
+		return result;
+	}
+
+	/**
+	 * Get the number of tracks.
+	 */
+	int size() {
+		return index.size();
+	}
+
+	/**
+	 * Get the index of a track.
+	 *
+	 * @return The index or -1 if the track has no similarities
+	 */
+	int indexOf(int trackId) {
+		Integer t = index.get(trackId);
+		return t != null ? t : -1;
+	}
+
+	int getTrackId(int t) {
+		return trackIds[t];
+	}
+
+	int start(int t) {
+		return rowStart[t];
+	}
+
+	int end(int t) {
+		return rowStart[t + 1];
+	}
+
+	int getNeighbor(int i) {
+		return neighbors[i];
+	}
+
+	float getSimilarity(int i) {
+		return similarities[i];
+	}
+
+	// Get the index of a track, numbering new tracks
+	private int getIndex(int trackId) {
+		Integer t = index.get(trackId);
+		if (t != null)
+			return t;
+
+		int next = index.size();
+		if (next == trackIds.length) {
+			trackIds = Arrays.copyOf(trackIds, next * 2);
+		}
+		trackIds[next] = trackId;
+		index.put(trackId, next);
+		return next;
+	}
+
+	private void add(int source, int neighbor, float similarity) {
+		if (size == neighbors.length) {
+			sources = Arrays.copyOf(sources, size * 2);
+			neighbors = Arrays.copyOf(neighbors, size * 2);
+			similarities = Arrays.copyOf(similarities, size * 2);
+		}
+		sources[size] = source;
+		neighbors[size] = neighbor;
+		similarities[size++] = similarity;
+	}
+
+	// Sort the edges into rows by counting, keeping their order per row
+	private void buildRows() {
+		int tracks = index.size();
+		rowStart = new int[tracks + 1];
+		for (int i = 0; i < size; i++) {
+			rowStart[sources[i] + 1]++;
+		}
+		for (int t = 0; t < tracks; t++) {
+			rowStart[t + 1] += rowStart[t];
+		}
+
+		int[] next = Arrays.copyOf(rowStart, tracks);
+		int[] sortedNeighbors = new int[size];
+		float[] sortedSimilarities = new float[size];
+		for (int i = 0; i < size; i++) {
+			int position = next[sources[i]]++;
+			sortedNeighbors[position] = neighbors[i];
+			sortedSimilarities[position] = similarities[i];
+		}
+		neighbors = sortedNeighbors;
+		similarities = sortedSimilarities;
+		trackIds = Arrays.copyOf(trackIds, tracks);
+		sources = null;
+	}
+}
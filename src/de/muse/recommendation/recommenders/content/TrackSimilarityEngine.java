@@ -0,0 +1,634 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.content;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.recommendation.TagDictionary;
+import de.muse.utility.Database;
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+import de.muse.utility.SparseVector;
+import de.muse.utility.TopK;
+
+/**
+ * Computes the k most similar tracks of every track by the cosine of their
+ * tag vectors.
+ *
+ * The cosine of two tracks is only non-zero if they share a tag. A tag ->
+ * tracks inverted index therefore yields exactly the pairs that have to be
+ * compared: for each track the scalar products with all tracks sharing a tag
+ * are accumulated by walking the postings of its tags. Tracks are processed
+ * in parallel on a fork-join pool.
+ *
+ * Only the k best neighbors per track are saved. Every saved pair is written
+ * in both directions, so the neighbors of a track can be looked up by
+ * TRACK_ID_1 alone.
+ *
+ * Track ids grow with the SONGID sequence, so the highest track id read so
+ * far is saved as a watermark. {@link #update()} only reads the tags of
+ * tracks above it, scores them against the whole catalog and adds the new
+ * pairs to the top k lists of existing tracks. Pairs that drop out of a list
+ * stay in the table: their similarity is still correct and they rank below
+ * the k best rows of their track.
+ */
+public class TrackSimilarityEngine {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TrackSimilarityEngine.class.getName());
+
+	// Named queries
+	private static final Query ALL_TAGS = new Query("cbAllTags",
+			"SELECT track_id, tag, count FROM track_tags ORDER BY track_id");
+	private static final Query TAGS_UP_TO = new Query("cbTagsUpTo",
+			"SELECT track_id, tag, count FROM track_tags "
+					+ "WHERE track_id <= ? ORDER BY track_id");
+	private static final Query TAGS_ABOVE = new Query("cbTagsAbove",
+			"SELECT track_id, tag, count FROM track_tags "
+					+ "WHERE track_id > ? ORDER BY track_id");
+	private static final Query WATERMARK = new Query("cbWatermark",
+			"SELECT value FROM watermarks WHERE name = ?");
+	private static final Query SET_WATERMARK = new Query("cbSetWatermark",
+			"MERGE INTO watermarks w USING (SELECT ? name, ? value FROM dual) s "
+					+ "ON (w.name = s.name) "
+					+ "WHEN MATCHED THEN UPDATE SET w.value = s.value "
+					+ "WHEN NOT MATCHED THEN INSERT (name, value) "
+					+ "VALUES (s.name, s.value)");
+	private static final Query DELETE_SIMILARITIES = new Query(
+			"cbDeleteSimilarities", "DELETE FROM track_similarities");
+	private static final Query INSERT_SIMILARITY = new Query(
+			"cbInsertSimilarity", "INSERT INTO track_similarities VALUES(?,?,?)");
+
+	// Number of tracks a fork-join task processes without splitting
+	private static final int TASK_SIZE = 64;
+	// Number of rows per insert batch
+	private static final int BATCH_SIZE = 1000;
+	// Name of the watermark in the WATERMARKS table
+	private static final String WATERMARK_NAME = "track_similarities";
+
+	private final int neighbors;
+
+	// Tracks and their tag vectors, by track index
+	private int[] trackIds = new int[0];
+	private SparseVector[] vectors = new SparseVector[0];
+	// Highest track id whose tags were read, -1 before the first read
+	private int watermark = -1;
+	// Whether the tracks up to the watermark are in memory
+	private boolean loaded = false;
+
+	// Inverted index in CSR layout: the postings of tag t span
+	// [postingStart[t], postingStart[t + 1])
+	private int[] postingStart = new int[1];
+	private int[] postingTracks = new int[0];
+	private float[] postingWeights = new float[0];
+
+	// Result: track index -> neighbor indexes and similarities, best first
+	private int[][] neighborTracks = new int[0][];
+	private double[][] neighborSimilarities = new double[0][];
+
+	/**
+	 * Create an engine.
+	 *
+	 * @param neighbors
+	 *            The number of neighbors to keep per track
+	 */
+	public TrackSimilarityEngine(int neighbors) {
+		this.neighbors = neighbors;
+	}
+
+	/**
+	 * Read the tags of all tracks and compute their nearest neighbors.
+	 *
+	 * @return The number of tracks
+	 */
+	public synchronized int compute() throws SQLException {
+		long start = System.currentTimeMillis();
+		trackIds = new int[0];
+		vectors = new SparseVector[0];
+		watermark = -1;
+		readVectors(ALL_TAGS);
+		buildIndex();
+
+		neighborTracks = new int[trackIds.length][];
+		neighborSimilarities = new double[trackIds.length][];
+		computeNeighbors(0, null);
+		loaded = true;
+
+		LOG.info("Computed neighbors of " + trackIds.length + " tracks in "
+				+ (System.currentTimeMillis() - start) + " ms.");
+		return trackIds.length;
+	}
+
+	/**
+	 * Compute the neighbors of the tracks above the watermark and save the
+	 * new pairs. Without a saved watermark all tracks are computed and saved.
+	 *
+	 * @return The number of new tracks
+	 */
+	public synchronized int update() throws SQLException {
+		if (!loaded) {
+			Integer saved = WATERMARK.first(new Query.RowMapper<Integer>() {
+				@Override
+				public Integer map(ResultSet row) throws SQLException {
+					return row.getInt("value");
+				}
+			}, WATERMARK_NAME);
+			if (saved == null) {
+				int tracks = compute();
+				save();
+				return tracks;
+			}
+			restore(saved);
+		}
+
+		long start = System.currentTimeMillis();
+		int old = trackIds.length;
+		int oldWatermark = watermark;
+		readVectors(TAGS_ABOVE, watermark);
+		if (trackIds.length == old) {
+			if (watermark != oldWatermark) {
+				saveWatermark();
+			}
+			LOG.info("No new tracks with tags.");
+			return 0;
+		}
+		buildIndex();
+
+		neighborTracks = Arrays.copyOf(neighborTracks, trackIds.length);
+		neighborSimilarities = Arrays.copyOf(neighborSimilarities,
+				trackIds.length);
+		Candidates candidates = new Candidates();
+		computeNeighbors(old, candidates);
+		List<long[]> pairs = mergeCandidates(old, candidates);
+
+		LOG.info("Computed neighbors of " + (trackIds.length - old)
+				+ " new tracks in " + (System.currentTimeMillis() - start)
+				+ " ms.");
+		savePairs(pairs);
+		return trackIds.length - old;
+	}
+
+	/**
+	 * Replace the content of the TRACK_SIMILARITIES table by the computed
+	 * neighbors, each pair in both directions.
+	 */
+	public synchronized void save() throws SQLException {
+		Connection conn = null;
+		PreparedStatement pstmt = null;
+
+		try {
+			conn = Database.getConnection();
+			conn.setAutoCommit(false);
+			DELETE_SIMILARITIES.update(conn);
+
+			pstmt = INSERT_SIMILARITY.prepare(conn);
+			int count = 0;
+			for (int u = 0; u < trackIds.length; u++) {
+				for (int n = 0; n < neighborTracks[u].length; n++) {
+					int v = neighborTracks[u][n];
+					// Written while saving v already
+					if (v < u && contains(neighborTracks[v], u))
+						continue;
+
+					double similarity = neighborSimilarities[u][n];
+					Query.bind(pstmt, trackIds[u], trackIds[v], similarity);
+					pstmt.addBatch();
+					Query.bind(pstmt, trackIds[v], trackIds[u], similarity);
+					pstmt.addBatch();
+					count += 2;
+					if (count % BATCH_SIZE == 0) {
+						pstmt.executeBatch();
+					}
+				}
+			}
+			pstmt.executeBatch();
+			SET_WATERMARK.update(conn, WATERMARK_NAME, watermark);
+			conn.commit();
+			LOG.info("Saved " + count + " track similarities.");
+		} catch (SQLException e) {
+			LOG.warn("- Rollback - Saving track similarities failed.", e);
+			Database.quietRollback(conn);
+			throw e;
+		} finally {
+			Database.resetAutoCommit(conn);
+			Database.quietClose(pstmt);
+			Database.quietClose(conn);
+		}
+	}
+
+	// Insert the new pairs in both directions and move the watermark
+	private void savePairs(List<long[]> pairs) throws SQLException {
+		Connection conn = null;
+		PreparedStatement pstmt = null;
+
+		try {
+			conn = Database.getConnection();
+			conn.setAutoCommit(false);
+
+			pstmt = INSERT_SIMILARITY.prepare(conn);
+			int count = 0;
+			for (long[] pair : pairs) {
+				int u = (int) (pair[0] >> 32);
+				int v = (int) pair[0];
+				double similarity = Double.longBitsToDouble(pair[1]);
+				Query.bind(pstmt, trackIds[u], trackIds[v], similarity);
+				pstmt.addBatch();
+				Query.bind(pstmt, trackIds[v], trackIds[u], similarity);
+				pstmt.addBatch();
+				count += 2;
+				if (count % BATCH_SIZE == 0) {
+					pstmt.executeBatch();
+				}
+			}
+			pstmt.executeBatch();
+			SET_WATERMARK.update(conn, WATERMARK_NAME, watermark);
+			conn.commit();
+			LOG.info("Saved " + count + " new track similarities, watermark "
+					+ watermark + ".");
+		} catch (SQLException e) {
+			LOG.warn("- Rollback - Saving new track similarities failed.", e);
+			Database.quietRollback(conn);
+			// Compute from the saved state next time
+			loaded = false;
+			throw e;
+		} finally {
+			Database.resetAutoCommit(conn);
+			Database.quietClose(pstmt);
+			Database.quietClose(conn);
+		}
+	}
+
+	private void saveWatermark() throws SQLException {
+		SET_WATERMARK.update(WATERMARK_NAME, watermark);
+	}
+
+	// Read the tracks up to the watermark and their saved neighbors, e.g.
+	// after a restart
+	private void restore(int savedWatermark) throws SQLException {
+		long start = System.currentTimeMillis();
+		trackIds = new int[0];
+		vectors = new SparseVector[0];
+		watermark = -1;
+		readVectors(TAGS_UP_TO, savedWatermark);
+		watermark = Math.max(watermark, savedWatermark);
+
+		HashMap<Integer, Integer> trackIndex = new HashMap<Integer, Integer>();
+		for (int t = 0; t < trackIds.length; t++) {
+			trackIndex.put(trackIds[t], t);
+		}
+		neighborTracks = new int[trackIds.length][];
+		neighborSimilarities = new double[trackIds.length][];
+		TrackNeighborIndex saved = TrackNeighborIndex.load(neighbors);
+		for (int u = 0; u < trackIds.length; u++) {
+			neighborTracks[u] = new int[0];
+			neighborSimilarities[u] = new double[0];
+			int s = saved.indexOf(trackIds[u]);
+			if (s < 0)
+				continue;
+
+			int[] bestTracks = new int[saved.end(s) - saved.start(s)];
+			double[] bestSimilarities = new double[bestTracks.length];
+			int size = 0;
+			for (int i = saved.start(s); i < saved.end(s); i++) {
+				Integer v = trackIndex.get(saved.getTrackId(saved
+						.getNeighbor(i)));
+				// Skip tracks that lost their tags
+				if (v == null)
+					continue;
+				bestTracks[size] = v;
+				bestSimilarities[size++] = saved.getSimilarity(i);
+			}
+			neighborTracks[u] = Arrays.copyOf(bestTracks, size);
+			neighborSimilarities[u] = Arrays.copyOf(bestSimilarities, size);
+		}
+		loaded = true;
+
+		LOG.info("Restored " + trackIds.length + " tracks up to watermark "
+				+ watermark + " in " + (System.currentTimeMillis() - start)
+				+ " ms.");
+	}
+
+	// Append the tag vectors read by the query and move the watermark
+	private void readVectors(Query query, Object... params)
+			throws SQLException {
+		final List<Integer> ids = new ArrayList<Integer>();
+		final List<SparseVector> tagVectors = new ArrayList<SparseVector>();
+		final HashMap<String, Double> tags = new HashMap<String, Double>();
+		final int[] current = new int[] { -1 };
+
+		query.forEach(new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				int trackId = row.getInt("track_id");
+				if (trackId != current[0]) {
+					addTrack(current[0], tags, ids, tagVectors);
+					current[0] = trackId;
+				}
+				tags.put(row.getString("tag"), row.getDouble("count"));
+			}
+		}, params);
+		addTrack(current[0], tags, ids, tagVectors);
+
+		int old = trackIds.length;
+		trackIds = Arrays.copyOf(trackIds, old + ids.size());
+		vectors = Arrays.copyOf(vectors, old + ids.size());
+		for (int t = 0; t < ids.size(); t++) {
+			trackIds[old + t] = ids.get(t);
+			vectors[old + t] = tagVectors.get(t);
+		}
+		// Rows come ordered by track id
+		watermark = Math.max(watermark, current[0]);
+	}
+
+	// Add the collected tags of a track and clear them
+	private static void addTrack(int trackId, HashMap<String, Double> tags,
+			List<Integer> ids, List<SparseVector> tagVectors) {
+		if (tags.isEmpty())
+			return;
+		SparseVector vector = TagDictionary.toVector(tags);
+		tags.clear();
+		if (vector.getLength() == 0)
+			return;
+		ids.add(trackId);
+		tagVectors.add(vector);
+	}
+
+	// Build the tag -> tracks postings
+	private void buildIndex() {
+		int tagCount = TagDictionary.size();
+		postingStart = new int[tagCount + 1];
+		for (SparseVector vector : vectors) {
+			for (int i = 0; i < vector.size(); i++) {
+				postingStart[vector.getId(i) + 1]++;
+			}
+		}
+		for (int t = 0; t < tagCount; t++) {
+			postingStart[t + 1] += postingStart[t];
+		}
+
+		postingTracks = new int[postingStart[tagCount]];
+		postingWeights = new float[postingStart[tagCount]];
+		int[] next = new int[tagCount];
+		System.arraycopy(postingStart, 0, next, 0, tagCount);
+		for (int u = 0; u < vectors.length; u++) {
+			for (int i = 0; i < vectors[u].size(); i++) {
+				int position = next[vectors[u].getId(i)]++;
+				postingTracks[position] = u;
+				postingWeights[position] = vectors[u].getWeight(i);
+			}
+		}
+	}
+
+	// Compute the neighbors of the tracks from the given index on. Pairs
+	// that enter the lists of earlier tracks are collected as candidates.
+	private void computeNeighbors(int from, Candidates candidates) {
+		double[] thresholds = null;
+		if (candidates != null) {
+			// Similarity a track has to beat to enter a list
+			thresholds = new double[from];
+			for (int v = 0; v < from; v++) {
+				int size = neighborSimilarities[v].length;
+				thresholds[v] = size < neighbors ? 0
+						: neighborSimilarities[v][size - 1];
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new NeighborTask(from, trackIds.length, from,
+					thresholds, candidates));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// Add the candidates to the lists of the existing tracks and collect the
+	// new pairs as (u << 32 | v, similarity bits)
+	private List<long[]> mergeCandidates(int old, Candidates candidates) {
+		Set<Long> seen = new HashSet<Long>();
+		List<long[]> pairs = new ArrayList<long[]>();
+		for (int u = old; u < trackIds.length; u++) {
+			for (int n = 0; n < neighborTracks[u].length; n++) {
+				addPair(u, neighborTracks[u][n], neighborSimilarities[u][n],
+						seen, pairs);
+			}
+		}
+
+		int changed = 0;
+		for (int c = 0; c < candidates.size; c++) {
+			int v = candidates.tracks[c];
+			int u = candidates.newTracks[c];
+			double similarity = candidates.similarities[c];
+			if (insert(v, u, similarity)) {
+				addPair(u, v, similarity, seen, pairs);
+				changed++;
+			}
+		}
+		LOG.info("Updated " + changed + " neighbor lists of existing tracks.");
+		return pairs;
+	}
+
+	private static void addPair(int u, int v, double similarity,
+			Set<Long> seen, List<long[]> pairs) {
+		int low = Math.min(u, v);
+		int high = Math.max(u, v);
+		if (seen.add(((long) low << 32) | high)) {
+			pairs.add(new long[] { ((long) u << 32) | v,
+					Double.doubleToLongBits(similarity) });
+		}
+	}
+
+	// Insert a neighbor into the top k list of track v
+	private boolean insert(int v, int u, double similarity) {
+		int[] tracks = neighborTracks[v];
+		double[] similarities = neighborSimilarities[v];
+		int size = tracks.length;
+		if (size == neighbors && similarity <= similarities[size - 1])
+			return false;
+
+		int position = size;
+		while (position > 0 && similarities[position - 1] < similarity) {
+			position--;
+		}
+		int newSize = Math.min(size + 1, neighbors);
+		int[] newTracks = new int[newSize];
+		double[] newSimilarities = new double[newSize];
+		System.arraycopy(tracks, 0, newTracks, 0, position);
+		System.arraycopy(similarities, 0, newSimilarities, 0, position);
+		newTracks[position] = u;
+		newSimilarities[position] = similarity;
+		System.arraycopy(tracks, position, newTracks, position + 1, newSize
+				- position - 1);
+		System.arraycopy(similarities, position, newSimilarities,
+				position + 1, newSize - position - 1);
+		neighborTracks[v] = newTracks;
+		neighborSimilarities[v] = newSimilarities;
+		return true;
+	}
+
+	/**
+	 * Pairs (existing track, new track, similarity) that may enter the list
+	 * of the existing track.
+	 */
+	private static final class Candidates {
+		int[] tracks = new int[256];
+		int[] newTracks = new int[256];
+		double[] similarities = new double[256];
+		int size = 0;
+
+		synchronized void addAll(Candidates other) {
+			ensure(size + other.size);
+			System.arraycopy(other.tracks, 0, tracks, size, other.size);
+			System.arraycopy(other.newTracks, 0, newTracks, size, other.size);
+			System.arraycopy(other.similarities, 0, similarities, size,
+					other.size);
+			size += other.size;
+		}
+
+		void add(int track, int newTrack, double similarity) {
+			ensure(size + 1);
+			tracks[size] = track;
+			newTracks[size] = newTrack;
+			similarities[size++] = similarity;
+		}
+
+		private void ensure(int capacity) {
+			if (capacity > tracks.length) {
+				int length = Math.max(capacity, tracks.length * 2);
+				tracks = Arrays.copyOf(tracks, length);
+				newTracks = Arrays.copyOf(newTracks, length);
+				similarities = Arrays.copyOf(similarities, length);
+			}
+		}
+	}
+
+	/**
+	 * Computes the neighbors of a range of tracks, splitting the range until
+	 * it is small enough.
+	 */
+	private class NeighborTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		// Tracks below this index only collect candidates
+		private final int old;
+		private final double[] thresholds;
+		private final Candidates candidates;
+
+		NeighborTask(int from, int to, int old, double[] thresholds,
+				Candidates candidates) {
+			this.from = from;
+			this.to = to;
+			this.old = old;
+			this.thresholds = thresholds;
+			this.candidates = candidates;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new NeighborTask(from, middle, old, thresholds,
+						candidates), new NeighborTask(middle, to, old,
+						thresholds, candidates));
+				return;
+			}
+
+			// Scalar products with all tracks, reused for each track of the
+			// range
+			double[] scalars = new double[trackIds.length];
+			int[] touched = new int[trackIds.length];
+			int[] stamps = new int[trackIds.length];
+			TopK best = new TopK(neighbors);
+			Candidates found = candidates != null ? new Candidates() : null;
+			for (int u = from; u < to; u++) {
+				computeNeighbors(u, scalars, touched, stamps, best, found);
+			}
+			if (found != null) {
+				candidates.addAll(found);
+			}
+		}
+
+		// Compute the top k neighbors of track u
+		private void computeNeighbors(int u, double[] scalars, int[] touched,
+				int[] stamps, TopK best, Candidates found) {
+			SparseVector vector = vectors[u];
+			int count = 0;
+			for (int i = 0; i < vector.size(); i++) {
+				int tag = vector.getId(i);
+				double weight = vector.getWeight(i);
+				for (int p = postingStart[tag]; p < postingStart[tag + 1]; p++) {
+					int v = postingTracks[p];
+					if (v == u)
+						continue;
+					// First shared tag of v: reset its sum
+					if (stamps[v] != u + 1) {
+						stamps[v] = u + 1;
+						scalars[v] = 0;
+						touched[count++] = v;
+					}
+					scalars[v] += weight * postingWeights[p];
+				}
+			}
+
+			best.clear();
+			for (int i = 0; i < count; i++) {
+				int v = touched[i];
+				double similarity = scalars[v]
+						/ (vector.getLength() * vectors[v].getLength());
+				if (similarity > 0.0) {
+					best.offer(v, similarity);
+					if (v < old && similarity > thresholds[v]) {
+						found.add(v, u, similarity);
+					}
+				}
+			}
+
+			best.sort();
+			int[] bestTracks = new int[best.size()];
+			double[] bestSimilarities = new double[best.size()];
+			for (int i = 0; i < best.size(); i++) {
+				bestTracks[i] = best.getId(i);
+				bestSimilarities[i] = best.getScore(i);
+			}
+			neighborTracks[u] = bestTracks;
+			neighborSimilarities[u] = bestSimilarities;
+		}
+	}
+
+	private static boolean contains(int[] array, int value) {
+		for (int element : array) {
+			if (element == value)
+				return true;
+		}
+		return false;
+	}
+}
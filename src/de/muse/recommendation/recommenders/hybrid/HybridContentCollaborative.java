@@ -15,30 +15,37 @@
  */
 package de.muse.recommendation.recommenders.hybrid;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import de.muse.api.AbstractRecommender;
 import de.muse.api.DataRepository;
 import de.muse.api.Recommendation;
 import de.muse.api.User;
-import de.muse.config.RecommenderConfig;
-import de.muse.recommendation.MuseRecommendation;
+import de.muse.config.ApplicationConfig;
+import de.muse.recommendation.ListComposer;
 import de.muse.recommendation.recommenders.collaborative.CollaborativeFilteringRecommender;
 import de.muse.recommendation.recommenders.content.ContentBasedRecommender;
 
 /**
  * Hybrid Recommender using linear combination of scores from Collaborative
- * Filtering and Content Based Filtering Recommenders.
+ * Filtering and Content Based Filtering Recommenders. The recommenders and
+ * their weights are configured by the hybrid_sources setting.
  * 
  * @see ContentBasedRecommender
  * @see CollaborativeFilteringRecommender
+ * @see HybridEngine
  * 
  */
 public class HybridContentCollaborative extends AbstractRecommender {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(HybridContentCollaborative.class.getName());
+
 	// Meta information
 	private static final String NAME = "Hybrid Content Collaborative";
 	private static final String EXPLANATION = "Recommendations are based on items "
@@ -51,9 +58,11 @@ public class HybridContentCollaborative extends AbstractRecommender {
 		tagDistribution.put("Serendipity", 0.0);
 	}
 
+	// Content based and collaborative filtering recommender
+	private static final String DEFAULT_SOURCES = "6:0.7, 7:0.3";
+
 	// Member variables
-	private static final int WEIGHT_REC_ONE = 70;
-	private static final int WEIGHT_REC_TWO = 30;
+	private final HybridEngine engine;
 
 	/**
 	 * Create recommender object
@@ -65,47 +74,20 @@ public class HybridContentCollaborative extends AbstractRecommender {
 	 */
 	public HybridContentCollaborative(int ID, DataRepository dataRepository) {
 		super(ID, dataRepository);
+		HybridEngine configured;
+		try {
+			configured = HybridEngine.parse(ApplicationConfig.HYBRID_SOURCES);
+		} catch (IllegalArgumentException e) {
+			LOG.warn("Using default hybrid recommender sources.", e);
+			configured = HybridEngine.parse(DEFAULT_SOURCES);
+		}
+		this.engine = configured;
 	}
 
 	@Override
 	public List<Recommendation> getRecommendations(User user, int howMany) {
-		List<Recommendation> recommendations = new ArrayList<Recommendation>();
-
-		// Get recommendations of both recommenders
-		ContentBasedRecommender cbr = (ContentBasedRecommender) RecommenderConfig
-				.getRecommenders().get(6);
-		CollaborativeFilteringRecommender cf = (CollaborativeFilteringRecommender) RecommenderConfig
-				.getRecommenders().get(7);
-
-		// Combine recommendations to a new list of recommendations
-		List<Recommendation> recsTemp = cbr.getRecommendations(user, howMany);
-		recsTemp.addAll(cf.getRecommendations(user, howMany));
-
-		for (Recommendation rec : recsTemp) {
-			((MuseRecommendation) rec).setRecommenderID(getID());
-
-			// Adapt score and explanation if both recommenders have created the
-			// same
-			// recommendation. Score' = (Score_1 * Weight_1 + Score_2 *
-			// Weight_2)
-			int duplicateIndex = recommendations.indexOf(rec);
-			if (duplicateIndex == -1) {
-				recommendations.add(rec);
-			} else {
-				MuseRecommendation duplicate = (MuseRecommendation) recommendations
-						.get(duplicateIndex);
-				// Score
-				duplicate.setScore((rec.getScore() * WEIGHT_REC_ONE + duplicate
-						.getScore() * WEIGHT_REC_TWO));
-				// Explanation
-				duplicate.setExplanation(rec.getExplanation() + " and "
-						+ duplicate.getExplanation());
-			}
-		}
-
-		// Sort by score and return topN recommendations
-		Collections.sort(recommendations, Collections.reverseOrder());
-		return recommendations.subList(0, howMany);
+		return engine.recommend(getID(), user, howMany,
+				ListComposer.getDeadline());
 	}
 
 	@Override
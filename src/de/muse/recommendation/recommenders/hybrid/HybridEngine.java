@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation.recommenders.hybrid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.api.Recommendation;
+import de.muse.api.Recommender;
+import de.muse.api.Song;
+import de.muse.api.User;
+import de.muse.config.ApplicationConfig;
+import de.muse.config.RecommenderConfig;
+import de.muse.recommendation.MuseRecommendation;
+import de.muse.utility.TopK;
+
+/**
+ * Combines the recommendations of several recommenders by a weighted sum of
+ * their scores.
+ *
+ * The sources are called concurrently on a bounded pool and the engine waits
+ * for them at most a share of the time left until the caller's deadline, so
+ * the merge still fits in; sources answering later or skipped for lack of
+ * threads are left out. Their scores are min-max
+ * normalized to [0, 1] per call, so recommenders with different score scales
+ * can be mixed. The ranked lists are merged by song in the manner of the threshold
+ * algorithm: they are read rank by rank, the combined score of each new song
+ * is looked up in the score maps of all sources, and the merge stops as soon
+ * as no unseen song can beat the howMany best ones.
+ */
+public final class HybridEngine {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(HybridEngine.class.getName());
+
+	// Threads calling the sources, shared by all hybrid recommenders.
+	// Requests beyond the queue are rejected.
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			ApplicationConfig.RECOMMENDER_THREADS,
+			ApplicationConfig.RECOMMENDER_THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(
+					ApplicationConfig.RECOMMENDER_THREADS * 16),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "hybrid-source-"
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	// Share of the time left until the caller's deadline given to the sources
+	private static final double SOURCE_BUDGET = 0.8;
+
+	private static final Comparator<Recommendation> BY_SCORE_DESC = new Comparator<Recommendation>() {
+		@Override
+		public int compare(Recommendation one, Recommendation two) {
+			return Double.compare(two.getScore(), one.getScore());
+		}
+	};
+
+	private final int[] sourceIds;
+	private final double[] weights;
+
+	/**
+	 * Create an engine.
+	 *
+	 * @param sourceIds
+	 *            The ids of the recommenders to combine
+	 * @param weights
+	 *            The weight of each recommender, non-negative and not all
+	 *            zero
+	 */
+	public HybridEngine(int[] sourceIds, double[] weights) {
+		if (sourceIds.length != weights.length)
+			throw new IllegalArgumentException("Got " + sourceIds.length
+					+ " recommenders but " + weights.length + " weights.");
+		double total = 0;
+		for (double weight : weights) {
+			if (!(weight >= 0) || Double.isInfinite(weight))
+				throw new IllegalArgumentException("Invalid weight " + weight
+						+ ", weights must be finite and non-negative.");
+			total += weight;
+		}
+		if (weights.length > 0 && total == 0)
+			throw new IllegalArgumentException(
+					"At least one weight must be positive.");
+		this.sourceIds = sourceIds.clone();
+		this.weights = weights.clone();
+	}
+
+	/**
+	 * Create an engine from a list of recommender ids and weights, e.g.
+	 * "6:0.7, 7:0.3". Entries without a weight get weight 1.
+	 */
+	public static HybridEngine parse(String sources) {
+		String[] entries = sources.trim().isEmpty() ? new String[0] : sources
+				.split(",");
+		int[] ids = new int[entries.length];
+		double[] weights = new double[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			String[] entry = entries[i].split(":");
+			try {
+				ids[i] = Integer.parseInt(entry[0].trim());
+				weights[i] = entry.length > 1 ? Double.parseDouble(entry[1]
+						.trim()) : 1.0;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(
+						"Invalid hybrid recommender sources: " + sources, e);
+			}
+		}
+		return new HybridEngine(ids, weights);
+	}
+
+	/**
+	 * Get the combined recommendations of the sources.
+	 *
+	 * @param hybridId
+	 *            The id assigned to the returned recommendations
+	 * @param user
+	 *            The user to recommend to
+	 * @param howMany
+	 *            The number of recommendations to return at most
+	 * @param deadline
+	 *            The time in milliseconds since the epoch by which the
+	 *            caller needs the result
+	 * @return Recommendations ordered by combined score DESC
+	 */
+	public List<Recommendation> recommend(int hybridId, User user,
+			int howMany, long deadline) {
+		List<Source> sources = fetch(hybridId, user, howMany, deadline);
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+		if (howMany <= 0 || sources.isEmpty())
+			return recommendations;
+
+		// Songs in order of their first appearance
+		List<Song> songs = new ArrayList<Song>();
+		List<Double> scores = new ArrayList<Double>();
+		Set<Song> seen = new HashSet<Song>();
+		TopK best = new TopK(howMany);
+
+		for (int rank = 0;; rank++) {
+			// Best combined score a song not seen yet can reach
+			double bound = 0;
+			boolean more = false;
+			for (Source source : sources) {
+				if (rank >= source.size())
+					continue;
+				more = true;
+				bound += source.weight * source.normalized[rank];
+
+				Song song = source.ranked.get(rank).getSong();
+				if (!seen.add(song))
+					continue;
+				double score = 0;
+				for (Source other : sources) {
+					score += other.weight * other.getNormalized(song);
+				}
+				best.offer(songs.size(), score);
+				songs.add(song);
+				scores.add(score);
+			}
+			if (!more || best.threshold() >= bound)
+				break;
+		}
+
+		best.sort();
+		for (int i = 0; i < best.size(); i++) {
+			Song song = songs.get(best.getId(i));
+			MuseRecommendation rec = new MuseRecommendation();
+			rec.setSong(song);
+			rec.setRecommenderID(hybridId);
+			rec.setScore(scores.get(best.getId(i)));
+			rec.setExplanation(explain(sources, song));
+			recommendations.add(rec);
+		}
+		return recommendations;
+	}
+
+	// Join the explanations of all sources recommending the song
+	private static String explain(List<Source> sources, Song song) {
+		StringBuilder explanation = new StringBuilder();
+		for (Source source : sources) {
+			Recommendation rec = source.get(song);
+			if (rec == null || rec.getExplanation() == null
+					|| rec.getExplanation().isEmpty())
+				continue;
+			if (explanation.length() > 0) {
+				explanation.append(" and ");
+			}
+			explanation.append(rec.getExplanation());
+		}
+		return explanation.toString();
+	}
+
+	// Call all sources concurrently and wait for their results for a share of
+	// the time left until the caller's deadline. Sources not done by then are
+	// cancelled.
+	private List<Source> fetch(int hybridId, final User user,
+			final int howMany, long callerDeadline) {
+		long now = System.currentTimeMillis();
+		long deadline = now
+				+ (long) (Math.max(0, callerDeadline - now) * SOURCE_BUDGET);
+		Map<Integer, Recommender> recommenders = RecommenderConfig
+				.getRecommenders();
+		List<Future<List<Recommendation>>> results = new ArrayList<Future<List<Recommendation>>>();
+		List<Integer> used = new ArrayList<Integer>();
+		for (int i = 0; i < sourceIds.length; i++) {
+			final Recommender recommender = recommenders.get(sourceIds[i]);
+			if (recommender == null || sourceIds[i] == hybridId) {
+				LOG.warn("Hybrid recommender " + hybridId
+						+ " skips unknown source " + sourceIds[i]);
+				continue;
+			}
+			try {
+				results.add(executor
+						.submit(new Callable<List<Recommendation>>() {
+							@Override
+							public List<Recommendation> call() {
+								return recommender.getRecommendations(user,
+										howMany);
+							}
+						}));
+				used.add(i);
+			} catch (RejectedExecutionException e) {
+				LOG.warn("Hybrid recommender " + hybridId + " skips source "
+						+ sourceIds[i] + ", all threads busy.");
+			}
+		}
+
+		List<Source> sources = new ArrayList<Source>();
+		for (int i = 0; i < results.size(); i++) {
+			int source = used.get(i);
+			Future<List<Recommendation>> result = results.get(i);
+			try {
+				long remaining = Math.max(0,
+						deadline - System.currentTimeMillis());
+				List<Recommendation> recs = result.get(remaining,
+						TimeUnit.MILLISECONDS);
+				if (recs != null && !recs.isEmpty()) {
+					sources.add(new Source(recs, weights[source]));
+				}
+			} catch (TimeoutException e) {
+				result.cancel(true);
+				LOG.warn("Hybrid recommender " + hybridId + " source "
+						+ sourceIds[source] + " missed the deadline.");
+			} catch (InterruptedException e) {
+				// The hybrid call itself was cancelled
+				for (int j = i; j < results.size(); j++) {
+					results.get(j).cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				LOG.warn("Hybrid recommender " + hybridId + " source "
+						+ sourceIds[source] + " failed.", e.getCause());
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * Recommendations of one source ordered by score DESC, with their
+	 * normalized scores and a song lookup.
+	 */
+	private static final class Source {
+		final List<Recommendation> ranked;
+		final double[] normalized;
+		final double weight;
+		final Map<Song, Integer> positions = new HashMap<Song, Integer>();
+
+		Source(List<Recommendation> recs, double weight) {
+			this.weight = weight;
+			ranked = new ArrayList<Recommendation>(recs);
+			Collections.sort(ranked, BY_SCORE_DESC);
+
+			// Min-max normalization, a single score maps to 1
+			double max = ranked.get(0).getScore();
+			double min = ranked.get(ranked.size() - 1).getScore();
+			normalized = new double[ranked.size()];
+			for (int i = 0; i < normalized.length; i++) {
+				Recommendation rec = ranked.get(i);
+				normalized[i] = max > min ? (rec.getScore() - min)
+						/ (max - min) : 1.0;
+				// Keep the best entry of a song listed twice
+				if (!positions.containsKey(rec.getSong())) {
+					positions.put(rec.getSong(), i);
+				}
+			}
+		}
+
+		int size() {
+			return ranked.size();
+		}
+
+		Recommendation get(Song song) {
+			Integer position = positions.get(song);
+			return position != null ? ranked.get(position) : null;
+		}
+
+		double getNormalized(Song song) {
+			Integer position = positions.get(song);
+			return position != null ? normalized[position] : 0;
+		}
+	}
+}
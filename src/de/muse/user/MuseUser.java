@@ -32,10 +32,12 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import de.muse.data.charts.CityIndex;
 import de.muse.evaluation.EvaluationData;
 import de.muse.utility.Database;
 import de.muse.utility.Encryption;
 import de.muse.utility.Mail;
+import de.muse.utility.Query;
 
 /**
  * Represents a user and its information. Takes care of getting and saving these
@@ -46,6 +48,15 @@ public class MuseUser implements de.muse.api.User {
 	private static final Logger LOG = LoggerFactory.getLogger(MuseUser.class
 			.getName());
 
+	// Named queries
+	private static final Query COUNT_RATINGS = new Query("userCountRatings",
+			"SELECT COUNT(*) as countRating FROM recommendation "
+					+ "WHERE rating != 0 AND consumer = ?");
+	private static final Query COUNT_RATINGS_EVAL = new Query(
+			"userCountRatingsEval",
+			"SELECT COUNT(*) as countRating FROM recommendation "
+					+ "WHERE rating != 0 AND consumer = ? AND eval_id = ?");
+
 	// User information
 	private String name;
 	private String password;
@@ -62,6 +73,7 @@ public class MuseUser implements de.muse.api.User {
 	@SuppressWarnings("unused")
 	private Date evalDuration;
 	private transient Option options;
+	private transient UserProfile profile;
 
 	/**
 	 * Create an empty user object. <br>
@@ -192,6 +204,20 @@ public class MuseUser implements de.muse.api.User {
 		this.newcomer = newcomer;
 	}
 
+	/**
+	 * Construct a user from a stored profile.
+	 * 
+	 * @param profile
+	 *            Profile of the user.
+	 * 
+	 **/
+	public MuseUser(UserProfile profile) {
+		this(profile.getName(), "", profile.getBirthyear(), profile.getSex(),
+				profile.getLfmaccount(), profile.getEmail(), false);
+		this.langs = new ArrayList<String>(profile.getLangs());
+		this.profile = profile;
+	}
+
 	/**
 	 * Get the name of the user.
 	 * 
@@ -222,25 +248,9 @@ public class MuseUser implements de.muse.api.User {
 	 */
 	public String getEmail() {
 		if (email == null || email.isEmpty()) {
-			// Query from database
-			Connection conn = null;
-			PreparedStatement stmt = null;
-			ResultSet result = null;
-
-			try {
-				conn = Database.getConnection();
-				stmt = conn
-						.prepareStatement("SELECT email FROM consumer WHERE name="
-								+ "'" + name.toLowerCase() + "'");
-				result = stmt.executeQuery();
-
-				while (result.next()) {
-					email = result.getString("email");
-				}
-			} catch (SQLException e) {
-				LOG.warn("Couldn't get email address for user: " + name, e);
-			} finally {
-				Database.quietClose(conn, stmt, result);
+			UserProfile profile = getProfile();
+			if (profile != null) {
+				email = profile.getEmail();
 			}
 		}
 		return email;
@@ -253,25 +263,9 @@ public class MuseUser implements de.muse.api.User {
 	 */
 	public String getSex() {
 		if (sex == null || sex.isEmpty()) {
-			// Query from database
-			Connection conn = null;
-			PreparedStatement stmt = null;
-			ResultSet result = null;
-
-			try {
-				conn = Database.getConnection();
-				stmt = conn
-						.prepareStatement("SELECT sex FROM consumer WHERE name="
-								+ "'" + name.toLowerCase() + "'");
-				result = stmt.executeQuery();
-
-				while (result.next()) {
-					sex = result.getString("sex");
-				}
-			} catch (SQLException e) {
-				LOG.warn("Couldn't get gender for user: " + name, e);
-			} finally {
-				Database.quietClose(conn, stmt, result);
+			UserProfile profile = getProfile();
+			if (profile != null) {
+				sex = profile.getSex();
 			}
 		}
 		return sex;
@@ -283,30 +277,10 @@ public class MuseUser implements de.muse.api.User {
 	 * @return The languages of the user as List<String>.
 	 */
 	public List<String> getLangs() {
-		List<String> languages = new ArrayList<String>();
 		if (langs == null) {
-			// Query from database
-			Connection conn = null;
-			PreparedStatement stmt = null;
-			ResultSet result = null;
-
-			try {
-				conn = Database.getConnection();
-				stmt = conn
-						.prepareStatement("SELECT language FROM consumer_language "
-								+ "WHERE consumer_name="
-								+ "'"
-								+ name.toLowerCase() + "'");
-				result = stmt.executeQuery();
-
-				while (result.next()) {
-					languages.add(result.getString("language"));
-				}
-				langs = languages;
-			} catch (SQLException e) {
-				LOG.warn("Couldn't get langs for user: " + name, e);
-			} finally {
-				Database.quietClose(conn, stmt, result);
+			UserProfile profile = getProfile();
+			if (profile != null) {
+				langs = new ArrayList<String>(profile.getLangs());
 			}
 		}
 		return langs;
@@ -319,25 +293,9 @@ public class MuseUser implements de.muse.api.User {
 	 */
 	public int getBirthyear() {
 		if (birthyear == 0) {
-			// Query from database
-			Connection conn = null;
-			PreparedStatement stmt = null;
-			ResultSet result = null;
-			try {
-				conn = Database.getConnection();
-				stmt = conn
-						.prepareStatement("SELECT birthyear FROM consumer WHERE name="
-								+ "'" + name + "'");
-				result = stmt.executeQuery();
-
-				while (result.next()) {
-					birthyear = result.getInt("birthyear");
-				}
-
-			} catch (SQLException e) {
-				LOG.warn("Couldn't get birthyear for user: " + name, e);
-			} finally {
-				Database.quietClose(conn, stmt, result);
+			UserProfile profile = getProfile();
+			if (profile != null) {
+				birthyear = profile.getBirthyear();
 			}
 		}
 		return birthyear;
@@ -350,30 +308,22 @@ public class MuseUser implements de.muse.api.User {
 	 */
 	public String getLfmaccount() {
 		if (lfmaccount == null || lfmaccount.isEmpty()) {
-			// Query from database
-			Connection conn = null;
-			PreparedStatement stmt = null;
-			ResultSet result = null;
-
-			try {
-				conn = Database.getConnection();
-				stmt = conn
-						.prepareStatement("SELECT lfmaccount FROM consumer WHERE name="
-								+ "'" + name + "'");
-				result = stmt.executeQuery();
-
-				while (result.next()) {
-					lfmaccount = result.getString("lfmaccount");
-				}
-			} catch (SQLException e) {
-				LOG.warn("Couldn't get Last.fm Account for user: " + name, e);
-			} finally {
-				Database.quietClose(conn, stmt, result);
+			UserProfile profile = getProfile();
+			if (profile != null) {
+				lfmaccount = profile.getLfmaccount();
 			}
 		}
 		return lfmaccount;
 	}
 
+	// Get the stored profile of this user, loading it on first use
+	private UserProfile getProfile() {
+		if (profile == null) {
+			profile = UserProfile.get(name);
+		}
+		return profile;
+	}
+
 	/**
 	 * Check login credentials of the user.
 	 * 
@@ -472,6 +422,7 @@ public class MuseUser implements de.muse.api.User {
 					.prepareStatement("UPDATE consumer SET email = NULL, password = NULL, lfmaccount = NULL WHERE name = ?");
 			pstmt.setString(1, name.toLowerCase());
 			pstmt.execute();
+			UserProfile.invalidate(name);
 			LOG.info("Deleted user with name: " + name);
 		} finally {
 			Database.quietClose(conn);
@@ -485,37 +436,13 @@ public class MuseUser implements de.muse.api.User {
 	 * @return List of country names
 	 */
 	public List<String> getCountries() {
-		List<String> regions = new ArrayList<String>();
-
 		if (langs == null || langs.isEmpty()) {
 			getLangs();
 		}
-
-		// Query database
-		Connection conn = null;
-		PreparedStatement pstmt = null;
-		ResultSet result = null;
-
-		try {
-			conn = Database.getConnection();
-
-			// Get the countries where the languages are spoken
-			pstmt = conn.prepareStatement("SELECT DISTINCT country "
-					+ "FROM language_country WHERE language =?");
-
-			for (String lang : langs) {
-				pstmt.setString(1, lang);
-				result = pstmt.executeQuery();
-				while (result.next()) {
-					regions.add(result.getString("country"));
-				}
-			}
-		} catch (SQLException e) {
-			LOG.warn("Couldn't get countries of user: " + name, e);
-		} finally {
-			Database.quietClose(conn, pstmt, result);
+		if (langs == null) {
+			return new ArrayList<String>();
 		}
-		return regions;
+		return CityIndex.getCountries(langs);
 	}
 
 	/**
@@ -524,34 +451,13 @@ public class MuseUser implements de.muse.api.User {
 	 * @return List of city names
 	 */
 	public List<String> getCities() {
-		List<String> cities = new ArrayList<String>();
-		List<String> countries = getCountries();
-
-		// Query database
-		Connection conn = null;
-		PreparedStatement pstmt = null;
-		ResultSet result = null;
-
-		try {
-			conn = Database.getConnection();
-
-			// Get the countries where the languages are spoken
-			pstmt = conn.prepareStatement("SELECT DISTINCT chartscity "
-					+ "FROM charts_city WHERE chartscountry =?");
-
-			for (String country : countries) {
-				pstmt.setString(1, country);
-				result = pstmt.executeQuery();
-				while (result.next()) {
-					cities.add(result.getString("chartscity"));
-				}
-			}
-		} catch (SQLException e) {
-			LOG.warn("Couldn't get cities of user: " + name, e);
-		} finally {
-			Database.quietClose(conn, pstmt, result);
+		if (langs == null || langs.isEmpty()) {
+			getLangs();
 		}
-		return cities;
+		if (langs == null) {
+			return new ArrayList<String>();
+		}
+		return CityIndex.getCities(langs);
 	}
 
 	/**
@@ -606,6 +512,7 @@ public class MuseUser implements de.muse.api.User {
 
 			// Commit transaction
 			conn.commit();
+			UserProfile.invalidate(name);
 		} catch (SQLException e) {
 			LOG.warn("- Rollback - Saving user " + name.toLowerCase()
 					+ " failed.", e);
@@ -634,6 +541,7 @@ public class MuseUser implements de.muse.api.User {
 			pstmt.setString(1, email);
 			pstmt.setString(2, name);
 			pstmt.execute();
+			UserProfile.invalidate(name);
 		} finally {
 			Database.quietClose(pstmt);
 			Database.quietClose(conn);
@@ -701,6 +609,7 @@ public class MuseUser implements de.muse.api.User {
 			pstmt.setString(1, lfmaccount);
 			pstmt.setString(2, name);
 			pstmt.execute();
+			UserProfile.invalidate(name);
 		} finally {
 			Database.quietClose(pstmt);
 			Database.quietClose(conn);
@@ -831,14 +740,9 @@ public class MuseUser implements de.muse.api.User {
 	 */
 	public int countRatings() throws SQLException {
 		int countRatings = 0;
-		String query = "SELECT COUNT(*) as countRating FROM recommendation "
-				+ "WHERE rating != 0 AND consumer = ?";
 
 		// Check if the user is taking part in an evaluation
 		int evalId = EvaluationData.getIdForParticipant(name.toLowerCase());
-		if (evalId != 0) {
-			query += " AND eval_id = " + evalId;
-		}
 
 		// Count ratings in the database
 		Connection conn = null;
@@ -847,8 +751,13 @@ public class MuseUser implements de.muse.api.User {
 
 		try {
 			conn = Database.getConnection();
-			pstmt = conn.prepareStatement(query);
-			pstmt.setString(1, name.toLowerCase());
+			if (evalId == 0) {
+				pstmt = COUNT_RATINGS.prepare(conn);
+				Query.bind(pstmt, name.toLowerCase());
+			} else {
+				pstmt = COUNT_RATINGS_EVAL.prepare(conn);
+				Query.bind(pstmt, name.toLowerCase(), evalId);
+			}
 			result = pstmt.executeQuery();
 			if (result.next()) {
 				// Get the counted value
@@ -36,7 +36,9 @@ import com.google.gson.reflect.TypeToken;
 
 import de.muse.config.RecommenderConfig;
 import de.muse.evaluation.Activity;
+import de.muse.recommendation.ListPrefetcher;
 import de.muse.utility.Database;
+import de.muse.utility.Query;
 
 /**
  * Utility class to provide access to community specific data. This should be
@@ -47,6 +49,11 @@ public class UserData {
 	private static final Logger LOG = LoggerFactory.getLogger(UserData.class
 			.getName());
 
+	// Named queries
+	private static final Query OPTIONS = new Query("userOptions",
+			"SELECT behavior, recommenders FROM consumer_options "
+					+ "WHERE consumer_name = ?");
+
 	/**
 	 * Get list of all registered users.
 	 * 
@@ -191,9 +198,8 @@ public class UserData {
 			conn = Database.getConnection();
 
 			// Get the user's options
-			pstmt = conn
-					.prepareStatement("SELECT behavior, recommenders FROM consumer_options WHERE consumer_name ="
-							+ "'" + name.toLowerCase() + "'");
+			pstmt = OPTIONS.prepare(conn);
+			pstmt.setString(1, name.toLowerCase());
 			result = pstmt.executeQuery();
 
 			if (result.next()) {
@@ -260,6 +266,8 @@ public class UserData {
 			pstmt.setString(3, new Gson().toJson(ids));
 			pstmt.execute();
 
+			// A list composed in advance used the old options
+			ListPrefetcher.invalidate(name);
 		} finally {
 			Database.quietClose(pstmt);
 			Database.quietClose(conn);
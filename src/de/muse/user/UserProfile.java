@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.user;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.muse.config.ApplicationConfig;
+import de.muse.utility.Query;
+import de.muse.utility.Query.RowHandler;
+
+/**
+ * Immutable snapshot of a user's profile: consumer row and languages.
+ *
+ * A profile is read with a single query. Loaded profiles are kept for a few
+ * seconds, so the lookups of one request (recommenders, group matching, ...)
+ * share one round trip. Code changing the profile tables has to call
+ * {@link #invalidate(String)}.
+ */
+public final class UserProfile {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory.getLogger(UserProfile.class
+			.getName());
+
+	// Named queries
+	private static final Query PROFILE = new Query("userProfile",
+			"SELECT 'C' AS kind, email AS val, sex, lfmaccount, birthyear "
+					+ "FROM consumer WHERE name = ? "
+					+ "UNION ALL SELECT 'L', language, NULL, NULL, NULL "
+					+ "FROM consumer_language WHERE consumer_name = ?");
+
+	// Number of cached profiles that triggers a sweep of expired ones
+	private static final int SWEEP_SIZE = 1024;
+
+	// Lower case user name -> profile
+	private static final ConcurrentHashMap<String, UserProfile> cache = new ConcurrentHashMap<String, UserProfile>();
+
+	private final String name;
+	private final String email;
+	private final String sex;
+	private final String lfmaccount;
+	private final int birthyear;
+	private final List<String> langs;
+	private final long loaded;
+
+	private UserProfile(String name, String email, String sex,
+			String lfmaccount, int birthyear, List<String> langs) {
+		this.name = name;
+		this.email = email;
+		this.sex = sex;
+		this.lfmaccount = lfmaccount;
+		this.birthyear = birthyear;
+		this.langs = Collections.unmodifiableList(langs);
+		this.loaded = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get the profile of a user, either from the cache or from the database.
+	 *
+	 * @return The profile or null if the user doesn't exist or the database
+	 *         couldn't be reached.
+	 */
+	public static UserProfile get(String name) {
+		String key = name.toLowerCase();
+		UserProfile profile = cache.get(key);
+		if (profile != null && !profile.isExpired()) {
+			return profile;
+		}
+
+		try {
+			profile = load(key);
+		} catch (SQLException e) {
+			LOG.warn("Couldn't load profile of user: " + name, e);
+			return null;
+		}
+
+		if (profile != null && ApplicationConfig.PROFILE_CACHE_TTL > 0) {
+			if (cache.size() >= SWEEP_SIZE) {
+				sweep();
+			}
+			cache.put(key, profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Drop the cached profile of a user. Called after the consumer or
+	 * consumer_language rows of the user were changed.
+	 */
+	public static void invalidate(String name) {
+		cache.remove(name.toLowerCase());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+
+	public String getSex() {
+		return sex;
+	}
+
+	public String getLfmaccount() {
+		return lfmaccount;
+	}
+
+	public int getBirthyear() {
+		return birthyear;
+	}
+
+	/**
+	 * Languages of the user.
+	 */
+	public List<String> getLangs() {
+		return langs;
+	}
+
+	private boolean isExpired() {
+		return System.currentTimeMillis() - loaded > ApplicationConfig.PROFILE_CACHE_TTL;
+	}
+
+	// Read the profile of a user in one round trip
+	private static UserProfile load(String name) throws SQLException {
+		final String[] consumer = new String[3];
+		final int[] birthyear = new int[1];
+		final boolean[] exists = new boolean[1];
+		final List<String> langs = new ArrayList<String>();
+
+		PROFILE.forEach(new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				String kind = row.getString("kind");
+				String value = row.getString("val");
+				if (kind.equals("C")) {
+					exists[0] = true;
+					consumer[0] = value;
+					consumer[1] = row.getString("sex");
+					consumer[2] = row.getString("lfmaccount");
+					birthyear[0] = row.getInt("birthyear");
+				} else {
+					langs.add(value);
+				}
+			}
+		}, name, name);
+
+		if (!exists[0])
+			return null;
+		return new UserProfile(name, consumer[0], consumer[1], consumer[2],
+				birthyear[0], langs);
+	}
+
+	// Remove expired profiles
+	private static void sweep() {
+		Iterator<UserProfile> it = cache.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isExpired()) {
+				it.remove();
+			}
+		}
+	}
+}
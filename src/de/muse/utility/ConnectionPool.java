@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.utility;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of physical database connections.
+ *
+ * Connections handed out by the pool are lightweight wrappers. Closing them
+ * hands the physical connection back to the pool, and statements prepared
+ * through {@link Connection#prepareStatement(String)} are cached per physical
+ * connection, so existing code using {@link Database#quietClose} keeps working
+ * unchanged.
+ */
+public class ConnectionPool {
+	// Configured logger
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ConnectionPool.class.getName());
+
+	// Validate idle connections that were not used for this time (ms)
+	private static final long VALIDATION_INTERVAL = 30000;
+	private static final int VALIDATION_TIMEOUT = 2;
+
+	// Pool settings
+	private final DataSource dataSource;
+	private final int minSize;
+	private final int maxSize;
+	private final long borrowTimeout;
+	private final int statementCacheSize;
+
+	// Pool state
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final Semaphore permits;
+	private volatile boolean closed = false;
+
+	// Pool metrics
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+
+	/**
+	 * Create a new connection pool.
+	 *
+	 * @param dataSource
+	 *            Source of physical connections
+	 * @param minSize
+	 *            Number of connections opened on startup and reopened when
+	 *            discarded connections leave fewer open
+	 * @param maxSize
+	 *            Maximum number of connections open at the same time
+	 * @param borrowTimeout
+	 *            Maximum time in ms to wait for a free connection
+	 * @param statementCacheSize
+	 *            Number of prepared statements cached per connection
+	 */
+	public ConnectionPool(DataSource dataSource, int minSize, int maxSize,
+			long borrowTimeout, int statementCacheSize) {
+		this.dataSource = dataSource;
+		this.maxSize = Math.max(1, maxSize);
+		this.minSize = Math.min(Math.max(0, minSize), this.maxSize);
+		this.borrowTimeout = borrowTimeout;
+		this.statementCacheSize = Math.max(0, statementCacheSize);
+		this.permits = new Semaphore(this.maxSize, true);
+
+		// Open the minimum number of connections
+		topUp();
+	}
+
+	/**
+	 * Borrow a connection from the pool. Waits at most the configured borrow
+	 * timeout for a connection to become available.
+	 *
+	 * @return Connection which returns to the pool when closed
+	 */
+	public Connection getConnection() throws SQLException {
+		if (closed)
+			throw new SQLException("Connection pool is closed.");
+
+		// Wait for a free slot
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new SQLException("Timed out after " + borrowTimeout
+						+ "ms waiting for a database connection.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection.", e);
+		}
+		long waited = System.nanoTime() - start;
+		waitNanos.addAndGet(waited);
+		long max = maxWaitNanos.get();
+		while (waited > max && !maxWaitNanos.compareAndSet(max, waited)) {
+			max = maxWaitNanos.get();
+		}
+
+		// Reuse an idle connection or open a new one
+		try {
+			PooledConnection pooled;
+			boolean discarded = false;
+			while ((pooled = idle.pollFirst()) != null) {
+				if (validate(pooled))
+					break;
+				discard(pooled);
+				discarded = true;
+			}
+			if (pooled == null) {
+				pooled = create();
+			}
+			if (discarded) {
+				topUp();
+			}
+			active.incrementAndGet();
+			borrowed.incrementAndGet();
+			return pooled.lease();
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close all idle connections and refuse further borrows. Connections in
+	 * use are closed as soon as they are returned.
+	 */
+	public void close() {
+		closed = true;
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			discard(pooled);
+		}
+	}
+
+	/*
+	 * Pool metrics
+	 */
+	/** Number of connections currently borrowed */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/** Number of connections currently waiting in the pool */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/** Number of physical connections currently open */
+	public int getTotalCount() {
+		return total.get();
+	}
+
+	/** Number of successful borrows since startup */
+	public long getBorrowCount() {
+		return borrowed.get();
+	}
+
+	/** Number of borrows that timed out since startup */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/** Average time in ms a borrow had to wait for a free connection */
+	public double getAverageWaitMillis() {
+		long count = borrowed.get() + timeouts.get();
+		if (count == 0)
+			return 0;
+		return waitNanos.get() / 1000000.0 / count;
+	}
+
+	/** Longest time in ms a borrow had to wait for a free connection */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1000000.0;
+	}
+
+	/** Number of prepared statements served from the statement cache */
+	public long getStatementCacheHits() {
+		return statementHits.get();
+	}
+
+	/** Number of prepared statements that had to be prepared */
+	public long getStatementCacheMisses() {
+		return statementMisses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionPool [active=" + getActiveCount() + ", idle="
+				+ getIdleCount() + ", total=" + getTotalCount()
+				+ ", borrowed=" + getBorrowCount() + ", timeouts="
+				+ getTimeoutCount() + ", avgWaitMs=" + getAverageWaitMillis()
+				+ ", maxWaitMs=" + getMaxWaitMillis() + ", stmtHits="
+				+ getStatementCacheHits() + ", stmtMisses="
+				+ getStatementCacheMisses() + "]";
+	}
+
+	/*
+	 * Internal pool handling
+	 */
+	private PooledConnection create() throws SQLException {
+		Connection physical = dataSource.getConnection();
+		total.incrementAndGet();
+		return new PooledConnection(physical);
+	}
+
+	// Open idle connections until the minimum number is open again
+	private void topUp() {
+		int count;
+		while (!closed && (count = total.get()) < minSize) {
+			if (!total.compareAndSet(count, count + 1))
+				continue;
+			try {
+				idle.offerLast(new PooledConnection(dataSource.getConnection()));
+			} catch (SQLException e) {
+				total.decrementAndGet();
+				LOG.warn("Couldn't open pool connection.", e);
+				return;
+			}
+		}
+	}
+
+	private boolean validate(PooledConnection pooled) {
+		if (System.currentTimeMillis() - pooled.lastUsed < VALIDATION_INTERVAL)
+			return true;
+		try {
+			return pooled.physical.isValid(VALIDATION_TIMEOUT);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pooled) {
+		pooled.closeStatements();
+		try {
+			pooled.physical.close();
+		} catch (SQLException e) {
+			LOG.warn("Couldn't close pooled connection.", e);
+		}
+		total.decrementAndGet();
+	}
+
+	// Hand a physical connection back to the pool
+	private void release(PooledConnection pooled) {
+		active.decrementAndGet();
+		boolean reusable = !closed;
+		try {
+			// Never hand out a connection with an open transaction
+			if (reusable && !pooled.physical.getAutoCommit()) {
+				pooled.physical.rollback();
+				pooled.physical.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			LOG.warn("Couldn't reset pooled connection. Discarding it.", e);
+			reusable = false;
+		}
+
+		if (reusable) {
+			pooled.lastUsed = System.currentTimeMillis();
+			idle.offerFirst(pooled);
+		} else {
+			discard(pooled);
+			topUp();
+		}
+		permits.release();
+	}
+
+	/**
+	 * A physical connection including its prepared statement cache.
+	 */
+	private class PooledConnection {
+		private final Connection physical;
+		private final LinkedHashMap<String, CachedStatement> statements;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		@SuppressWarnings("serial")
+		private PooledConnection(Connection physical) {
+			this.physical = physical;
+			this.statements = new LinkedHashMap<String, CachedStatement>(16,
+					0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, CachedStatement> eldest) {
+					if (size() <= statementCacheSize)
+						return false;
+					// Statements still in use are closed on return
+					CachedStatement evicted = eldest.getValue();
+					evicted.evicted = true;
+					if (!evicted.inUse) {
+						evicted.closePhysical();
+					}
+					return true;
+				}
+			};
+		}
+
+		private Connection lease() {
+			return (Connection) Proxy.newProxyInstance(
+					ConnectionPool.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new Lease(this));
+		}
+
+		// Get a cached statement or null if none is available
+		private CachedStatement checkout(String sql) throws SQLException {
+			if (statementCacheSize == 0)
+				return null;
+
+			CachedStatement cached = statements.get(sql);
+			// Statements that couldn't be reset were closed
+			if (cached != null && cached.evicted && !cached.inUse) {
+				statements.remove(sql);
+				cached = null;
+			}
+			if (cached != null) {
+				// Same statement is already open on this connection
+				if (cached.inUse)
+					return null;
+				statementHits.incrementAndGet();
+			} else {
+				statementMisses.incrementAndGet();
+				cached = new CachedStatement(physical.prepareStatement(sql));
+				statements.put(sql, cached);
+			}
+			cached.inUse = true;
+			return cached;
+		}
+
+		private void closeStatements() {
+			for (CachedStatement cached : statements.values()) {
+				cached.closePhysical();
+			}
+			statements.clear();
+		}
+	}
+
+	/**
+	 * A physical prepared statement living in the statement cache.
+	 */
+	private static class CachedStatement {
+		private final PreparedStatement physical;
+		private boolean inUse = false;
+		private boolean evicted = false;
+
+		// Settings of the freshly prepared statement
+		private final int fetchSize;
+		private final int maxRows;
+		private final int queryTimeout;
+		private final int fetchDirection;
+
+		private CachedStatement(PreparedStatement physical)
+				throws SQLException {
+			this.physical = physical;
+			this.fetchSize = physical.getFetchSize();
+			this.maxRows = physical.getMaxRows();
+			this.queryTimeout = physical.getQueryTimeout();
+			this.fetchDirection = physical.getFetchDirection();
+		}
+
+		// Reset the statement so that the next borrower starts clean
+		private void checkin() {
+			try {
+				physical.clearParameters();
+				physical.clearBatch();
+				if (physical.getFetchSize() != fetchSize) {
+					physical.setFetchSize(fetchSize);
+				}
+				if (physical.getMaxRows() != maxRows) {
+					physical.setMaxRows(maxRows);
+				}
+				if (physical.getQueryTimeout() != queryTimeout) {
+					physical.setQueryTimeout(queryTimeout);
+				}
+				if (physical.getFetchDirection() != fetchDirection) {
+					physical.setFetchDirection(fetchDirection);
+				}
+			} catch (SQLException e) {
+				evicted = true;
+			}
+			inUse = false;
+			if (evicted) {
+				closePhysical();
+			}
+		}
+
+		private void closePhysical() {
+			try {
+				physical.close();
+			} catch (SQLException e) {
+				LOG.warn("Couldn't close cached statement.", e);
+			}
+		}
+	}
+
+	/**
+	 * Handler for a borrowed connection. Keeps track of the statements opened
+	 * during the lease to close them when the connection is returned.
+	 */
+	private class Lease implements InvocationHandler {
+		private final PooledConnection pooled;
+		private final List<Statement> opened = new ArrayList<Statement>();
+		private final List<StatementHandle> cached = new ArrayList<StatementHandle>();
+		private boolean returned = false;
+
+		private Lease(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				giveBack();
+				return null;
+			}
+			if (name.equals("isClosed")) {
+				return returned;
+			}
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			if (name.equals("toString")) {
+				return "Pooled" + pooled.physical.toString();
+			}
+			if (returned) {
+				throw new SQLException("Connection is closed.");
+			}
+
+			// Serve plain prepared statements from the cache
+			if (name.equals("prepareStatement") && args.length == 1) {
+				CachedStatement statement = pooled.checkout((String) args[0]);
+				if (statement != null) {
+					StatementHandle handle = new StatementHandle(statement);
+					cached.add(handle);
+					return handle.proxy;
+				}
+			}
+
+			// Delegate everything else to the physical connection
+			Object result;
+			try {
+				result = method.invoke(pooled.physical, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (result instanceof Statement) {
+				opened.add((Statement) result);
+			}
+			return result;
+		}
+
+		// Close everything still open and return to the pool
+		private void giveBack() {
+			if (returned)
+				return;
+			returned = true;
+
+			for (Statement statement : opened) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					LOG.warn("Couldn't close statement.", e);
+				}
+			}
+			for (StatementHandle handle : cached) {
+				handle.release();
+			}
+			opened.clear();
+			cached.clear();
+			release(pooled);
+		}
+	}
+
+	/**
+	 * Handle to a cached statement given to the caller. Closing it resets the
+	 * statement and puts it back into the cache.
+	 */
+	private static class StatementHandle implements InvocationHandler {
+		private final CachedStatement statement;
+		private final PreparedStatement proxy;
+		private final List<ResultSet> results = new ArrayList<ResultSet>();
+		private boolean released = false;
+
+		private StatementHandle(CachedStatement statement) {
+			this.statement = statement;
+			this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+					ConnectionPool.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				release();
+				return null;
+			}
+			if (name.equals("isClosed")) {
+				return released;
+			}
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			if (name.equals("toString")) {
+				return "Cached" + statement.physical.toString();
+			}
+			if (released) {
+				throw new SQLException("Statement is closed.");
+			}
+
+			Object result;
+			try {
+				result = method.invoke(statement.physical, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (result instanceof ResultSet) {
+				results.add((ResultSet) result);
+			}
+			return result;
+		}
+
+		private void release() {
+			if (released)
+				return;
+			released = true;
+
+			Iterator<ResultSet> it = results.iterator();
+			while (it.hasNext()) {
+				Database.quietClose(it.next());
+				it.remove();
+			}
+			statement.checkin();
+		}
+	}
+}
@@ -37,30 +37,67 @@ public class Database {
 	private static final Logger LOG = LoggerFactory.getLogger(Database.class
 			.getName());
 
-	// Database information
-	private static OracleDataSource ods;
+	// Connection pool
+	private static volatile ConnectionPool pool;
 
 	private Database() {
+	}
+
+	// Set up the connection pool on first use
+	private static synchronized ConnectionPool initialize() throws SQLException {
+		if (pool != null)
+			return pool;
+
+		try {
+			// Load driver
+			Class.forName(ApplicationConfig.JDBC_CLASS);
+		} catch (ClassNotFoundException e) {
+			LOG.warn("Driver not found!");
+		}
+
 		try {
-			ods = new OracleDataSource();
+			OracleDataSource ods = new OracleDataSource();
 			ods.setURL(ApplicationConfig.DB_CONNECTION);
 			ods.setUser(ApplicationConfig.DB_USER);
 			ods.setPassword(ApplicationConfig.DB_PASSWORD);
 
-			// Load driver
-			Class.forName(ApplicationConfig.JDBC_CLASS);
-		} catch (SQLException e1) {
+			pool = new ConnectionPool(ods, ApplicationConfig.DB_POOL_MIN,
+					ApplicationConfig.DB_POOL_MAX,
+					ApplicationConfig.DB_POOL_TIMEOUT,
+					ApplicationConfig.DB_STATEMENT_CACHE);
+		} catch (SQLException e) {
 			LOG.warn("Connection failed!");
-		} catch (ClassNotFoundException e) {
-			LOG.warn("Driver not found!");
+			throw e;
 		}
+		return pool;
 	}
 
 	/** Get Database connection */
 	public static Connection getConnection() throws SQLException {
-		if (ods == null)
-			new Database();
-		return ods.getConnection();
+		ConnectionPool current = pool;
+		if (current == null)
+			current = initialize();
+		return current.getConnection();
+	}
+
+	/**
+	 * Get the connection pool, e.g. to read its metrics.
+	 * 
+	 * @return The pool or null if no connection was requested yet.
+	 */
+	public static ConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Close all pooled connections. Called on application shutdown.
+	 */
+	public static synchronized void shutdown() {
+		if (pool == null)
+			return;
+		LOG.info("Closing connection pool: " + pool);
+		pool.close();
+		pool = null;
 	}
 
 	/**
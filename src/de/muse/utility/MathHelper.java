@@ -182,6 +182,22 @@ public class MathHelper {
     return distance;
   }
 
+  /**
+   * Compute the cosine distance between two sparse tag vectors (see
+   * de.muse.recommendation.TagDictionary). Uses the cached vector lengths and
+   * a merge join over the sorted dimensions.
+   * 
+   * @param vectorOne
+   *          Sparse tag vector
+   * @param vectorTwo
+   *          Sparse tag vector
+   * @return The cosine distance
+   */
+  public static double computeCosineDistance(SparseVector vectorOne,
+      SparseVector vectorTwo) {
+    return vectorOne.cosine(vectorTwo);
+  }
+
   /**
    * Compute the scalar product of two vectors
    * 
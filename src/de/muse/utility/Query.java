@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.utility;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named SQL statement using bind variables only.
+ *
+ * Values are never pasted into the SQL text, so the database can share one
+ * cursor per query and the connection pool can cache the prepared statement.
+ * Queries are meant to be declared once as constants next to the code using
+ * them.
+ */
+public final class Query {
+	// Placeholder for a variable length list of bind variables
+	private static final String LIST = "{list}";
+
+	private final String name;
+	private final String sql;
+
+	/**
+	 * Maps the current row of a result to an object.
+	 */
+	public interface RowMapper<T> {
+		T map(ResultSet row) throws SQLException;
+	}
+
+	/**
+	 * Consumes the current row of a result.
+	 */
+	public interface RowHandler {
+		void handle(ResultSet row) throws SQLException;
+	}
+
+	/**
+	 * Create a named query.
+	 *
+	 * @param name
+	 *            Name of the query, used in error messages
+	 * @param sql
+	 *            SQL text using ? as bind variables. May contain a single
+	 *            {list} placeholder which is expanded by the *In methods.
+	 */
+	public Query(String name, String sql) {
+		this.name = name;
+		this.sql = sql;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	/*
+	 * Reading
+	 */
+	/**
+	 * Execute the query and map all rows.
+	 */
+	public <T> List<T> list(RowMapper<T> mapper, Object... params)
+			throws SQLException {
+		Connection conn = null;
+		try {
+			conn = Database.getConnection();
+			return list(conn, mapper, params);
+		} finally {
+			Database.quietClose(conn);
+		}
+	}
+
+	/**
+	 * Execute the query on the given connection and map all rows.
+	 */
+	public <T> List<T> list(Connection conn, final RowMapper<T> mapper,
+			Object... params) throws SQLException {
+		final List<T> rows = new ArrayList<T>();
+		forEach(conn, new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				rows.add(mapper.map(row));
+			}
+		}, params);
+		return rows;
+	}
+
+	/**
+	 * Execute the query and map the first row.
+	 *
+	 * @return The mapped first row or null if there is none
+	 */
+	public <T> T first(RowMapper<T> mapper, Object... params)
+			throws SQLException {
+		Connection conn = null;
+		try {
+			conn = Database.getConnection();
+			return first(conn, mapper, params);
+		} finally {
+			Database.quietClose(conn);
+		}
+	}
+
+	/**
+	 * Execute the query on the given connection and map the first row.
+	 *
+	 * @return The mapped first row or null if there is none
+	 */
+	public <T> T first(Connection conn, RowMapper<T> mapper, Object... params)
+			throws SQLException {
+		PreparedStatement pstmt = null;
+		ResultSet result = null;
+		try {
+			pstmt = prepare(conn, sql, params);
+			result = pstmt.executeQuery();
+			return result.next() ? mapper.map(result) : null;
+		} finally {
+			Database.quietClose(result);
+			Database.quietClose(pstmt);
+		}
+	}
+
+	/**
+	 * Execute the query and pass each row to the handler.
+	 */
+	public void forEach(RowHandler handler, Object... params)
+			throws SQLException {
+		Connection conn = null;
+		try {
+			conn = Database.getConnection();
+			forEach(conn, handler, params);
+		} finally {
+			Database.quietClose(conn);
+		}
+	}
+
+	/**
+	 * Execute the query on the given connection and pass each row to the
+	 * handler.
+	 */
+	public void forEach(Connection conn, RowHandler handler, Object... params)
+			throws SQLException {
+		query(conn, sql, handler, params);
+	}
+
+	/**
+	 * Execute the query with its {list} placeholder bound to the given values
+	 * and pass each row to the handler.
+	 *
+	 * The list is padded to the next power of two by repeating the last value,
+	 * so only a handful of distinct statements exist per query.
+	 */
+	public void forEachIn(RowHandler handler, List<?> values)
+			throws SQLException {
+		if (values.isEmpty())
+			return;
+		Object[] padded = pad(values);
+
+		Connection conn = null;
+		try {
+			conn = Database.getConnection();
+			query(conn, expand(padded.length), handler, padded);
+		} finally {
+			Database.quietClose(conn);
+		}
+	}
+
+	/**
+	 * Execute the query with its {list} placeholder bound to the given values
+	 * and map all rows.
+	 */
+	public <T> List<T> listIn(final RowMapper<T> mapper, List<?> values)
+			throws SQLException {
+		final List<T> rows = new ArrayList<T>();
+		forEachIn(new RowHandler() {
+			@Override
+			public void handle(ResultSet row) throws SQLException {
+				rows.add(mapper.map(row));
+			}
+		}, values);
+		return rows;
+	}
+
+	/*
+	 * Writing
+	 */
+	/**
+	 * Execute an INSERT, UPDATE or DELETE statement.
+	 *
+	 * @return Number of affected rows
+	 */
+	public int update(Object... params) throws SQLException {
+		Connection conn = null;
+		try {
+			conn = Database.getConnection();
+			return update(conn, params);
+		} finally {
+			Database.quietClose(conn);
+		}
+	}
+
+	/**
+	 * Execute an INSERT, UPDATE or DELETE statement on the given connection.
+	 *
+	 * @return Number of affected rows
+	 */
+	public int update(Connection conn, Object... params) throws SQLException {
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = prepare(conn, sql, params);
+			return pstmt.executeUpdate();
+		} finally {
+			Database.quietClose(pstmt);
+		}
+	}
+
+	/**
+	 * Prepare the statement of this query on the given connection, e.g. for
+	 * batching. The caller is responsible for closing it.
+	 */
+	public PreparedStatement prepare(Connection conn) throws SQLException {
+		return conn.prepareStatement(sql);
+	}
+
+	/**
+	 * Bind the given values to a prepared statement.
+	 */
+	public static void bind(PreparedStatement pstmt, Object... params)
+			throws SQLException {
+		for (int i = 0; i < params.length; i++) {
+			Object param = params[i];
+			if (param == null) {
+				pstmt.setNull(i + 1, java.sql.Types.VARCHAR);
+			} else if (param instanceof Integer) {
+				pstmt.setInt(i + 1, (Integer) param);
+			} else if (param instanceof Double) {
+				pstmt.setDouble(i + 1, (Double) param);
+			} else if (param instanceof String) {
+				pstmt.setString(i + 1, (String) param);
+			} else {
+				pstmt.setObject(i + 1, param);
+			}
+		}
+	}
+
+	/*
+	 * Internal helpers
+	 */
+	private void query(Connection conn, String text, RowHandler handler,
+			Object... params) throws SQLException {
+		PreparedStatement pstmt = null;
+		ResultSet result = null;
+		try {
+			pstmt = prepare(conn, text, params);
+			result = pstmt.executeQuery();
+			while (result.next()) {
+				handler.handle(result);
+			}
+		} finally {
+			Database.quietClose(result);
+			Database.quietClose(pstmt);
+		}
+	}
+
+	private static PreparedStatement prepare(Connection conn, String text,
+			Object... params) throws SQLException {
+		PreparedStatement pstmt = conn.prepareStatement(text);
+		try {
+			bind(pstmt, params);
+		} catch (SQLException e) {
+			Database.quietClose(pstmt);
+			throw e;
+		}
+		return pstmt;
+	}
+
+	// Replace the list placeholder with the given number of bind variables
+	private String expand(int size) {
+		StringBuilder binds = new StringBuilder("?");
+		for (int i = 1; i < size; i++) {
+			binds.append(",?");
+		}
+		return sql.replace(LIST, binds.toString());
+	}
+
+	// Pad the values to the next power of two
+	private static Object[] pad(List<?> values) {
+		int size = Integer.highestOneBit(values.size());
+		if (size < values.size())
+			size <<= 1;
+
+		Object[] padded = new Object[size];
+		for (int i = 0; i < size; i++) {
+			padded[i] = values.get(Math.min(i, values.size() - 1));
+		}
+		return padded;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
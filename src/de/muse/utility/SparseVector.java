@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.utility;
+
+import java.util.Arrays;
+
+/**
+ * Immutable sparse vector with int dimensions.
+ *
+ * Entries are kept in two primitive arrays sorted by dimension, and the
+ * length of the vector is computed once. Scalar products are a merge join
+ * over the sorted arrays and don't allocate.
+ */
+public final class SparseVector {
+	public static final SparseVector EMPTY = new SparseVector(new int[0],
+			new float[0]);
+
+	private final int[] ids;
+	private final float[] weights;
+	private final double length;
+
+	/**
+	 * Create a vector. The arrays are owned by the vector afterwards.
+	 * Dimensions don't have to be sorted; weights of repeated dimensions are
+	 * added up.
+	 *
+	 * @param ids
+	 *            Dimensions
+	 * @param weights
+	 *            Weight of each dimension
+	 */
+	public SparseVector(int[] ids, float[] weights) {
+		if (ids.length != weights.length)
+			throw new IllegalArgumentException("Got " + ids.length
+					+ " dimensions but " + weights.length + " weights.");
+
+		if (!isStrictlySorted(ids)) {
+			// Sort (dimension, position) pairs and merge repeated dimensions
+			long[] pairs = new long[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				pairs[i] = ((long) ids[i] << 32) | i;
+			}
+			Arrays.sort(pairs);
+			int[] sortedIds = new int[ids.length];
+			float[] sortedWeights = new float[ids.length];
+			int size = 0;
+			for (long pair : pairs) {
+				int id = (int) (pair >> 32);
+				float weight = weights[(int) pair];
+				if (size > 0 && sortedIds[size - 1] == id) {
+					sortedWeights[size - 1] += weight;
+				} else {
+					sortedIds[size] = id;
+					sortedWeights[size++] = weight;
+				}
+			}
+			ids = Arrays.copyOf(sortedIds, size);
+			weights = Arrays.copyOf(sortedWeights, size);
+		}
+
+		this.ids = ids;
+		this.weights = weights;
+		double sum = 0;
+		for (float weight : weights) {
+			sum += (double) weight * weight;
+		}
+		this.length = Math.sqrt(sum);
+	}
+
+	/**
+	 * Get the number of non-zero dimensions.
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Get the i-th dimension in ascending order.
+	 */
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * Get the weight of the i-th dimension.
+	 */
+	public float getWeight(int i) {
+		return weights[i];
+	}
+
+	/**
+	 * Get the euclidean length of the vector.
+	 */
+	public double getLength() {
+		return length;
+	}
+
+	/**
+	 * Compute the scalar product with another vector.
+	 */
+	public double dot(SparseVector other) {
+		int[] otherIds = other.ids;
+		float[] otherWeights = other.weights;
+		double scalar = 0;
+		int i = 0;
+		int j = 0;
+		while (i < ids.length && j < otherIds.length) {
+			int one = ids[i];
+			int two = otherIds[j];
+			if (one == two) {
+				scalar += (double) weights[i++] * otherWeights[j++];
+			} else if (one < two) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return scalar;
+	}
+
+	/**
+	 * Compute the cosine of the angle to another vector.
+	 *
+	 * @return The cosine or 0 if one of the vectors is zero
+	 */
+	public double cosine(SparseVector other) {
+		if (length == 0 || other.length == 0)
+			return 0;
+		double scalar = dot(other);
+		if (scalar == 0)
+			return 0;
+		return scalar / (length * other.length);
+	}
+
+	private static boolean isStrictlySorted(int[] ids) {
+		for (int i = 1; i < ids.length; i++) {
+			if (ids[i - 1] >= ids[i])
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.utility;
+
+/**
+ * Selects the k entries with the highest scores out of a stream of (int id,
+ * double score) pairs.
+ *
+ * Entries are kept in a min-heap of primitive arrays, so selecting from n
+ * entries takes O(n log k) time and O(k) memory without boxing. Ids are not
+ * checked for uniqueness.
+ *
+ * Usage: {@link #offer(int, double)} all entries, call {@link #sort()} once and
+ * read the result with {@link #getId(int)} and {@link #getScore(int)}. Call
+ * {@link #clear()} to reuse the selector.
+ */
+public final class TopK {
+	private final int[] ids;
+	private final double[] scores;
+	private int size = 0;
+	private boolean sorted = false;
+
+	/**
+	 * Create a selector keeping the k best entries.
+	 */
+	public TopK(int k) {
+		if (k < 0)
+			throw new IllegalArgumentException("k must not be negative: " + k);
+		ids = new int[k];
+		scores = new double[k];
+	}
+
+	/**
+	 * Offer an entry.
+	 *
+	 * @return True if the entry is among the k best entries so far
+	 */
+	public boolean offer(int id, double score) {
+		if (sorted)
+			throw new IllegalStateException("Selector was already sorted.");
+
+		if (size < ids.length) {
+			ids[size] = id;
+			scores[size] = score;
+			siftUp(size++);
+			return true;
+		}
+		if (size == 0 || score <= scores[0])
+			return false;
+
+		// Replace the worst entry
+		ids[0] = id;
+		scores[0] = score;
+		siftDown(0, size);
+		return true;
+	}
+
+	/**
+	 * Get the lowest score an entry needs to be kept. Entries scoring less
+	 * can be skipped without offering them. A selector keeping no entries
+	 * has an infinite threshold.
+	 */
+	public double threshold() {
+		if (ids.length == 0)
+			return Double.POSITIVE_INFINITY;
+		return size < ids.length ? Double.NEGATIVE_INFINITY : scores[0];
+	}
+
+	/**
+	 * Get the number of kept entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the capacity k.
+	 */
+	public int capacity() {
+		return ids.length;
+	}
+
+	/**
+	 * Order the kept entries by score DESC. No entries can be offered
+	 * afterwards until the selector is cleared.
+	 */
+	public void sort() {
+		if (sorted)
+			return;
+		// Heap sort on a min-heap leaves the array in descending order
+		for (int last = size - 1; last > 0; last--) {
+			swap(0, last);
+			siftDown(0, last);
+		}
+		sorted = true;
+	}
+
+	/**
+	 * Get the id of the i-th entry. Entries are in heap order before
+	 * {@link #sort()} and ordered by score DESC afterwards.
+	 */
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * Get the score of the i-th entry.
+	 */
+	public double getScore(int i) {
+		return scores[i];
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		size = 0;
+		sorted = false;
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (scores[parent] <= scores[i])
+				break;
+			swap(parent, i);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int end) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= end)
+				break;
+			if (child + 1 < end && scores[child + 1] < scores[child]) {
+				child++;
+			}
+			if (scores[i] <= scores[child])
+				break;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
@@ -62,6 +62,7 @@ import com.google.gson.reflect.TypeToken;
 import com.sun.jersey.core.header.FormDataContentDisposition;
 import com.sun.jersey.multipart.FormDataParam;
 
+import de.muse.api.Recommendation;
 import de.muse.api.Recommender;
 import de.muse.config.ApplicationConfig;
 import de.muse.config.RecommenderConfig;
@@ -77,8 +78,10 @@ import de.muse.evaluation.Statistics;
 import de.muse.evaluation.result.EvaluationDataProvider;
 import de.muse.evaluation.result.EvaluationResults;
 import de.muse.recommendation.ListComposer;
+import de.muse.recommendation.ListPrefetcher;
 import de.muse.recommendation.MuseRecommendation;
 import de.muse.recommendation.RecommenderData;
+import de.muse.recommendation.ScoreTable;
 import de.muse.user.MuseUser;
 import de.muse.user.Option;
 import de.muse.user.UserData;
@@ -151,8 +154,17 @@ public class RestService {
 			// Check for evaluation participant
 			int evalId = EvaluationData.getIdForParticipant(name);
 
-			ListComposer.createRecommendationList(user, opt.getBehavior(),
-					evalId, opt.getRecommenders());
+			// Save the list composed in advance if it is still valid
+			List<Recommendation> prefetched = ListPrefetcher.take(name,
+					opt.getBehavior(), opt.getRecommenders(), evalId);
+			if (prefetched != null) {
+				RecommenderData.putRecommendations(user.getName(), prefetched,
+						evalId);
+			} else if (!ListComposer.createRecommendationList(user,
+					opt.getBehavior(), evalId, opt.getRecommenders())) {
+				throw new MuseWebException(
+						"No recommendations available right now. Please try again.");
+			}
 		} catch (SQLException e) {
 			LOG.warn("Couldn't save recommendations to database for: " + name,
 					e);
@@ -467,10 +479,14 @@ public class RestService {
 	public void putRatings(MultivaluedMap<String, String> inFormParams) {
 		try {
 			RecommenderData.putRatings(inFormParams);
-		} catch (SQLException e) {
+		} catch (IOException e) {
 			LOG.warn("Couldn't save ratings.", e);
 			throw new MuseWebException(
 					"Saving ratings failed. Please try again.");
+		} catch (IllegalArgumentException e) {
+			LOG.warn("Got invalid ratings.", e);
+			throw new MuseWebException(
+					"Saving ratings failed. Please try again.");
 		}
 	}
 
@@ -552,9 +568,13 @@ public class RestService {
 			// This is a transaction
 			user.saveToDB();
 
-			// Create first recommendation list
-			ListComposer.createRecommendationList(user, opt.getBehavior(), 0,
-					opt.getRecommenders());
+			// Create first recommendation list. Without one the user
+			// creates it later.
+			if (!ListComposer.createRecommendationList(user,
+					opt.getBehavior(), 0, opt.getRecommenders())) {
+				LOG.warn("Registered user " + user.getName()
+						+ " without a first recommendation list.");
+			}
 		} catch (SQLException e) {
 			LOG.warn("Couldn't save user " + user.getName() + " to databse.", e);
 			throw new MuseWebException("Saving user to database failed.");
@@ -906,6 +926,8 @@ public class RestService {
 						.prepareStatement("DELETE FROM user_user_score WHERE user_name = ?");
 				stmt.setString(1, name);
 				stmt.executeUpdate();
+				ScoreTable.CONTENT.remove(name);
+				ScoreTable.COLLABORATIVE.remove(name);
 
 				// Create NEWCOMER recommendations list with preliminary
 				// NEWCOMER
@@ -914,8 +936,11 @@ public class RestService {
 						Arrays.asList(3));
 				UserData.saveOptions("mixed", recs, name);
 				MuseUser user = new MuseUser(name);
-				ListComposer.createRecommendationList(user, "mixed",
-						currentEval.getId(), recs);
+				if (!ListComposer.createRecommendationList(user, "mixed",
+						currentEval.getId(), recs)) {
+					LOG.warn("Newcomer " + name
+							+ " starts without a recommendation list.");
+				}
 			}
 
 			// Set participant flag
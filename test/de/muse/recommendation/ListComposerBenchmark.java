@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 University of Freiburg.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.muse.recommendation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.muse.api.Recommendation;
+
+/**
+ * Compares the list composition of {@link ListComposer} with the former
+ * implementation, which sorted all candidates and copied them for the dynamic
+ * behavior. Needs no database.
+ *
+ * Run with the compiled sources and the libraries on the class path:
+ *
+ * <pre>
+ * java de.muse.recommendation.ListComposerBenchmark [recommenders] [candidates] [seconds]
+ * </pre>
+ *
+ * Each recommender offers the given number of candidates; a tenth of the
+ * songs is offered by several recommenders. Every behavior is warmed up and
+ * then measured for the given time per implementation. Reported are the time
+ * and, where the JVM supports it, the allocated bytes per composed list.
+ */
+public final class ListComposerBenchmark {
+	// Composed list length of the former implementation
+	private static final int n = 10;
+
+	// Fixed seed, so runs are comparable
+	private static final long SEED = 42;
+
+	// Result consumed by every run, so no run can be optimized away
+	private static int sink = 0;
+
+	/**
+	 * One way of composing a list.
+	 */
+	private interface Composer {
+		List<Recommendation> compose(Map<Integer, List<Recommendation>> recMap);
+	}
+
+	private ListComposerBenchmark() {
+	}
+
+	public static void main(String[] args) {
+		int recommenders = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int candidates = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+		final Map<Integer, List<Recommendation>> recMap = createCandidates(
+				recommenders, candidates);
+		final Map<Integer, Double> scores = new HashMap<Integer, Double>();
+		Random random = new Random(SEED);
+		for (int id : recMap.keySet()) {
+			scores.put(id, random.nextDouble());
+		}
+
+		System.out.println(recommenders + " recommenders, " + candidates
+				+ " candidates each");
+		System.out.println(String.format("%-10s %-8s %12s %12s", "behavior",
+				"version", "ns/list", "bytes/list"));
+
+		measure("mixed", "former", seconds, recMap, new Composer() {
+			@Override
+			public List<Recommendation> compose(
+					Map<Integer, List<Recommendation>> recMap) {
+				return formerMixedList(recMap);
+			}
+		});
+		measure("mixed", "current", seconds, recMap, new Composer() {
+			@Override
+			public List<Recommendation> compose(
+					Map<Integer, List<Recommendation>> recMap) {
+				return ListComposer.createMixedList(recMap);
+			}
+		});
+		measure("weighted", "former", seconds, recMap, new Composer() {
+			@Override
+			public List<Recommendation> compose(
+					Map<Integer, List<Recommendation>> recMap) {
+				return formerWeightedList(recMap);
+			}
+		});
+		measure("weighted", "current", seconds, recMap, new Composer() {
+			@Override
+			public List<Recommendation> compose(
+					Map<Integer, List<Recommendation>> recMap) {
+				return ListComposer.createWeightedList(recMap);
+			}
+		});
+		measure("dynamic", "former", seconds, recMap, new Composer() {
+			@Override
+			public List<Recommendation> compose(
+					Map<Integer, List<Recommendation>> recMap) {
+				return formerDynamicList(scores, recMap);
+			}
+		});
+		measure("dynamic", "current", seconds, recMap, new Composer() {
+			@Override
+			public List<Recommendation> compose(
+					Map<Integer, List<Recommendation>> recMap) {
+				return ListComposer.createDynamicList(scores, recMap);
+			}
+		});
+
+		// Print the sink, so it is live
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	// Candidate lists ordered by score DESC, as recommenders return them
+	private static Map<Integer, List<Recommendation>> createCandidates(
+			int recommenders, int candidates) {
+		Random random = new Random(SEED);
+		int songs = Math.max(1, recommenders * candidates * 9 / 10);
+		Map<Integer, List<Recommendation>> recMap = new LinkedHashMap<Integer, List<Recommendation>>();
+		for (int id = 1; id <= recommenders; id++) {
+			List<MuseRecommendation> recs = new ArrayList<MuseRecommendation>();
+			for (int i = 0; i < candidates; i++) {
+				int song = random.nextInt(songs);
+				MuseSong track = new MuseSong("Artist " + (song % 97), "Song "
+						+ song);
+				track.setID(song + 1);
+				MuseRecommendation rec = new MuseRecommendation();
+				rec.setSong(track);
+				rec.setRecommenderID(id);
+				rec.setScore(random.nextDouble());
+				recs.add(rec);
+			}
+			Collections.sort(recs, Collections.reverseOrder());
+			recMap.put(id, new ArrayList<Recommendation>(recs));
+		}
+		return recMap;
+	}
+
+	// Warm up, then run the composer for the given time and print the cost
+	// per list
+	private static void measure(String behavior, String version,
+			long seconds, Map<Integer, List<Recommendation>> recMap,
+			Composer composer) {
+		run(composer, recMap, seconds * 1000000000L / 2);
+
+		long start = System.nanoTime();
+		long allocated = getAllocatedBytes();
+		long runs = run(composer, recMap, seconds * 1000000000L);
+		long elapsed = System.nanoTime() - start;
+		long bytes = getAllocatedBytes() - allocated;
+
+		System.out.println(String.format("%-10s %-8s %12.1f %12s", behavior,
+				version, (double) elapsed / runs, allocated < 0 ? "n/a"
+						: String.valueOf(bytes / runs)));
+	}
+
+	// Compose lists until the time is over, checking the clock every 1000
+	private static long run(Composer composer,
+			Map<Integer, List<Recommendation>> recMap, long nanos) {
+		long end = System.nanoTime() + nanos;
+		long runs = 0;
+		do {
+			for (int i = 0; i < 1000; i++) {
+				sink += composer.compose(recMap).size();
+			}
+			runs += 1000;
+		} while (System.nanoTime() < end);
+		return runs;
+	}
+
+	// Bytes allocated by this thread or -1 if the JVM doesn't tell
+	private static long getAllocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+		if (!sun.isThreadAllocatedMemorySupported()
+				|| !sun.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/*
+	 * Former implementation
+	 */
+	private static List<Recommendation> formerMixedList(
+			Map<Integer, List<Recommendation>> results) {
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+		HashMap<Integer, List<Recommendation>> recMap = new HashMap<Integer, List<Recommendation>>();
+		if (results.isEmpty())
+			return recommendations;
+
+		// Get n recommendations of each recommender
+		int count = (int) Math.floor(n / results.size());
+		for (Map.Entry<Integer, List<Recommendation>> entry : results
+				.entrySet()) {
+			List<Recommendation> recs = entry.getValue();
+
+			// Check if the recommender created enough recommendations
+			if (recs.size() <= count) {
+				recommendations.addAll(recs);
+			} else {
+				recommendations.addAll(recs.subList(0, count));
+				recMap.put(entry.getKey(), new ArrayList<Recommendation>(recs
+						.subList(count, recs.size())));
+			}
+		}
+
+		// Make sure wanted number of recommendations are created
+		while (recommendations.size() < n && recMap.size() > 0) {
+			// Count open slots and evenly distribute to each recommender
+			int diff = n - recommendations.size();
+			count = (int) Math.floor(diff / recMap.size());
+			count = (count == 0) ? 1 : count;
+			Integer[] recMapKeys = recMap.keySet().toArray(
+					new Integer[recMap.size()]);
+
+			// Add recommendations
+			for (int i = 0; i < recMapKeys.length; i++) {
+				// Check if the list is full (corner case)
+				if (recommendations.size() == n) {
+					break;
+				}
+				int id = recMapKeys[i];
+
+				// Check if the recommender has enough recommendations
+				if (recMap.get(id).size() <= count) {
+					recommendations.addAll(recMap.get(id));
+				} else {
+					List<Recommendation> addRecs = new ArrayList<Recommendation>(
+							recMap.get(id).subList(0, count));
+					recommendations.addAll(addRecs);
+					recMap.get(id).removeAll(addRecs);
+				}
+			}
+
+			// Remove empty lists from the map
+			for (int id : recMapKeys) {
+				if (recMap.get(id).isEmpty()) {
+					recMap.remove(id);
+				}
+			}
+		}
+
+		// Sort list according to recommendations score
+		Collections.sort(recommendations, Collections.reverseOrder());
+		return recommendations;
+	}
+
+	private static List<Recommendation> formerWeightedList(
+			Map<Integer, List<Recommendation>> recMap) {
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+
+		// Get n recommendations of each recommender
+		for (List<Recommendation> recs : recMap.values()) {
+			recommendations.addAll(recs);
+		}
+		Collections.sort(recommendations, Collections.reverseOrder());
+		if (recommendations.size() > n) {
+			recommendations = recommendations.subList(0, n);
+		}
+		return recommendations;
+	}
+
+	private static List<Recommendation> formerDynamicList(
+			Map<Integer, Double> scores,
+			Map<Integer, List<Recommendation>> recMap) {
+		List<Recommendation> result = new ArrayList<Recommendation>();
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+
+		// Get n recommendations of each recommender
+		for (List<Recommendation> recs : recMap.values()) {
+			recommendations.addAll(recs);
+		}
+		Collections.sort(recommendations, Collections.reverseOrder());
+
+		// Order recommendation list by weighting recommendations scores
+		// with belonging recommender score (Order by score =
+		// recommendationScore * recommenderScore)
+		List<Recommendation> recOrder = duplicateList(recommendations);
+		for (Recommendation rec : recOrder) {
+			int recommenderID = rec.getRecommenderID();
+			double recommenderScore = scores.get(recommenderID);
+			double recommendationScore = rec.getScore();
+
+			// Compute new score for the recommendation
+			((MuseRecommendation) rec).setScore(recommenderScore
+					* recommendationScore);
+		}
+
+		// Sort list according to recommendations score and take the top n
+		// recommendations
+		Collections.sort(recOrder, Collections.reverseOrder());
+		if (recOrder.size() > n) {
+			recOrder = recOrder.subList(0, n);
+		}
+
+		// Map recommendations to recommendations with original score
+		for (Recommendation rec : recOrder) {
+			for (Recommendation recAlt : recommendations) {
+				if (rec.equals(recAlt)) {
+					result.add(recAlt);
+					break;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private static List<Recommendation> duplicateList(List<Recommendation> recs) {
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+
+		// Create new object for each object in the list and add it to a new
+		// list
+		for (Recommendation rec : recs) {
+			MuseRecommendation recNew = new MuseRecommendation();
+			recNew.setSong(rec.getSong());
+			recNew.setRecommenderID(rec.getRecommenderID());
+			recNew.setScore(rec.getScore());
+			recommendations.add(recNew);
+		}
+		return recommendations;
+	}
+}